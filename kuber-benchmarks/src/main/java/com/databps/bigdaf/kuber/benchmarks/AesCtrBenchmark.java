@@ -0,0 +1,84 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import com.databps.bigdaf.kuber.algorithms.AesCtr;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link AesCtr} with a raw 256-bit key: the array methods on the heap, the
+ * ByteBuffer methods on direct buffers. Output is iv + encrypted data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AesCtrBenchmark {
+
+  @Param({"64", "1024", "65536", "1048576", "16777216"})
+  public int size;
+
+  @Param({Payloads.HEAP, Payloads.DIRECT})
+  public String buffer;
+
+  private AesCtr cipher;
+  private int overhead;
+  private byte[] plain;
+  private byte[] encrypted;
+  private byte[] output;
+  private ByteBuffer plainBuffer;
+  private ByteBuffer encryptedBuffer;
+  private ByteBuffer outputBuffer;
+
+  @Setup
+  public void setUp() throws Exception {
+    cipher = new AesCtr(Payloads.random(32));
+    overhead = cipher.getOverhead();
+    plain = Payloads.random(size);
+    encrypted = new byte[size + overhead];
+    cipher.encrypt(plain, 0, size, encrypted, 0);
+    output = new byte[size + overhead];
+
+    plainBuffer = Payloads.buffer(buffer, size);
+    plainBuffer.put(plain).flip();
+    encryptedBuffer = Payloads.buffer(buffer, size + overhead);
+    encryptedBuffer.put(encrypted).flip();
+    outputBuffer = Payloads.buffer(buffer, size + overhead);
+  }
+
+  @Benchmark
+  public Object encrypt() throws Exception {
+    if (Payloads.HEAP.equals(buffer)) {
+      cipher.encrypt(plain, 0, size, output, 0);
+      return output;
+    }
+    plainBuffer.rewind();
+    outputBuffer.clear();
+    cipher.encrypt(plainBuffer, outputBuffer);
+    return outputBuffer;
+  }
+
+  @Benchmark
+  public Object decrypt() throws Exception {
+    if (Payloads.HEAP.equals(buffer)) {
+      cipher.decrypt(encrypted, 0, size + overhead, output, 0);
+      return output;
+    }
+    encryptedBuffer.rewind();
+    outputBuffer.clear();
+    cipher.decrypt(encryptedBuffer, outputBuffer);
+    return outputBuffer;
+  }
+}
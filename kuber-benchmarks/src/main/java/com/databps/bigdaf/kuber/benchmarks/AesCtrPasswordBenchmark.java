@@ -0,0 +1,54 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import com.databps.bigdaf.kuber.algorithms.AesCtr;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link AesCtr} with a password: key derivation, AES-CTR and the HMAC of
+ * every message. Arrays only, as the password methods take no buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AesCtrPasswordBenchmark {
+
+  private static final String PASSWORD = "kuber-benchmark-password";
+
+  @Param({"64", "1024", "65536", "1048576", "16777216"})
+  public int size;
+
+  private AesCtr cipher;
+  private byte[] plain;
+  private byte[] encrypted;
+
+  @Setup
+  public void setUp() throws Exception {
+    cipher = new AesCtr(Payloads.random(32));
+    plain = Payloads.random(size);
+    encrypted = cipher.encrypt(plain, PASSWORD);
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws Exception {
+    return cipher.encrypt(plain, PASSWORD);
+  }
+
+  @Benchmark
+  public byte[] decrypt() throws Exception {
+    return cipher.decrypt(encrypted, PASSWORD);
+  }
+}
@@ -0,0 +1,55 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.JceAesCtrCryptoCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counter to IV arithmetic, run for every buffer a crypto stream encrypts:
+ * {@link CryptoOutputStream2#calculateIV} and the Hadoop codec's.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculateIVBenchmark {
+
+  private final byte[] initIV = Payloads.random(16);
+  private final byte[] iv = new byte[16];
+  private CryptoOutputStream2 stream;
+  private CryptoCodec codec;
+  private long counter;
+
+  @Setup
+  public void setUp() throws IOException {
+    stream = new CryptoOutputStream2(new ByteArrayOutputStream(), Payloads.random(32), initIV);
+    codec = new JceAesCtrCryptoCodec();
+  }
+
+  @Benchmark
+  public byte[] stream() {
+    stream.calculateIV(initIV, counter++, iv);
+    return iv;
+  }
+
+  @Benchmark
+  public byte[] codec() {
+    codec.calculateIV(initIV, counter++, iv);
+    return iv;
+  }
+}
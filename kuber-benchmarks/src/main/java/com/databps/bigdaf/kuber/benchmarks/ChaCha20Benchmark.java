@@ -0,0 +1,67 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChaCha20 keystream XOR: {@link ChaCha20#encrypt(byte[], byte[], int)} on
+ * heap arrays, {@link ChaCha20#process(ByteBuffer, ByteBuffer)} on direct
+ * buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChaCha20Benchmark {
+
+  @Param({"64", "1024", "65536", "1048576", "16777216"})
+  public int size;
+
+  @Param({Payloads.HEAP, Payloads.DIRECT})
+  public String buffer;
+
+  private ChaCha20 cipher;
+  private byte[] plain;
+  private byte[] encrypted;
+  private ByteBuffer src;
+  private ByteBuffer dst;
+
+  @Setup
+  public void setUp() throws Exception {
+    cipher = new ChaCha20(Payloads.random(ChaCha20.KEY_SIZE),
+        Payloads.random(ChaCha20.NONCE_SIZE_IETF), 0);
+    plain = Payloads.random(size);
+    encrypted = new byte[size];
+    src = Payloads.buffer(buffer, size);
+    src.put(plain);
+    dst = Payloads.buffer(buffer, size);
+  }
+
+  @Benchmark
+  public Object encrypt() {
+    // Every operation starts over, so the block counter never runs out.
+    cipher.seek(0);
+    if (Payloads.HEAP.equals(buffer)) {
+      cipher.encrypt(encrypted, plain, size);
+      return encrypted;
+    }
+    src.clear();
+    dst.clear();
+    cipher.process(src, dst);
+    return dst;
+  }
+}
@@ -0,0 +1,85 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20CryptoCodec;
+import com.databps.bigdaf.kuber.algorithms.CryptoCodecFactory;
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.JceAesCtrCryptoCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CryptoOutputStream2#write(byte[], int, int)} into a stream that
+ * discards the output. The stream buffers are heap buffers for these codecs;
+ * only the OpenSSL codec uses direct ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoOutputStreamBenchmark {
+
+  @Param({"64", "1024", "65536", "1048576", "16777216"})
+  public int size;
+
+  @Param({"aes-ctr", "chacha20"})
+  public String codec;
+
+  private static final OutputStream NULL = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  private CryptoCodec cryptoCodec;
+  private byte[] plain;
+  private CryptoOutputStream2 out;
+
+  @Setup
+  public void setUp() {
+    Configuration conf = new Configuration(false);
+    conf.setClass(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_KEY,
+        "chacha20".equals(codec) ? ChaCha20CryptoCodec.class : JceAesCtrCryptoCodec.class,
+        CryptoCodec.class);
+    cryptoCodec = CryptoCodecFactory.getInstance(conf);
+    plain = Payloads.random(size);
+  }
+
+  /** A stream per iteration, so the ChaCha20 block counter never runs out. */
+  @Setup(Level.Iteration)
+  public void open() throws IOException {
+    out = new CryptoOutputStream2(NULL, cryptoCodec, 8192, Payloads.random(32),
+        Payloads.random(16), 0);
+  }
+
+  @TearDown(Level.Iteration)
+  public void close() throws IOException {
+    out.close();
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    out.write(plain, 0, size);
+  }
+}
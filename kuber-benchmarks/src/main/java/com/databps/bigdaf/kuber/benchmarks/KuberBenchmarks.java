@@ -0,0 +1,110 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler, then
+ * prints ops/s, MB/s and the allocation rate of each.
+ * <p/>
+ * Usage: KuberBenchmarks [--threads 1,4,...] [JMH options] [benchmark regexp...]
+ * <p/>
+ * Any JMH option works, e.g. "-p size=65536" to pick payload sizes or
+ * "-rf json -rff baseline.json" to keep the results. With several thread
+ * counts each writes its own file, baseline-t1.json, baseline-t4.json and so
+ * on. JMH's "-t n" replaces --threads with a single run at n threads.
+ */
+public class KuberBenchmarks {
+
+  public static final String THREADS_OPTION = "--threads";
+
+  private static final String ALLOC_RATE = "gc.alloc.rate";
+
+  public static void main(String[] args) throws Exception {
+    List<Integer> threads = new ArrayList<Integer>();
+    List<String> jmhArgs = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length) {
+        for (String t : args[++i].split(",")) {
+          threads.add(Integer.parseInt(t.trim()));
+        }
+      } else {
+        jmhArgs.add(args[i]);
+      }
+    }
+
+    CommandLineOptions cmd = new CommandLineOptions(jmhArgs.toArray(new String[jmhArgs.size()]));
+    List<Options> runs = new ArrayList<Options>();
+    if (cmd.getThreads().hasValue()) {
+      // JMH's own -t wins: one run at that thread count.
+      runs.add(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+    } else {
+      if (threads.isEmpty()) {
+        threads.add(1);
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (cores > 1) {
+          threads.add(cores);
+        }
+      }
+      for (int t : threads) {
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmd).threads(t).addProfiler(GCProfiler.class);
+        if (cmd.getResult().hasValue() && threads.size() > 1) {
+          // Each run writes its own result file, or the last would replace the others.
+          options.result(resultFile(cmd.getResult().get(), t));
+        }
+        runs.add(options.build());
+      }
+    }
+
+    List<String> summary = new ArrayList<String>();
+    for (Options options : runs) {
+      Collection<RunResult> results = new Runner(options).run();
+      for (RunResult result : results) {
+        summary.add(summarize(result));
+      }
+    }
+
+    System.out.println();
+    System.out.println(String.format("%-50s %7s %-9s %7s %14s %10s %12s", "Benchmark", "threads",
+        "buffer", "size", "ops/s", "MB/s", "alloc MB/s"));
+    for (String line : summary) {
+      System.out.println(line);
+    }
+  }
+
+  /** The result file of the run at threads: "baseline.json" becomes "baseline-t4.json". */
+  static String resultFile(String file, int threads) {
+    int dot = file.lastIndexOf('.');
+    if (dot <= file.lastIndexOf('/') + 1) {
+      return file + "-t" + threads;
+    }
+    return file.substring(0, dot) + "-t" + threads + file.substring(dot);
+  }
+
+  private static String summarize(RunResult result) {
+    int threads = result.getParams().getThreads();
+    String benchmark = result.getParams().getBenchmark();
+    String size = result.getParams().getParam("size");
+    String buffer = result.getParams().getParam("buffer");
+    if (buffer == null) {
+      buffer = result.getParams().getParam("codec");
+    }
+    double ops = result.getPrimaryResult().getScore();
+    Result<?> alloc = result.getSecondaryResults().get(ALLOC_RATE);
+    return String.format("%-50s %7d %-9s %7s %14.1f %10s %12s",
+        benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1),
+        threads, buffer != null ? buffer : "-", size != null ? size : "-", ops,
+        size != null ? String.format("%.1f", ops * Integer.parseInt(size) / (1024.0 * 1024.0))
+            : "-",
+        alloc != null ? String.format("%.1f", alloc.getScore()) : "-");
+  }
+}
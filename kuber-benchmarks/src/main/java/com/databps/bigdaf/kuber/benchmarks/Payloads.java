@@ -0,0 +1,35 @@
+package com.databps.bigdaf.kuber.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Reproducible inputs shared by the benchmarks.
+ */
+final class Payloads {
+
+  static final String HEAP = "heap";
+
+  static final String DIRECT = "direct";
+
+  private Payloads() {
+  }
+
+  /** @return size pseudo-random bytes, the same on every run. */
+  static byte[] random(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  /** @return an empty heap or direct buffer of capacity bytes. */
+  static ByteBuffer buffer(String kind, int capacity) {
+    if (HEAP.equals(kind)) {
+      return ByteBuffer.allocate(capacity);
+    }
+    if (DIRECT.equals(kind)) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    throw new IllegalArgumentException("Unknown buffer kind: " + kind);
+  }
+}
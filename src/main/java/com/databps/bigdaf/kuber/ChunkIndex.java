@@ -0,0 +1,153 @@
+package com.databps.bigdaf.kuber;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * Trailing index of the chunks of a Kuber file, written after the data when
+ * the header has {@link KuberHeader#FLAG_CHUNK_INDEX}.
+ * <p/>
+ * Chunk i holds plaintext bytes [i * chunkSize, (i + 1) * chunkSize). For
+ * each chunk the index records its file offset and stored length, which
+ * includes the tag for sealed chunks, followed by a
+ * fixed size trailer, so a reader can find the index from the end of the file:
+ * <pre>
+ *   entries      chunks * (8 byte file offset + 4 byte stored length)
+ *   index offset 8 bytes  file offset of the first entry
+ *   chunks       4 bytes
+ *   magic        4 bytes  "KIDX"
+ * </pre>
+ */
+public class ChunkIndex {
+
+  public static final byte[] MAGIC = {'K', 'I', 'D', 'X'};
+
+  public static final int TRAILER_SIZE = 16;
+
+  private static final int ENTRY_SIZE = 12;
+
+  private final long[] offsets;
+  private final int[] lengths;
+
+  private ChunkIndex(long[] offsets, int[] lengths) {
+    this.offsets = offsets;
+    this.lengths = lengths;
+  }
+
+  /**
+   * Index of dataLength bytes stored from dataOffset in chunks of chunkSize.
+   */
+  public static ChunkIndex build(long dataOffset, long dataLength, int chunkSize) {
+    return build(dataOffset, (dataLength + chunkSize - 1) / chunkSize, dataLength, chunkSize, 0);
+  }
+
+  /**
+   * Index of plainLength bytes sealed from dataOffset by aead: every chunk
+   * carries a tag, and there is always a final short (possibly empty) chunk.
+   */
+  public static ChunkIndex build(long dataOffset, long plainLength, SegmentedAead aead) {
+    return build(dataOffset, aead.getChunks(plainLength), plainLength, aead.getChunkSize(),
+        SegmentedAead.TAG_SIZE);
+  }
+
+  private static ChunkIndex build(long dataOffset, long count, long plainLength, int chunkSize,
+      int overhead) {
+    if (count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many chunks: " + count);
+    }
+    long[] offsets = new long[(int) count];
+    int[] lengths = new int[(int) count];
+    for (int i = 0; i < count; i++) {
+      long position = (long) i * chunkSize;
+      offsets[i] = dataOffset + (long) i * (chunkSize + overhead);
+      lengths[i] = (int) Math.min(chunkSize, plainLength - position) + overhead;
+    }
+    return new ChunkIndex(offsets, lengths);
+  }
+
+  public int getChunks() {
+    return offsets.length;
+  }
+
+  /** @return the file offset of chunk i. */
+  public long getOffset(int chunk) {
+    return offsets[chunk];
+  }
+
+  /** @return the number of bytes stored for chunk i. */
+  public int getLength(int chunk) {
+    return lengths[chunk];
+  }
+
+  /** @return the total number of bytes stored for all chunks. */
+  public long getDataLength() {
+    long length = 0;
+    for (int l : lengths) {
+      length += l;
+    }
+    return length;
+  }
+
+  /** @return the size of the index in bytes, trailer included. */
+  public long getSize() {
+    return (long) offsets.length * ENTRY_SIZE + TRAILER_SIZE;
+  }
+
+  /**
+   * Writes the index, which must start at file offset indexOffset; that is
+   * normally right after the last chunk.
+   */
+  public void write(OutputStream out, long indexOffset) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) getSize());
+    DataOutputStream data = new DataOutputStream(bytes);
+    for (int i = 0; i < offsets.length; i++) {
+      data.writeLong(offsets[i]);
+      data.writeInt(lengths[i]);
+    }
+    data.writeLong(indexOffset);
+    data.writeInt(offsets.length);
+    data.write(MAGIC);
+    data.flush();
+    bytes.writeTo(out);
+  }
+
+  /**
+   * Reads the index from the end of a file of fileLength bytes.
+   * @throws IOException if the file does not end with an index.
+   */
+  public static ChunkIndex read(PositionedReadable in, long fileLength) throws IOException {
+    if (fileLength < TRAILER_SIZE) {
+      throw new IOException("File too short for a chunk index: " + fileLength);
+    }
+    byte[] trailer = new byte[TRAILER_SIZE];
+    in.readFully(fileLength - TRAILER_SIZE, trailer, 0, TRAILER_SIZE);
+    ByteBuffer buf = ByteBuffer.wrap(trailer);
+    long indexOffset = buf.getLong();
+    int chunks = buf.getInt();
+    if (!Arrays.equals(MAGIC, Arrays.copyOfRange(trailer, 12, TRAILER_SIZE))) {
+      throw new IOException("Missing chunk index trailer");
+    }
+    if (chunks < 0 || chunks > Integer.MAX_VALUE / ENTRY_SIZE || indexOffset < 0
+        || indexOffset + (long) chunks * ENTRY_SIZE != fileLength - TRAILER_SIZE) {
+      throw new IOException("Corrupt chunk index: " + chunks + " chunks at " + indexOffset);
+    }
+
+    byte[] entries = new byte[chunks * ENTRY_SIZE];
+    in.readFully(indexOffset, entries, 0, entries.length);
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(entries));
+    long[] offsets = new long[chunks];
+    int[] lengths = new int[chunks];
+    for (int i = 0; i < chunks; i++) {
+      offsets[i] = data.readLong();
+      lengths[i] = data.readInt();
+    }
+    return new ChunkIndex(offsets, lengths);
+  }
+}
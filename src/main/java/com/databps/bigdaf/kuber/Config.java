@@ -1,6 +1,7 @@
 package com.databps.bigdaf.kuber;
 
 import java.io.UnsupportedEncodingException;
+import org.apache.hadoop.conf.Configuration;
 
 /**
  * @author merlin
@@ -8,6 +9,11 @@ import java.io.UnsupportedEncodingException;
  */
 public class Config{
 
+  /**
+   * Overrides the password of the password based AES mode.
+   */
+  public static final String AES_PASSWORD_KEY = "kuber.aes.password";
+
   private String key = "abcdefghijklmnopqrstuvwxyzabcdef";	//Should be 32 bits. Update as required.
 
   //private String key="1234567890123456";
@@ -16,6 +22,8 @@ public class Config{
 
   private int counter = 1;
 
+  private String password = "hahahahahahahaahahaha";
+
   protected byte[] getKey() {
     //return key.getBytes(StandardCharsets.UTF_8);
     try {
@@ -31,6 +39,14 @@ public class Config{
     return nonce.getBytes();
   }
 
+  protected String getPassword(){
+    return password;
+  }
+
+  protected String getPassword(Configuration conf){
+    return conf.get(AES_PASSWORD_KEY, password);
+  }
+
   protected int getCounter(){
     return this.counter;
   }
@@ -41,9 +57,8 @@ public class Config{
   }
 
   /* ToDo Methods
-   * Integrating with Ranger KMS
-   * newKey()
    * updateKey()
    * updateNonce()
+   * Per-file keys from a KMS: see KuberKeyManager.
    */
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+package com.databps.bigdaf.kuber;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension.EncryptedKeyVersion;
+
+/**
+ * Bounded cache of unwrapped data keys for readers.
+ * <p/>
+ * Entries are keyed by master key name, master key version and the
+ * encrypted key bytes, so reading many files that share a data key costs one
+ * key provider call. Entries expire {@value #TTL_KEY} milliseconds after they
+ * were unwrapped, and the least recently used are evicted beyond
+ * {@value #SIZE_KEY} entries or {@value #BYTES_KEY} bytes of key material.
+ * Expired, evicted and cleared keys are zeroed.
+ * <p/>
+ * Concurrent misses for the same key wait for a single unwrap.
+ */
+public class DataKeyCache {
+
+  public static final String SIZE_KEY = "kuber.key.cache.size";
+
+  public static final int SIZE_DEFAULT = 10000;
+
+  public static final String BYTES_KEY = "kuber.key.cache.bytes";
+
+  public static final long BYTES_DEFAULT = 1024 * 1024;
+
+  public static final String TTL_KEY = "kuber.key.cache.ttl.ms";
+
+  public static final long TTL_DEFAULT = 10 * 60 * 1000L;
+
+  /**
+   * Unwraps a data key, usually through the key provider.
+   */
+  public interface Unwrapper {
+    byte[] unwrap(EncryptedKeyVersion encryptedKey) throws IOException;
+  }
+
+  private static final class CacheKey {
+    final String keyName;
+    final String keyVersion;
+    final byte[] encrypted;
+
+    CacheKey(EncryptedKeyVersion encryptedKey) {
+      this.keyName = encryptedKey.getEncryptionKeyName();
+      this.keyVersion = encryptedKey.getEncryptionKeyVersionName();
+      this.encrypted = encryptedKey.getEncryptedKeyVersion().getMaterial();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey k = (CacheKey) o;
+      return keyName.equals(k.keyName) && keyVersion.equals(k.keyVersion)
+          && Arrays.equals(encrypted, k.encrypted);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * keyName.hashCode() + keyVersion.hashCode())
+          + Arrays.hashCode(encrypted);
+    }
+  }
+
+  private static final class Entry {
+    final byte[] key;
+    final long loaded;
+
+    Entry(byte[] key, long loaded) {
+      this.key = key;
+      this.loaded = loaded;
+    }
+  }
+
+  private final int maxSize;
+  private final long maxBytes;
+  private final long ttl;
+  private final LinkedHashMap<CacheKey, Entry> entries =
+      new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+  private final ConcurrentMap<CacheKey, FutureTask<byte[]>> loading =
+      new ConcurrentHashMap<CacheKey, FutureTask<byte[]>>();
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public DataKeyCache(int maxSize, long maxBytes, long ttl) {
+    if (maxSize < 0 || maxBytes < 0 || ttl < 0) {
+      throw new IllegalArgumentException("Negative cache limit");
+    }
+    this.maxSize = maxSize;
+    this.maxBytes = maxBytes;
+    this.ttl = ttl;
+  }
+
+  public DataKeyCache(Configuration conf) {
+    this(conf.getInt(SIZE_KEY, SIZE_DEFAULT), conf.getLong(BYTES_KEY, BYTES_DEFAULT),
+        conf.getLong(TTL_KEY, TTL_DEFAULT));
+  }
+
+  /**
+   * @return the data key of encryptedKey, unwrapped only if it is not cached.
+   * The caller owns the returned array.
+   */
+  public byte[] get(EncryptedKeyVersion encryptedKey, Unwrapper unwrapper) throws IOException {
+    CacheKey key = new CacheKey(encryptedKey);
+    byte[] cached = lookup(key);
+    if (cached != null) {
+      return cached;
+    }
+    return await(load(key, encryptedKey, unwrapper));
+  }
+
+  /**
+   * Unwraps several keys at once: keys that are not cached are unwrapped
+   * concurrently on executor, each distinct key once.
+   * @return the data keys in the order of encryptedKeys.
+   */
+  public List<byte[]> getAll(List<EncryptedKeyVersion> encryptedKeys, Unwrapper unwrapper,
+      Executor executor) throws IOException {
+    List<Object> results = new ArrayList<Object>(encryptedKeys.size());
+    for (EncryptedKeyVersion encryptedKey : encryptedKeys) {
+      CacheKey key = new CacheKey(encryptedKey);
+      byte[] cached = lookup(key);
+      if (cached != null) {
+        results.add(cached);
+      } else {
+        FutureTask<byte[]> task = load(key, encryptedKey, unwrapper);
+        executor.execute(task);
+        results.add(task);
+      }
+    }
+    List<byte[]> keys = new ArrayList<byte[]>(results.size());
+    for (Object result : results) {
+      if (result instanceof byte[]) {
+        keys.add((byte[]) result);
+      } else {
+        @SuppressWarnings("unchecked")
+        FutureTask<byte[]> task = (FutureTask<byte[]>) result;
+        keys.add(await(task));
+      }
+    }
+    return keys;
+  }
+
+  private synchronized byte[] lookup(CacheKey key) {
+    Entry entry = entries.get(key);
+    if (entry != null && System.currentTimeMillis() - entry.loaded <= ttl) {
+      hits++;
+      return entry.key.clone();
+    }
+    if (entry != null) {
+      remove(key);
+    }
+    misses++;
+    return null;
+  }
+
+  private synchronized byte[] peek(CacheKey key) {
+    Entry entry = entries.get(key);
+    return entry != null && System.currentTimeMillis() - entry.loaded <= ttl
+        ? entry.key.clone() : null;
+  }
+
+  /**
+   * @return the running unwrap of key, or a new one the caller must run.
+   */
+  private FutureTask<byte[]> load(final CacheKey key, final EncryptedKeyVersion encryptedKey,
+      final Unwrapper unwrapper) {
+    FutureTask<byte[]> created = new FutureTask<byte[]>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        try {
+          // A load that finished since the lookup left its key behind.
+          byte[] cached = peek(key);
+          if (cached != null) {
+            return cached;
+          }
+          byte[] unwrapped = unwrapper.unwrap(encryptedKey);
+          byte[] result = unwrapped.clone();
+          // The cache takes over the unwrapped array and zeroes it when done.
+          put(key, unwrapped);
+          return result;
+        } finally {
+          loading.remove(key);
+        }
+      }
+    });
+    FutureTask<byte[]> running = loading.putIfAbsent(key, created);
+    return running != null ? running : created;
+  }
+
+  private static byte[] await(FutureTask<byte[]> task) throws IOException {
+    // Runs here if no other thread has started it yet.
+    task.run();
+    try {
+      return task.get().clone();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a data key");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  private synchronized void put(CacheKey key, byte[] value) {
+    if (maxSize == 0 || value.length > maxBytes) {
+      Arrays.fill(value, (byte) 0);
+      return;
+    }
+    remove(key);
+    entries.put(key, new Entry(value, System.currentTimeMillis()));
+    bytes += value.length;
+    Iterator<Map.Entry<CacheKey, Entry>> eldest = entries.entrySet().iterator();
+    while (entries.size() > maxSize || bytes > maxBytes) {
+      Entry evicted = eldest.next().getValue();
+      eldest.remove();
+      bytes -= evicted.key.length;
+      Arrays.fill(evicted.key, (byte) 0);
+      evictions++;
+    }
+  }
+
+  private void remove(CacheKey key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      bytes -= entry.key.length;
+      Arrays.fill(entry.key, (byte) 0);
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return the bytes of key material held. */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      Arrays.fill(entry.key, (byte) 0);
+    }
+    entries.clear();
+    bytes = 0;
+  }
+}
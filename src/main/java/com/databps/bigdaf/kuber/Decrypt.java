@@ -2,17 +2,25 @@ package com.databps.bigdaf.kuber;
 
 import com.databps.bigdaf.kuber.algorithms.AesCtr;
 import com.databps.bigdaf.kuber.algorithms.ChaCha20;
-import java.io.BufferedOutputStream;
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
 import java.io.File;
 import java.io.FileOutputStream;
-
+import java.io.IOException;
 import java.io.InputStream;
+
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -25,23 +33,43 @@ public class Decrypt extends Configured implements Tool {
 
   public static final String FS_PARAM_NAME = "fs.defaultFS";
 
+  private StreamCipher cipher;
+
+  private KuberHeader header;
+
+  /** Data key of the file being read. */
+  private byte[] key;
+
+  public static final String THREADS_OPTION = "--threads";
+
+  public static final String MMAP_OPTION = "--mmap";
+
+  public static final String AES_OPTION = "--aes";
+
+  /** Files of a directory whose headers are read and keys unwrapped together. */
+  public static final String KEY_BATCH_SIZE_KEY = "kuber.decrypt.key.batch.size";
+
+  public static final int KEY_BATCH_SIZE_DEFAULT = 64;
+
   public int run(String[] args) throws Exception {
+    ToolArgs toolArgs = new ToolArgs(args);
+    int threads = toolArgs.getInt(THREADS_OPTION, 1);
+    boolean mmap = toolArgs.hasFlag(MMAP_OPTION);
+    boolean aes = toolArgs.hasFlag(AES_OPTION);
+    args = toolArgs.remaining();
     if (args.length < 2) {
-      System.err.println("HdfsWriter [hdfs input path] [local output path]");
+      System.err.println("HdfsWriter [hdfs input file or directory] [local output path] [--threads n | --mmap | --aes]");
+      return 1;
+    }
+    if (mmap && threads > 1) {
+      // The parallel engine reads through streams, not mapped windows.
+      System.err.println(MMAP_OPTION + " cannot be combined with " + THREADS_OPTION);
       return 1;
     }
 
     // Get the filename out of the file path
     String filename = args[0].substring(args[0].lastIndexOf('/') + 1,args[0].length());
 
-    String dest = args[1];
-    // Create the destination path including the filename.
-    if (dest.charAt(dest.length() - 1) != '/') {
-      dest = dest + "/" + filename;
-    } else {
-      dest = dest + filename;
-    }
-
     Path inputPath = new Path(args[0]);
 
     Configuration conf = getConf();
@@ -54,65 +82,293 @@ public class Decrypt extends Configured implements Tool {
       System.out.println("File " + filename + " does not exists!");
       return 1;
     }
-    InputStream is = fs.open(inputPath);
 
-    File outputPath = new File(dest+"_new");
+    // A directory is a bulk restore: each of its files goes into the output
+    // path under its own name.
+    FileStatus[] inputs = {fs.getFileStatus(inputPath)};
+    if (inputs[0].isDirectory()) {
+      inputs = fs.listStatus(inputPath, new PathFilter() {
+        @Override
+        public boolean accept(Path path) {
+          return !path.getName().startsWith(".");
+        }
+      });
+      Arrays.sort(inputs);
+    }
+    List<FileStatus> files = new ArrayList<FileStatus>();
+    for (FileStatus status : inputs) {
+      if (status.isFile()) {
+        files.add(status);
+      }
+    }
+
+    int batchSize = Math.max(1, conf.getInt(KEY_BATCH_SIZE_KEY, KEY_BATCH_SIZE_DEFAULT));
+    for (int from = 0; from < files.size(); from += batchSize) {
+      List<FileStatus> batch = files.subList(from, Math.min(files.size(), from + batchSize));
+      int code = aes
+          ? decryptAES(fs, batch, args[1])
+          : decryptBatch(fs, batch, args[1], threads, mmap);
+      if (code != 0) {
+        return code;
+      }
+    }
+    return 0;
+  }
+
+  /** The local output file of an input file: its name with "_new" appended. */
+  private static File outputFile(String dest, FileStatus status) {
+    return new File(dest, status.getPath().getName() + "_new");
+  }
+
+  private int decryptAES(FileSystem fs, List<FileStatus> batch, String dest)
+      throws IOException {
+    for (FileStatus status : batch) {
+      System.out.println("\nKuber AES decryption started!\n");
+      FSDataInputStream is = fs.open(status.getPath());
+      try {
+        decryptAES(is, outputFile(dest, status));
+      } finally {
+        is.close();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Decrypts a batch of files: their headers are read first, so that the
+   * data keys of the whole batch are unwrapped together, through the key
+   * cache and concurrently; see {@link KuberKeyManager#getFileKeys}.
+   */
+  protected int decryptBatch(FileSystem fs, List<FileStatus> batch, String dest, int threads,
+      boolean mmap) throws Exception {
+    Configuration conf = getConf();
+    List<FSDataInputStream> streams = new ArrayList<FSDataInputStream>(batch.size());
+    try {
+      // Files written before the Kuber format have no header. They are raw
+      // data under the fixed key and nonce of Config, with the keystream
+      // restarted every 4096 bytes; see newCipher().
+      List<KuberHeader> headers = new ArrayList<KuberHeader>(batch.size());
+      for (FileStatus status : batch) {
+        FSDataInputStream is = fs.open(status.getPath());
+        streams.add(is);
+        headers.add(KuberHeader.read(is));
+      }
+      List<byte[]> keys = KuberKeyManager.getFileKeys(conf, headers);
+
+      for (int i = 0; i < batch.size(); i++) {
+        header = headers.get(i);
+        key = keys.get(i);
+        keys.set(i, null);
+        FSDataInputStream is = streams.get(i);
+        try {
+          int code = decryptFile(is, batch.get(i), outputFile(dest, batch.get(i)), threads,
+              mmap);
+          if (code != 0) {
+            return code;
+          }
+        } finally {
+          is.close();
+        }
+      }
+    } finally {
+      for (FSDataInputStream is : streams) {
+        is.close();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Decrypts one file, whose header and data key are set and whose stream is
+   * just past the header.
+   */
+  protected int decryptFile(FSDataInputStream is, FileStatus status, File outputPath,
+      int threads, boolean mmap) throws Exception {
+    Configuration conf = getConf();
+    long dataOffset = 0;
+    long dataLength = status.getLen();
+    if (header == null) {
+      is.seek(0);
+    } else {
+      dataOffset = header.getLength();
+      dataLength = header.hasChunkIndex()
+          ? ChunkIndex.read(is, status.getLen()).getDataLength()
+          : status.getLen() - dataOffset;
+    }
+
+    if (header != null && header.isAuthenticated()) {
+      System.out.println("\nKuber authenticated decryption started!\n");
+      return openChunks(is, dataOffset, dataLength, outputPath, Math.max(threads, 1));
+    }
+
+    if (threads > 1) {
+      System.out.println("\nKuber parallel decryption started!\n");
+      return decryptRanges(is, status, dataOffset, dataLength, outputPath, threads);
+    }
+
+    if (mmap) {
+      System.out.println("\nKuber mapped decryption started!\n");
+      MappedFileCrypto mapped = new MappedFileCrypto(conf.getInt(
+          MappedFileCrypto.WINDOW_SIZE_KEY, MappedFileCrypto.WINDOW_SIZE_DEFAULT));
+      mapped.transformTo(is, dataLength, newCipher(), outputPath);
+      return 0;
+    }
+
     //IOUtils.copyBytes(is, new FileOutputStream(new File(destPath)),2048, true);
-    OutputStream os= new BufferedOutputStream(new FileOutputStream(outputPath));
+    OutputStream os= new FileOutputStream(outputPath);
     if (outputPath.exists()) {
       System.err.println("Output path exists!");
-//      is.close();
-//      os.close();
-//      return 1;
+//        is.close();
+//        os.close();
+//        return 1;
 
     }
 
     System.out.println("\nKuber decryption started!\n");
 
+    // One cipher context per file: the block counter runs on across chunks.
+    cipher = newCipher();
 
-    byte[] b = new byte[1024*4];
-
-    int numBytes = 0;
-
-    while ((numBytes = is.read(b)) > 0) {
-      byte[] block = Arrays.copyOfRange(b, 0, numBytes);
-      byte[] decrypted = decrypt(block);
-      os.write(decrypted);
+    try {
+      new PipelinedTransfer(conf).transfer(new BoundedInputStream(is, dataLength), os,
+          new PipelinedTransfer.Transform() {
+            @Override
+            public void apply(byte[] buf, int off, int len) {
+              cipher.decrypt(buf, off, len);
+            }
+          });
+    } finally {
+      os.close();
     }
-    is.close();
-    os.close();
+    return 0;
+  }
 
+  /**
+   * Decrypts the data with concurrent positioned reads over block-aligned
+   * ranges, each range written to its own position of the local file.
+   */
+  protected int decryptRanges(FSDataInputStream is, FileStatus status, long dataOffset,
+      long dataLength, File outputPath, int threads) throws Exception {
+    int segmentSize = ParallelCryptoEngine.alignToBlock(
+        getConf().getInt(ParallelCryptoEngine.SEGMENT_SIZE_KEY,
+            ParallelCryptoEngine.SEGMENT_SIZE_DEFAULT),
+        status.getBlockSize());
+    ParallelCryptoEngine engine = new ParallelCryptoEngine(threads, segmentSize,
+        new ParallelCryptoEngine.CipherFactory() {
+          @Override
+          public StreamCipher newCipher() {
+            return Decrypt.this.newCipher();
+          }
+        });
 
+    RandomAccessFile raf = new RandomAccessFile(outputPath, "rw");
+    try {
+      raf.setLength(dataLength);
+      engine.transformRanges(is, dataOffset, dataLength, raf.getChannel());
+    } finally {
+      raf.close();
+    }
     return 0;
   }
 
-
+  /**
+   * Verifies and decrypts sealed chunks on threads threads. The output is
+   * removed if any chunk fails authentication.
+   */
+  protected int openChunks(FSDataInputStream is, long dataOffset, long dataLength,
+      File outputPath, int threads) throws IOException {
+    SegmentedAead aead = header.newAead(key);
+    RandomAccessFile raf = new RandomAccessFile(outputPath, "rw");
+    boolean done = false;
+    try {
+      raf.setLength(aead.getPlainLength(dataLength));
+      aead.openRanges(is, dataOffset, dataLength, raf.getChannel(), threads);
+      done = true;
+    } finally {
+      raf.close();
+      if (!done) {
+        outputPath.delete();
+      }
+    }
+    return 0;
+  }
 
   protected byte[] decryptAES(byte[] content) {
     Config conf = new Config();
     try {
       AesCtr cip = new AesCtr(conf.getKey());
-      byte[] decData = cip.decrypt(content,"hahahahahahahaahahaha");
-      return decData;
+      try {
+        return cip.decrypt(content,conf.getPassword());
+      } finally {
+        cip.close();
+      }
     } catch (Exception e) {
       throw new MaskRuntimeException(e);
     }
   }
 
 
+  /**
+   * Decrypts a stream written by {@link Encrypt#encryptAES(InputStream,
+   * OutputStream)} into outputPath. The output is removed if the MAC does not
+   * match.
+   */
+  protected void decryptAES(InputStream in, File outputPath) throws IOException {
+    InputStream aes = AesCtr.decryptingStream(in, new Config().getPassword(getConf()));
+    boolean done = false;
+    try {
+      OutputStream os = new FileOutputStream(outputPath);
+      try {
+        new PipelinedTransfer(getConf()).transfer(aes, os, PipelinedTransfer.IDENTITY);
+        done = true;
+      } finally {
+        os.close();
+      }
+    } finally {
+      // Gives the stream's cipher and MAC back to the pool.
+      aes.close();
+      if (!done) {
+        outputPath.delete();
+      }
+    }
+  }
+
   protected byte[] decrypt(byte[] cipherIn) {
-    Config conf = new Config();
+    if (cipher == null) {
+      cipher = newCipher();
+    }
 
     byte[] decrypted = new byte[cipherIn.length];
+    cipher.process(cipherIn, 0, decrypted, 0, cipherIn.length);
+
+    return decrypted;
+  }
 
+  /**
+   * The data key of the file with header, from the key layer: see
+   * {@link KuberKeyManager#getFileKeys}.
+   */
+  protected static byte[] getKey(Configuration conf, KuberHeader header) throws IOException {
+    return KuberKeyManager.getFileKeys(conf, Collections.singletonList(header)).get(0);
+  }
+
+  /**
+   * A cipher at the start of the data: for the header and data key of the
+   * file being read, or with the fixed key and nonce of {@link Config},
+   * restarted every 4096 bytes as the original tool wrote them, when there is
+   * none.
+   */
+  protected StreamCipher newCipher() {
+    Config conf = new Config();
+    if (header != null) {
+      return header.newCipher(getConf(), key);
+    }
     try {
-      ChaCha20 cipher = new ChaCha20(conf.getKey(), conf.getNonce(), conf.getCounter());
-      cipher.decrypt(decrypted, cipherIn, cipherIn.length);
+      return new LegacyChunkCipher(
+          new ChaCha20(conf.getKey(), conf.getNonce(), conf.getCounter()));
     } catch (Exception e) {
-      e.printStackTrace(System.err);
+      throw new MaskRuntimeException(e);
     }
-
-    return decrypted;
   }
 
   public static void main( String[] args ) throws Exception {
@@ -1,20 +1,22 @@
 package com.databps.bigdaf.kuber;
 
-import com.databps.bigdaf.kuber.algorithms.ChaCha20;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.crypto.CryptoInputStream;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.util.Tool;
-import org.apache.hadoop.util.ToolRunner;
 
 /**
+ * Reads a file of an HDFS encryption zone into a local file; the DFS client
+ * decrypts it with the key the KMS gives for the file's EDEK.
+ *
  * @author merlin
  * @create 2018-03-08 下午5:34
  */
@@ -23,8 +25,8 @@ public class DecryptKms extends Configured implements Tool {
   public static final String FS_PARAM_NAME = "fs.defaultFS";
 
   public int run(String[] args) throws Exception {
-    if (args.length < 2) {
-      System.err.println("HdfsWriter [hdfs input path] [local output path]");
+    if (args.length < 3) {
+      System.err.println("HdfsWriter [hdfs input path] [local output path] [fs]");
       return 1;
     }
 
@@ -43,7 +45,7 @@ public class DecryptKms extends Configured implements Tool {
 
     Configuration conf = getConf();
     conf.set(FS_PARAM_NAME,args[2]);
-    conf.set("dfs.encryption.key.provider.uri","kms://http@mot1:16100/kms");
+    EncryptKms.setKeyProvider(conf);
     System.out.println("configured filesystem = " + conf.get(FS_PARAM_NAME));
 
     FileSystem fs = FileSystem.get(conf);
@@ -53,37 +55,38 @@ public class DecryptKms extends Configured implements Tool {
       return 1;
     }
 
-    InputStream is = fs.open(inputPath);
-
-    File outputPath = new File(dest+"_new");
+    if (!fs.getFileStatus(inputPath).isEncrypted()) {
+      System.err.println(inputPath + " is not in an encryption zone!");
+      return 1;
+    }
 
-    OutputStream os = new BufferedOutputStream(new FileOutputStream(outputPath));
+    FSDataInputStream is = fs.open(inputPath);
 
+    File outputPath = new File(dest+"_new");
 
     if (outputPath.exists()) {
       System.err.println("Output path exists!");
-//      is.close();
-//      os.close();
-//      return 1;
-
     }
 
-    System.out.println("\nno Kuber decryption started!\n");
+    OutputStream os = new FileOutputStream(outputPath);
 
-    byte[] b = new byte[1024*100];
+    System.out.println("\nHDFS transparent decryption started!\n");
 
-    int numBytes = 0;
-
-    while ((numBytes = is.read(b)) > 0) {
-      byte[] block = Arrays.copyOfRange(b, 0, numBytes);
-      os.write(block, 0, numBytes);
+    try {
+      checkDecrypted(is);
+      new PipelinedTransfer(conf).transfer(is, os, PipelinedTransfer.IDENTITY);
+    } finally {
+      is.close();
+      os.close();
     }
 
-    is.close();
-    os.close();
-
     return 0;
   }
 
-
+  private static void checkDecrypted(FSDataInputStream is) throws IOException {
+    if (!(is.getWrappedStream() instanceof CryptoInputStream)) {
+      throw new IOException("The DFS client does not decrypt the input; check "
+          + DFSConfigKeys.DFS_ENCRYPTION_KEY_PROVIDER_URI);
+    }
+  }
 }
@@ -2,9 +2,10 @@ package com.databps.bigdaf.kuber;
 
 import com.databps.bigdaf.kuber.algorithms.AesCtr;
 import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
 import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
-import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,33 +42,57 @@ public class Encrypt extends Configured implements Tool {
 
   public static final String FS_PARAM_NAME = "fs.defaultFS";
 
+  private StreamCipher cipher;
+
+  private KuberHeader header;
+
+  /** Data key of the file being written. */
+  private byte[] key;
+
+  public static final String THREADS_OPTION = "--threads";
+
+  public static final String MMAP_OPTION = "--mmap";
+
+  public static final String AES_OPTION = "--aes";
+
   public int run(String[] args) throws Exception {
+    ToolArgs toolArgs = new ToolArgs(args);
+    int threads = toolArgs.getInt(THREADS_OPTION, 1);
+    boolean mmap = toolArgs.hasFlag(MMAP_OPTION);
+    boolean aes = toolArgs.hasFlag(AES_OPTION);
+    args = toolArgs.remaining();
     if (args.length < 2) {
-      System.err.println("HdfsWriter [local input path] [hdfs output path]");
+      System.err.println("HdfsWriter [local input file or directory] [hdfs output path] [--threads n | --mmap | --aes]");
       return 1;
     }
-
-    // Get the filename out of the file path
-    String filename = args[0].substring(args[0].lastIndexOf('/') + 1,args[0].length());
-
-    String dest = args[1];
-    // Create the destination path including the filename.
-    if (dest.charAt(dest.length() - 1) != '/') {
-      dest = dest + "/" + filename;
-    } else {
-      dest = dest + filename;
+    if (mmap && threads > 1) {
+      // The parallel engine reads through streams, not mapped windows.
+      System.err.println(MMAP_OPTION + " cannot be combined with " + THREADS_OPTION);
+      return 1;
     }
 
     String localInputPath = args[0];
 
     File inputPath = new File(localInputPath);
-    Path outputPath = new Path(dest);
 
     if(!inputPath.exists()){
       System.err.println("Input file does not exist!");
       return 1;
     }
 
+    // A directory is a bulk upload: each of its files goes into the output
+    // path under its own name.
+    File[] inputs = {inputPath};
+    if (inputPath.isDirectory()) {
+      inputs = inputPath.listFiles(new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+          return file.isFile();
+        }
+      });
+      Arrays.sort(inputs);
+    }
+
     Configuration conf = getConf();
     conf.set(FS_PARAM_NAME,args[2]);
 
@@ -75,6 +100,37 @@ public class Encrypt extends Configured implements Tool {
 
     FileSystem fs = FileSystem.get(conf);
 
+    KuberKeyManager keys = aes ? null : KuberKeyManager.get(conf);
+    if (keys != null && inputs.length > 1) {
+      // The EDEKs of the next files are generated while this one is written.
+      keys.warmUp(conf.get(KuberHeader.KEY_ID_KEY, KuberHeader.KEY_ID_DEFAULT), inputs.length);
+    }
+
+    for (File input : inputs) {
+      String dest = args[1];
+      // Create the destination path including the filename.
+      if (dest.charAt(dest.length() - 1) != '/') {
+        dest = dest + "/" + input.getName();
+      } else {
+        dest = dest + input.getName();
+      }
+      int code = encryptFile(conf, fs, keys, input, new Path(dest), threads, mmap, aes);
+      if (code != 0) {
+        return code;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Encrypts one local file into outputPath.
+   * @param keys the key manager, or null for the fixed key of {@link Config}.
+   */
+  protected int encryptFile(Configuration conf, FileSystem fs, KuberKeyManager keys,
+      File inputPath, Path outputPath, int threads, boolean mmap, boolean aes)
+      throws IOException {
+    String localInputPath = inputPath.getPath();
+
 //    fs.copyFromLocalFile(new Path(localInputPath),new Path(dest));
 
     if (fs.exists(outputPath)) {
@@ -82,25 +138,84 @@ public class Encrypt extends Configured implements Tool {
       return 1;
     }
 
-    InputStream is = new BufferedInputStream(new FileInputStream(localInputPath));
-    OutputStream os = fs.create(outputPath);
-
-    System.out.println("\nKuber encryption started!\n");
-
-    //conf.getInt("io.file.buffer.size", 4096)
-    byte[] b = new byte[1024*4];
-
-    int numBytes = 0;
-
-    while ((numBytes = is.read(b)) > 0) {
-      byte[] block = Arrays.copyOfRange(b, 0, numBytes);
-      byte[] encrypted = encrypt(block);
-      os.write(encrypted);
+    if (aes) {
+      System.out.println("\nKuber AES encryption started!\n");
+      InputStream is = new FileInputStream(localInputPath);
+      try {
+        encryptAES(is, fs.create(outputPath));
+      } finally {
+        is.close();
+      }
+      return 0;
     }
 
-    is.close();
-    os.close();
+    // Every file gets its own header and nonce, and with a key provider its
+    // own data key; see newCipher().
+    if (keys != null) {
+      KuberKeyManager.DataKey dataKey = keys.newDataKey(
+          conf.get(KuberHeader.KEY_ID_KEY, KuberHeader.KEY_ID_DEFAULT));
+      header = KuberHeader.create(conf, dataKey.getEncryptedKey());
+      key = dataKey.getKey();
+      dataKey.destroy();
+    } else {
+      header = KuberHeader.create(conf);
+      key = new Config().getKey();
+    }
 
+    InputStream is = null;
+    OutputStream os = fs.create(outputPath);
+    try {
+      header.write(os);
+      long length;
+      SegmentedAead aead = null;
+
+      if (header.isAuthenticated()) {
+        System.out.println("\nKuber authenticated encryption started!\n");
+        aead = header.newAead(key);
+        is = new FileInputStream(localInputPath);
+        length = aead.seal(is, os, Math.max(threads, 1));
+      } else if (mmap) {
+        System.out.println("\nKuber mapped encryption started!\n");
+        MappedFileCrypto mapped = new MappedFileCrypto(conf.getInt(
+            MappedFileCrypto.WINDOW_SIZE_KEY, MappedFileCrypto.WINDOW_SIZE_DEFAULT));
+        length = mapped.transformFrom(inputPath, newCipher(), os);
+      } else if (threads > 1) {
+        System.out.println("\nKuber encryption started!\n");
+        ParallelCryptoEngine engine = new ParallelCryptoEngine(threads,
+            conf.getInt(ParallelCryptoEngine.SEGMENT_SIZE_KEY,
+                ParallelCryptoEngine.SEGMENT_SIZE_DEFAULT),
+            new ParallelCryptoEngine.CipherFactory() {
+              @Override
+              public StreamCipher newCipher() {
+                return Encrypt.this.newCipher();
+              }
+            });
+        is = new FileInputStream(localInputPath);
+        length = engine.transform(is, os);
+      } else {
+        System.out.println("\nKuber encryption started!\n");
+        // One cipher context per file: the block counter runs on across chunks.
+        cipher = newCipher();
+        is = new FileInputStream(localInputPath);
+        length = new PipelinedTransfer(conf).transfer(is, os, new PipelinedTransfer.Transform() {
+          @Override
+          public void apply(byte[] buf, int off, int len) {
+            cipher.encrypt(buf, off, len);
+          }
+        });
+      }
+
+      if (header.hasChunkIndex()) {
+        long dataOffset = header.getLength();
+        ChunkIndex index = aead != null
+            ? ChunkIndex.build(dataOffset, length, aead)
+            : ChunkIndex.build(dataOffset, length, header.getChunkSize());
+        index.write(os, dataOffset + index.getDataLength());
+      }
+    } finally {
+      IOUtils.closeStream(is);
+      os.close();
+    }
 
     return 0;
   }
@@ -111,8 +226,11 @@ public class Encrypt extends Configured implements Tool {
     Config conf = new Config();
     try {
       AesCtr cip = new AesCtr(conf.getKey());
-      byte[] encData = cip.encrypt(content,"hahahahahahahaahahaha");
-      return encData;
+      try {
+        return cip.encrypt(content,conf.getPassword());
+      } finally {
+        cip.close();
+      }
     } catch (Exception e) {
       throw new MaskRuntimeException(e);
     }
@@ -121,19 +239,52 @@ public class Encrypt extends Configured implements Tool {
 
 
 
+  /**
+   * Encrypts in into out, which is closed, in the streaming password mode of
+   * {@link AesCtr}: the keys are derived once for the file and the data runs
+   * at AES-CTR speed.
+   */
+  protected void encryptAES(InputStream in, OutputStream out) throws IOException {
+    OutputStream aes;
+    try {
+      aes = AesCtr.encryptingStream(out, new Config().getPassword(getConf()));
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+    try {
+      new PipelinedTransfer(getConf()).transfer(in, aes, PipelinedTransfer.IDENTITY);
+    } finally {
+      aes.close();
+    }
+  }
+
   protected byte[] encrypt(byte[] plain) {
-    Config conf = new Config();
+    if (cipher == null) {
+      cipher = newCipher();
+    }
 
     byte[] encrypted = new byte[plain.length];
+    cipher.process(plain, 0, encrypted, 0, plain.length);
+
+    return encrypted;
+  }
 
+  /**
+   * A cipher at the start of the data: for the header and data key of the
+   * file being written, or with the fixed key and nonce of {@link Config}
+   * when there is none.
+   */
+  protected StreamCipher newCipher() {
+    Config conf = new Config();
+    if (header != null) {
+      return header.newCipher(getConf(), key);
+    }
     try {
-      ChaCha20 cipher = new ChaCha20(conf.getKey(), conf.getNonce(), conf.getCounter());
-      cipher.encrypt(encrypted, plain, plain.length);
+      return new ChaCha20(conf.getKey(), conf.getNonce(), conf.getCounter());
     } catch (Exception e) {
-      e.printStackTrace(System.err);
+      throw new MaskRuntimeException(e);
     }
-
-    return encrypted;
   }
 
   public static void main( String[] args ) throws Exception {
@@ -1,20 +1,27 @@
 package com.databps.bigdaf.kuber;
 
-import com.databps.bigdaf.kuber.algorithms.ChaCha20;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.crypto.CryptoOutputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.protocol.EncryptionZone;
 import org.apache.hadoop.util.Tool;
-import org.apache.hadoop.util.ToolRunner;
 
 /**
+ * Writes a local file into an HDFS encryption zone. The DFS client encrypts
+ * it with the zone's key from the KMS (transparent encryption); Kuber only
+ * checks the zone and copies the bytes.
+ *
  * @author merlin
  * @create 2018-03-08 下午5:35
  */
@@ -22,9 +29,18 @@ public class EncryptKms extends Configured implements Tool {
 
   public static final String FS_PARAM_NAME = "fs.defaultFS";
 
+  /** Creates the zone with this key if the output directory is not in one. */
+  public static final String KEY_OPTION = "--key";
+
+  /** KMS used unless {@value DFSConfigKeys#DFS_ENCRYPTION_KEY_PROVIDER_URI} is set. */
+  public static final String KEY_PROVIDER_URI_DEFAULT = "kms://http@mot1:16100/kms";
+
   public int run(String[] args) throws Exception {
-    if (args.length < 2) {
-      System.err.println("HdfsWriter [local input path] [hdfs output path]");
+    ToolArgs toolArgs = new ToolArgs(args);
+    String keyName = toolArgs.getOption(KEY_OPTION, null);
+    args = toolArgs.remaining();
+    if (args.length < 3) {
+      System.err.println("HdfsWriter [local input path] [hdfs output path] [fs] [--key name]");
       return 1;
     }
 
@@ -51,36 +67,84 @@ public class EncryptKms extends Configured implements Tool {
 
     Configuration conf = getConf();
     conf.set(FS_PARAM_NAME,args[2]);
-    conf.set("dfs.encryption.key.provider.uri","kms://http@mot1:16100/kms");
+    setKeyProvider(conf);
 
     System.out.println("configured filesystem = " + conf.get(FS_PARAM_NAME));
 
     FileSystem fs = FileSystem.get(conf);
 
+    if (!(fs instanceof DistributedFileSystem)) {
+      System.err.println(fs.getUri() + " is not HDFS; encryption zones need HDFS!");
+      return 1;
+    }
+
     if (fs.exists(outputPath)) {
       System.err.println("Output path exists!");
       return 1;
     }
 
-    InputStream is = new BufferedInputStream(new FileInputStream(localInputPath));
-    OutputStream os = fs.create(outputPath);
-
-    System.out.println("\nno Kuber encryption started!\n");
+    EncryptionZone zone = getZone(fs, conf, outputPath.getParent(), keyName);
+    if (zone == null) {
+      System.err.println(outputPath.getParent() + " is not in an encryption zone; "
+          + "create one with " + KEY_OPTION + " name");
+      return 1;
+    }
+    System.out.println("encryption zone = " + zone.getPath() + ", key = " + zone.getKeyName()
+        + ", suite = " + zone.getSuite());
 
-    byte[] b = new byte[1024*100];
+    InputStream is = new FileInputStream(localInputPath);
+    FSDataOutputStream os = fs.create(outputPath);
 
-    int numBytes = 0;
+    System.out.println("\nHDFS transparent encryption started!\n");
 
-    while ((numBytes = is.read(b)) > 0) {
-      byte[] block = Arrays.copyOfRange(b, 0, numBytes);
-      os.write(block, 0, numBytes);
+    try {
+      checkEncrypted(os);
+      new PipelinedTransfer(conf).transfer(is, os, PipelinedTransfer.IDENTITY);
+    } finally {
+      is.close();
+      os.close();
     }
 
-    is.close();
-    os.close();
-
     return 0;
   }
 
+  /**
+   * Points the DFS client at {@link #KEY_PROVIDER_URI_DEFAULT} unless conf
+   * names a key provider.
+   */
+  static void setKeyProvider(Configuration conf) {
+    if (conf.getTrimmed(DFSConfigKeys.DFS_ENCRYPTION_KEY_PROVIDER_URI, "").isEmpty()) {
+      conf.set(DFSConfigKeys.DFS_ENCRYPTION_KEY_PROVIDER_URI, KEY_PROVIDER_URI_DEFAULT);
+    }
+  }
+
+  /**
+   * @return the encryption zone of dir, created with key keyName if dir is
+   * not in one and keyName is set, or null.
+   */
+  static EncryptionZone getZone(FileSystem fs, Configuration conf, Path dir, String keyName)
+      throws IOException {
+    HdfsAdmin admin = new HdfsAdmin(fs.getUri(), conf);
+    if (fs.exists(dir)) {
+      EncryptionZone zone = admin.getEncryptionZoneForPath(dir);
+      if (zone != null || keyName == null) {
+        return zone;
+      }
+    } else if (keyName == null) {
+      return null;
+    } else {
+      fs.mkdirs(dir);
+    }
+    // HDFS only turns empty directories into zones and reports otherwise.
+    admin.createEncryptionZone(dir, keyName);
+    System.out.println("created encryption zone " + dir + " with key " + keyName);
+    return admin.getEncryptionZoneForPath(dir);
+  }
 
-}
\ No newline at end of file
+  private static void checkEncrypted(FSDataOutputStream os) throws IOException {
+    if (!(os.getWrappedStream() instanceof CryptoOutputStream)) {
+      throw new IOException("The DFS client does not encrypt the output; check "
+          + DFSConfigKeys.DFS_ENCRYPTION_KEY_PROVIDER_URI);
+    }
+  }
+}
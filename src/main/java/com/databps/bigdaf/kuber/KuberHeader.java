@@ -0,0 +1,334 @@
+package com.databps.bigdaf.kuber;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import com.databps.bigdaf.kuber.algorithms.CipherProviders;
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
+import com.databps.bigdaf.kuber.algorithms.NonceService;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension.EncryptedKeyVersion;
+
+/**
+ * Header of a Kuber encrypted file.
+ * <p/>
+ * A Kuber file is the header, the encrypted data and, when
+ * {@link #hasChunkIndex()}, a trailing {@link ChunkIndex}. All numbers are
+ * big-endian:
+ * <pre>
+ *   magic        4 bytes  "KUBR"
+ *   version      1 byte
+ *   algorithm    1 byte   {@link #ALGORITHM_CHACHA20},
+ *                         {@link #ALGORITHM_CHACHA20_POLY1305} or
+ *                         {@link #ALGORITHM_AES_CTR}
+ *   flags        1 byte   {@link #FLAG_CHUNK_INDEX}
+ *   nonce length 1 byte
+ *   chunk size   4 bytes
+ *   nonce        nonce length bytes, random per file
+ *   key id       2 byte length + modified UTF-8 bytes, as DataOutput.writeUTF
+ * </pre>
+ * With {@link #FLAG_WRAPPED_KEY} (version 2) the file has its own data key,
+ * stored encrypted by the master key named by the key id, see
+ * {@link KuberKeyManager}:
+ * <pre>
+ *   key version  as DataOutput.writeUTF, the master key version
+ *   key iv       1 byte length + bytes
+ *   wrapped key  2 byte length + bytes
+ * </pre>
+ * For {@link #ALGORITHM_CHACHA20} and {@link #ALGORITHM_AES_CTR} the data is
+ * a single keystream starting at block 0 under the file's nonce, so byte i of
+ * the data can be processed on its own by seeking the cipher to i. For
+ * {@link #ALGORITHM_CHACHA20_POLY1305} the data is a sequence of chunks sealed
+ * one by one, see {@link SegmentedAead}. The chunk size is the plaintext size
+ * of a chunk.
+ */
+public class KuberHeader {
+
+  public static final byte[] MAGIC = {'K', 'U', 'B', 'R'};
+
+  /** 2 added {@link #FLAG_WRAPPED_KEY}. */
+  public static final int VERSION = 2;
+
+  /** ChaCha20 with the 12 byte IETF nonce. */
+  public static final int ALGORITHM_CHACHA20 = 1;
+
+  /** Chunks sealed with ChaCha20-Poly1305, see {@link SegmentedAead}. */
+  public static final int ALGORITHM_CHACHA20_POLY1305 = 2;
+
+  /** AES-256-CTR, see {@link com.databps.bigdaf.kuber.algorithms.JceAesCtrProvider}. */
+  public static final int ALGORITHM_AES_CTR = 3;
+
+  private static final String[] ALGORITHM_NAMES = {null, "chacha20", "chacha20-poly1305",
+      "aes-ctr"};
+
+  /** A {@link ChunkIndex} follows the data. */
+  public static final int FLAG_CHUNK_INDEX = 1;
+
+  /** The header carries the file's encrypted data key. */
+  public static final int FLAG_WRAPPED_KEY = 2;
+
+  public static final String CHUNK_SIZE_KEY = "kuber.format.chunk.size";
+
+  public static final int CHUNK_SIZE_DEFAULT = 4 * 1024 * 1024;
+
+  public static final String CHUNK_INDEX_KEY = "kuber.format.chunk.index";
+
+  public static final boolean CHUNK_INDEX_DEFAULT = true;
+
+  /**
+   * "chacha20", "chacha20-poly1305", "aes-ctr", or "auto" for the algorithm
+   * of the fastest {@link CipherProviders} provider on this host.
+   */
+  public static final String ALGORITHM_KEY = "kuber.format.algorithm";
+
+  public static final String ALGORITHM_DEFAULT = "chacha20";
+
+  public static final String KEY_ID_KEY = "kuber.key.id";
+
+  public static final String KEY_ID_DEFAULT = "default";
+
+  private final int version;
+  private final int algorithm;
+  private final int flags;
+  private final int chunkSize;
+  private final byte[] nonce;
+  private final String keyId;
+  private final EncryptedKeyVersion encryptedKey;
+
+  public KuberHeader(int version, int algorithm, int flags, int chunkSize, byte[] nonce,
+      String keyId) {
+    this(version, algorithm, flags, chunkSize, nonce, keyId, null);
+  }
+
+  /**
+   * @param encryptedKey the file's data key encrypted by master key keyId,
+   *     or null if the file is encrypted under the fixed key.
+   */
+  public KuberHeader(int version, int algorithm, int flags, int chunkSize, byte[] nonce,
+      String keyId, EncryptedKeyVersion encryptedKey) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+    }
+    if (nonce.length > 0xff) {
+      throw new IllegalArgumentException("Nonce too long: " + nonce.length);
+    }
+    this.version = version;
+    this.algorithm = algorithm;
+    this.flags = flags;
+    this.chunkSize = chunkSize;
+    this.nonce = nonce.clone();
+    this.keyId = keyId;
+    this.encryptedKey = encryptedKey;
+    if ((flags & FLAG_WRAPPED_KEY) != 0 != (encryptedKey != null)) {
+      throw new IllegalArgumentException("Wrapped key flag does not match the key");
+    }
+  }
+
+  /**
+   * A header for a new file: current version, a nonce never used before
+   * for the key in this process, and algorithm, chunk size, chunk index and
+   * key id taken from conf.
+   */
+  public static KuberHeader create(Configuration conf) {
+    return create(conf, null);
+  }
+
+  /**
+   * As {@link #create(Configuration)}, for a file whose data key is
+   * encryptedKey; its master key becomes the key id.
+   */
+  public static KuberHeader create(Configuration conf, EncryptedKeyVersion encryptedKey) {
+    String keyId = encryptedKey != null ? encryptedKey.getEncryptionKeyName()
+        : conf.get(KEY_ID_KEY, KEY_ID_DEFAULT);
+    byte[] nonce = NonceService.getDefault().nextNonce(keyId, ChaCha20.NONCE_SIZE_IETF);
+    String name = conf.getTrimmed(ALGORITHM_KEY, ALGORITHM_DEFAULT);
+    if (CipherProviders.AUTO.equalsIgnoreCase(name)) {
+      name = CipherProviders.fastest(conf, null).getAlgorithm();
+    }
+    int algorithm = Arrays.asList(ALGORITHM_NAMES).indexOf(name.toLowerCase());
+    if (algorithm < 1) {
+      throw new IllegalArgumentException("Unknown " + ALGORITHM_KEY + ": " + name);
+    }
+    int flags = conf.getBoolean(CHUNK_INDEX_KEY, CHUNK_INDEX_DEFAULT) ? FLAG_CHUNK_INDEX : 0;
+    if (encryptedKey != null) {
+      flags |= FLAG_WRAPPED_KEY;
+    }
+    return new KuberHeader(VERSION, algorithm, flags,
+        conf.getInt(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT), nonce, keyId, encryptedKey);
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public int getAlgorithm() {
+    return algorithm;
+  }
+
+  /** @return the name of the algorithm as in {@link #ALGORITHM_KEY}. */
+  public String getAlgorithmName() {
+    return ALGORITHM_NAMES[algorithm];
+  }
+
+  /** @return whether the data is sealed chunk by chunk. */
+  public boolean isAuthenticated() {
+    return algorithm == ALGORITHM_CHACHA20_POLY1305;
+  }
+
+  public boolean hasChunkIndex() {
+    return (flags & FLAG_CHUNK_INDEX) != 0;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public byte[] getNonce() {
+    return nonce.clone();
+  }
+
+  public String getKeyId() {
+    return keyId;
+  }
+
+  public boolean hasWrappedKey() {
+    return (flags & FLAG_WRAPPED_KEY) != 0;
+  }
+
+  /**
+   * @return the file's data key encrypted by master key {@link #getKeyId()},
+   * or null if it has none.
+   */
+  public EncryptedKeyVersion getEncryptedKey() {
+    return encryptedKey;
+  }
+
+  /**
+   * @return the size of the header in bytes, which is also the file offset of
+   * the encrypted data.
+   */
+  public int getLength() {
+    return encode().length;
+  }
+
+  /**
+   * A cipher for the data of this file, positioned at its first byte, from
+   * the {@link CipherProviders} provider conf selects for the algorithm.
+   */
+  public StreamCipher newCipher(Configuration conf, byte[] key) {
+    try {
+      return CipherProviders.select(conf, getAlgorithmName()).newCipher(key, nonce);
+    } catch (GeneralSecurityException e) {
+      throw new MaskRuntimeException("Cannot create cipher for key " + keyId, e);
+    }
+  }
+
+  /**
+   * The pure Java cipher for the data of a {@link #ALGORITHM_CHACHA20} file,
+   * positioned at its first byte.
+   */
+  public ChaCha20 newCipher(byte[] key) {
+    try {
+      return new ChaCha20(key, nonce, 0);
+    } catch (Exception e) {
+      throw new MaskRuntimeException("Cannot create cipher for key " + keyId, e);
+    }
+  }
+
+  /**
+   * The sealed chunks of this file, for {@link #isAuthenticated()} headers.
+   */
+  public SegmentedAead newAead(byte[] key) {
+    return new SegmentedAead(key, nonce, chunkSize);
+  }
+
+  public void write(OutputStream out) throws IOException {
+    out.write(encode());
+  }
+
+  private byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream data = new DataOutputStream(bytes);
+    try {
+      data.write(MAGIC);
+      data.writeByte(version);
+      data.writeByte(algorithm);
+      data.writeByte(flags);
+      data.writeByte(nonce.length);
+      data.writeInt(chunkSize);
+      data.write(nonce);
+      data.writeUTF(keyId);
+      if (encryptedKey != null) {
+        byte[] iv = encryptedKey.getEncryptedKeyIv();
+        byte[] material = encryptedKey.getEncryptedKeyVersion().getMaterial();
+        if (iv.length > 0xff || material.length > 0xffff) {
+          throw new IllegalArgumentException("Wrapped key too long");
+        }
+        data.writeUTF(encryptedKey.getEncryptionKeyVersionName());
+        data.writeByte(iv.length);
+        data.write(iv);
+        data.writeShort(material.length);
+        data.write(material);
+      }
+    } catch (IOException e) {
+      // Only thrown for a key id over 64K bytes.
+      throw new MaskRuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads a header from the start of a file.
+   * @return the header, or null if the file does not start with
+   * {@link #MAGIC}; such files predate the format. In that case an unknown
+   * number of bytes has been consumed from in.
+   * @throws IOException if the header is from a newer version or names an
+   * unknown algorithm, or the file ends inside the header.
+   */
+  public static KuberHeader read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    byte[] magic = new byte[MAGIC.length];
+    try {
+      data.readFully(magic);
+    } catch (EOFException e) {
+      return null;
+    }
+    if (!Arrays.equals(MAGIC, magic)) {
+      return null;
+    }
+    int version = data.readUnsignedByte();
+    if (version > VERSION) {
+      throw new IOException("Unsupported Kuber format version " + version);
+    }
+    int algorithm = data.readUnsignedByte();
+    if (algorithm < 1 || algorithm >= ALGORITHM_NAMES.length) {
+      throw new IOException("Unknown Kuber algorithm id " + algorithm);
+    }
+    int flags = data.readUnsignedByte();
+    byte[] nonce = new byte[data.readUnsignedByte()];
+    int chunkSize = data.readInt();
+    data.readFully(nonce);
+    String keyId = data.readUTF();
+    EncryptedKeyVersion encryptedKey = null;
+    if ((flags & FLAG_WRAPPED_KEY) != 0) {
+      String keyVersion = data.readUTF();
+      byte[] iv = new byte[data.readUnsignedByte()];
+      data.readFully(iv);
+      byte[] material = new byte[data.readUnsignedShort()];
+      data.readFully(material);
+      encryptedKey = EncryptedKeyVersion.createForDecryption(keyId, keyVersion, iv, material);
+    }
+    try {
+      return new KuberHeader(version, algorithm, flags, chunkSize, nonce, keyId, encryptedKey);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Corrupt Kuber header: " + e.getMessage());
+    }
+  }
+}
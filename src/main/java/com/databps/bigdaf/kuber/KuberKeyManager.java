@@ -0,0 +1,451 @@
+package com.databps.bigdaf.kuber;
+
+import com.databps.bigdaf.kuber.algorithms.CipherProvider;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProvider;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension.EncryptedKeyVersion;
+import org.apache.hadoop.crypto.key.KeyProviderFactory;
+
+/**
+ * Per-file data keys wrapped by a master key of a Hadoop {@link KeyProvider},
+ * e.g. a KMS (kms://http@host:16000/kms) or a Java keystore
+ * (jceks://file/path/keys.jceks).
+ * <p/>
+ * Every file is encrypted under a fresh 256-bit data key. Its encrypted form
+ * (EDEK) goes into the {@link KuberHeader}, and reading the file asks the
+ * provider to decrypt it. The master key named by {@link KuberHeader#KEY_ID_KEY}
+ * never leaves the provider.
+ * <p/>
+ * Generating a key is a provider round trip. A writer that announces its
+ * files with {@link #warmUp} has them generated ahead of time: like the KMS
+ * client's ValueQueue, a queue per master key holds up to
+ * {@value #QUEUE_SIZE_KEY} EDEKs. Unlike the ValueQueue of Hadoop 2.7, which
+ * refills only once it is empty, the queue is topped up in the background as
+ * soon as it drops below the low watermark, but never beyond the keys the
+ * announced files still need. Only EDEKs are queued: a file's key is
+ * decrypted when the file takes it, one round trip as when an HDFS client
+ * opens a file in an encryption zone. Without a warm-up, as for a single
+ * file, the key is generated when it is asked for and nothing runs in the
+ * background, since a process that exits after one file could not use it.
+ * <p/>
+ * On the read path, {@link #getFileKeys} serves the keys of many files at
+ * once: a {@link DataKeyCache} keeps decrypted keys, and the keys that are
+ * not cached are decrypted concurrently, each distinct EDEK once. Since every
+ * file has its own data key, restoring n files still asks the provider n
+ * times; the batch runs those calls side by side, and files read again in
+ * the same process cost none.
+ */
+public class KuberKeyManager implements Closeable {
+  private static final Log LOG = LogFactory.getLog(KuberKeyManager.class);
+
+  /** URI of the key provider; unset to use the fixed key of {@link Config}. */
+  public static final String PROVIDER_URI_KEY = "kuber.key.provider.uri";
+
+  public static final String QUEUE_SIZE_KEY = "kuber.key.edek.queue.size";
+
+  public static final int QUEUE_SIZE_DEFAULT = 100;
+
+  /** Fraction of the queue size below which the queue is refilled. */
+  public static final String LOW_WATERMARK_KEY = "kuber.key.edek.low.watermark";
+
+  public static final float LOW_WATERMARK_DEFAULT = 0.3f;
+
+  /** Milliseconds after which unused queued EDEKs are dropped. */
+  public static final String EXPIRY_KEY = "kuber.key.edek.expiry.ms";
+
+  public static final long EXPIRY_DEFAULT = 12 * 60 * 60 * 1000L;
+
+  public static final String FILLER_THREADS_KEY = "kuber.key.edek.filler.threads";
+
+  public static final int FILLER_THREADS_DEFAULT = 2;
+
+  /*
+   * Newer JDKs only deserialize whitelisted classes from JCEKS key entries,
+   * which rejects the key metadata of Hadoop's JavaKeyStoreProvider. Same
+   * whitelist as later Hadoop versions set (HADOOP-15473), unless the user
+   * chose one; it must be set before the JDK reads it on first use.
+   */
+  private static final String JCEKS_SERIAL_FILTER = "jceks.key.serialFilter";
+
+  static {
+    if (System.getProperty(JCEKS_SERIAL_FILTER) == null) {
+      System.setProperty(JCEKS_SERIAL_FILTER, "java.lang.Enum;java.security.KeyRep;"
+          + "java.security.KeyRep$Type;javax.crypto.spec.SecretKeySpec;"
+          + "org.apache.hadoop.crypto.key.JavaKeyStoreProvider$KeyMetadata;!*");
+    }
+  }
+
+  private static final ConcurrentMap<String, KuberKeyManager> MANAGERS =
+      new ConcurrentHashMap<String, KuberKeyManager>();
+
+  /**
+   * A data key and its encrypted form.
+   */
+  public static final class DataKey {
+    private final EncryptedKeyVersion encryptedKey;
+    private final byte[] key;
+
+    DataKey(EncryptedKeyVersion encryptedKey, byte[] key) {
+      this.encryptedKey = encryptedKey;
+      this.key = key;
+    }
+
+    /** @return the EDEK to store with the file. */
+    public EncryptedKeyVersion getEncryptedKey() {
+      return encryptedKey;
+    }
+
+    /** @return a copy of the plaintext data key. */
+    public byte[] getKey() {
+      return key.clone();
+    }
+
+    /** Zeroes the plaintext key. */
+    public void destroy() {
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  /** An EDEK generated ahead of the file that will take it. */
+  private static final class QueuedKey {
+    final EncryptedKeyVersion encryptedKey;
+    final long created = System.currentTimeMillis();
+
+    QueuedKey(EncryptedKeyVersion encryptedKey) {
+      this.encryptedKey = encryptedKey;
+    }
+  }
+
+  /** Ready EDEKs of one master key. */
+  private static final class KeyQueue {
+    final ConcurrentLinkedQueue<QueuedKey> keys = new ConcurrentLinkedQueue<QueuedKey>();
+    final AtomicInteger size = new AtomicInteger();
+    final AtomicBoolean refilling = new AtomicBoolean();
+    /* Files announced by warmUp that have not taken their key yet. */
+    final AtomicInteger demand = new AtomicInteger();
+  }
+
+  private final String uri;
+  private final KeyProviderCryptoExtension provider;
+  private final int queueSize;
+  private final int lowWatermark;
+  private final long expiry;
+  private final DataKeyCache cache;
+  private final ExecutorService fillers;
+  private final ConcurrentMap<String, KeyQueue> queues =
+      new ConcurrentHashMap<String, KeyQueue>();
+  private final AtomicLong generated = new AtomicLong();
+  private final AtomicLong decrypted = new AtomicLong();
+
+  public KuberKeyManager(Configuration conf) throws IOException {
+    this.uri = conf.getTrimmed(PROVIDER_URI_KEY, "");
+    KeyProvider keyProvider;
+    try {
+      keyProvider = uri.isEmpty() ? null : KeyProviderFactory.get(new URI(uri), conf);
+    } catch (URISyntaxException e) {
+      throw new IOException("Invalid " + PROVIDER_URI_KEY + ": " + uri, e);
+    }
+    if (keyProvider == null) {
+      throw new IOException("No key provider for " + PROVIDER_URI_KEY + " '" + uri + "'");
+    }
+    this.provider = KeyProviderCryptoExtension.createKeyProviderCryptoExtension(keyProvider);
+    this.queueSize = Math.max(1, conf.getInt(QUEUE_SIZE_KEY, QUEUE_SIZE_DEFAULT));
+    this.lowWatermark = Math.max(1, (int) (queueSize
+        * conf.getFloat(LOW_WATERMARK_KEY, LOW_WATERMARK_DEFAULT)));
+    this.expiry = conf.getLong(EXPIRY_KEY, EXPIRY_DEFAULT);
+    this.cache = new DataKeyCache(conf);
+    this.fillers = Executors.newFixedThreadPool(
+        Math.max(1, conf.getInt(FILLER_THREADS_KEY, FILLER_THREADS_DEFAULT)),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "kuber-edek-filler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * The process wide manager for the provider of conf, so that its queues
+   * serve every file written by the process.
+   * @return the manager, or null if {@value #PROVIDER_URI_KEY} is not set.
+   */
+  public static KuberKeyManager get(Configuration conf) throws IOException {
+    String uri = conf.getTrimmed(PROVIDER_URI_KEY, "");
+    if (uri.isEmpty()) {
+      return null;
+    }
+    KuberKeyManager manager = MANAGERS.get(uri);
+    if (manager == null) {
+      synchronized (MANAGERS) {
+        manager = MANAGERS.get(uri);
+        if (manager == null) {
+          manager = new KuberKeyManager(conf);
+          MANAGERS.put(uri, manager);
+        }
+      }
+    }
+    return manager;
+  }
+
+  /**
+   * Announces files more files under master key keyName, whose EDEKs are then
+   * generated in the background ahead of them. A writer that runs until the
+   * manager is closed passes {@link Integer#MAX_VALUE}.
+   */
+  public void warmUp(String keyName, int files) {
+    if (files <= 0) {
+      throw new IllegalArgumentException("Files to warm up: " + files);
+    }
+    KeyQueue queue = queue(keyName);
+    int demand;
+    do {
+      demand = queue.demand.get();
+    } while (!queue.demand.compareAndSet(demand,
+        (int) Math.min(Integer.MAX_VALUE, (long) demand + files)));
+    refill(keyName, queue);
+  }
+
+  /**
+   * @return a fresh data key wrapped by master key keyName, its EDEK from the
+   * queue unless it is empty. The caller owns the returned key.
+   */
+  public DataKey newDataKey(String keyName) throws IOException {
+    KeyQueue queue = queue(keyName);
+    int demand;
+    do {
+      demand = queue.demand.get();
+    } while (demand > 0 && demand < Integer.MAX_VALUE
+        && !queue.demand.compareAndSet(demand, demand - 1));
+    QueuedKey queued;
+    long now = System.currentTimeMillis();
+    while ((queued = queue.keys.poll()) != null) {
+      queue.size.decrementAndGet();
+      if (now - queued.created <= expiry) {
+        break;
+      }
+    }
+    if (queue.size.get() < lowWatermark) {
+      refill(keyName, queue);
+    }
+    return decrypt(keyName, queued != null ? queued.encryptedKey : generate(keyName));
+  }
+
+  private KeyQueue queue(String keyName) {
+    KeyQueue queue = queues.get(keyName);
+    if (queue == null) {
+      KeyQueue created = new KeyQueue();
+      queue = queues.putIfAbsent(keyName, created);
+      if (queue == null) {
+        queue = created;
+      }
+    }
+    return queue;
+  }
+
+  private static void offer(KeyQueue queue, EncryptedKeyVersion encryptedKey) {
+    queue.keys.add(new QueuedKey(encryptedKey));
+    queue.size.incrementAndGet();
+  }
+
+  /** @return the number of EDEKs the queue should hold. */
+  private int target(KeyQueue queue) {
+    return Math.min(queueSize, queue.demand.get());
+  }
+
+  /**
+   * Tops the queue of keyName up to its target in the background; nothing
+   * to do unless files were announced.
+   */
+  private void refill(final String keyName, final KeyQueue queue) {
+    if (queue.size.get() >= target(queue)
+        || !queue.refilling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      fillers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (queue.size.get() < target(queue)) {
+              offer(queue, generate(keyName));
+            }
+          } catch (IOException e) {
+            LOG.warn("Cannot refill data keys of " + keyName, e);
+          } finally {
+            queue.refilling.set(false);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      // Closed; writers generate their keys themselves.
+      queue.refilling.set(false);
+    }
+  }
+
+  /**
+   * @return the plaintext data key of a file written with a wrapped key,
+   * decrypted by the provider unless it is cached.
+   */
+  public byte[] decryptKey(KuberHeader header) throws IOException {
+    return cache.get(encryptedKey(header), unwrapper);
+  }
+
+  /**
+   * Decrypts the data keys of several files, those that are not cached
+   * concurrently and each distinct key once.
+   * @return the plaintext data keys in the order of headers.
+   */
+  public List<byte[]> decryptKeys(List<KuberHeader> headers) throws IOException {
+    List<EncryptedKeyVersion> encryptedKeys = new ArrayList<EncryptedKeyVersion>(headers.size());
+    for (KuberHeader header : headers) {
+      encryptedKeys.add(encryptedKey(header));
+    }
+    return cache.getAll(encryptedKeys, unwrapper, fillers);
+  }
+
+  /**
+   * The data keys of files being read: wrapped keys through the cache of the
+   * manager for conf, see {@link #decryptKeys}, and the fixed key of
+   * {@link Config} for files written without a key provider.
+   * @param headers the headers of the files, null for a file written before
+   *     the Kuber format.
+   * @return the data keys in the order of headers, null for a null header.
+   */
+  public static List<byte[]> getFileKeys(Configuration conf, List<KuberHeader> headers)
+      throws IOException {
+    List<KuberHeader> wrapped = new ArrayList<KuberHeader>();
+    for (KuberHeader header : headers) {
+      if (header != null && header.hasWrappedKey()) {
+        wrapped.add(header);
+      }
+    }
+    Iterator<byte[]> unwrapped = Collections.<byte[]>emptyList().iterator();
+    if (!wrapped.isEmpty()) {
+      KuberKeyManager keys = get(conf);
+      if (keys == null) {
+        throw new IOException("The file key is wrapped by master key "
+            + wrapped.get(0).getKeyId() + "; set " + PROVIDER_URI_KEY);
+      }
+      unwrapped = (wrapped.size() == 1
+          ? Collections.singletonList(keys.decryptKey(wrapped.get(0)))
+          : keys.decryptKeys(wrapped)).iterator();
+    }
+    List<byte[]> fileKeys = new ArrayList<byte[]>(headers.size());
+    for (KuberHeader header : headers) {
+      if (header == null) {
+        fileKeys.add(null);
+      } else {
+        fileKeys.add(header.hasWrappedKey() ? unwrapped.next() : new Config().getKey());
+      }
+    }
+    return fileKeys;
+  }
+
+  private static EncryptedKeyVersion encryptedKey(KuberHeader header) {
+    if (!header.hasWrappedKey()) {
+      throw new IllegalArgumentException("File key of " + header.getKeyId() + " is not wrapped");
+    }
+    return header.getEncryptedKey();
+  }
+
+  private final DataKeyCache.Unwrapper unwrapper = new DataKeyCache.Unwrapper() {
+    @Override
+    public byte[] unwrap(EncryptedKeyVersion encryptedKey) throws IOException {
+      try {
+        byte[] key = provider.decryptEncryptedKey(encryptedKey).getMaterial();
+        decrypted.incrementAndGet();
+        return key;
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Cannot decrypt the key of "
+            + encryptedKey.getEncryptionKeyName(), e);
+      }
+    }
+  };
+
+  private EncryptedKeyVersion generate(String keyName) throws IOException {
+    try {
+      EncryptedKeyVersion edek = provider.generateEncryptedKey(keyName);
+      generated.incrementAndGet();
+      return edek;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot generate a data key for " + keyName, e);
+    }
+  }
+
+  /** Decrypts a freshly generated EDEK for the file that takes it. */
+  private DataKey decrypt(String keyName, EncryptedKeyVersion edek) throws IOException {
+    byte[] key;
+    try {
+      key = provider.decryptEncryptedKey(edek).getMaterial();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot decrypt a data key of " + keyName, e);
+    }
+    if (key.length != CipherProvider.KEY_SIZE) {
+      Arrays.fill(key, (byte) 0);
+      throw new IOException("Master key " + keyName + " makes " + 8 * key.length
+          + "-bit data keys; Kuber needs " + 8 * CipherProvider.KEY_SIZE);
+    }
+    return new DataKey(edek, key);
+  }
+
+  /** @return the number of EDEKs generated so far, queued or used. */
+  public long getGenerated() {
+    return generated.get();
+  }
+
+  /** @return the number of file keys the provider decrypted for readers so far. */
+  public long getDecrypted() {
+    return decrypted.get();
+  }
+
+  public DataKeyCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @return the number of ready EDEKs for keyName.
+   */
+  public int getQueued(String keyName) {
+    KeyQueue queue = queues.get(keyName);
+    return queue == null ? 0 : queue.size.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    MANAGERS.remove(uri, this);
+    fillers.shutdownNow();
+    for (KeyQueue queue : queues.values()) {
+      queue.keys.clear();
+      queue.size.set(0);
+    }
+    cache.clear();
+    provider.close();
+    LOG.debug("Closed key manager for " + uri);
+  }
+}
@@ -0,0 +1,87 @@
+package com.databps.bigdaf.kuber;
+
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
+import java.nio.ByteBuffer;
+
+/**
+ * The keystream layout of files written before Kuber kept one cipher per
+ * file: the original tool created a new cipher for every 4096-byte chunk, so
+ * stream position p is XORed with keystream byte p % {@link #CHUNK_SIZE} of
+ * the wrapped cipher. Seekable like any other {@link StreamCipher}, so the
+ * sequential, mapped and ranged paths of {@link Decrypt} all read such files.
+ */
+public class LegacyChunkCipher implements StreamCipher {
+
+  /** Chunk size of the original Encrypt, after which its keystream restarted. */
+  public static final int CHUNK_SIZE = 4096;
+
+  private final StreamCipher cipher;
+
+  private long position;
+
+  /**
+   * @param cipher The cipher of one chunk, at the start of its keystream.
+   */
+  public LegacyChunkCipher(StreamCipher cipher) {
+    this.cipher = cipher;
+  }
+
+  @Override
+  public void seek(long position) {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position " + position);
+    }
+    this.position = position;
+    cipher.seek(position % CHUNK_SIZE);
+  }
+
+  @Override
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void encrypt(byte[] buf, int off, int len) {
+    process(buf, off, buf, off, len);
+  }
+
+  @Override
+  public void decrypt(byte[] buf, int off, int len) {
+    process(buf, off, buf, off, len);
+  }
+
+  @Override
+  public void process(byte[] src, int srcOff, byte[] dst, int dstOff, int len) {
+    while (len > 0) {
+      int n = (int) Math.min(len, CHUNK_SIZE - position % CHUNK_SIZE);
+      cipher.process(src, srcOff, dst, dstOff, n);
+      srcOff += n;
+      dstOff += n;
+      len -= n;
+      advance(n);
+    }
+  }
+
+  @Override
+  public void process(ByteBuffer src, ByteBuffer dst) {
+    int limit = src.limit();
+    try {
+      while (src.hasRemaining()) {
+        int n = (int) Math.min(src.remaining(), CHUNK_SIZE - position % CHUNK_SIZE);
+        src.limit(src.position() + n);
+        cipher.process(src, dst);
+        src.limit(limit);
+        advance(n);
+      }
+    } finally {
+      src.limit(limit);
+    }
+  }
+
+  private void advance(int n) {
+    position += n;
+    if (position % CHUNK_SIZE == 0) {
+      cipher.seek(0);
+    }
+  }
+}
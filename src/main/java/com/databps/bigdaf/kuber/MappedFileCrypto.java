@@ -0,0 +1,118 @@
+package com.databps.bigdaf.kuber;
+
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import org.apache.hadoop.crypto.CryptoStreamUtils;
+
+/**
+ * Runs the local side of the Kuber tools through memory mapped windows of
+ * the local file instead of buffered streams: the cipher reads its input
+ * straight out of the mapping (encryption) or writes its output straight
+ * into it (decryption).
+ * <p/>
+ * A single mapping is limited to 2 GB, so larger files are walked in rolling
+ * windows of {@link #getWindowSize()} bytes. Each window is unmapped as soon
+ * as it is done rather than left to the garbage collector.
+ */
+public class MappedFileCrypto {
+
+  public static final String WINDOW_SIZE_KEY = "kuber.mmap.window.size";
+
+  public static final int WINDOW_SIZE_DEFAULT = 64 * 1024 * 1024;
+
+  /** Size of the heap buffer exchanged with the remote stream. */
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final int windowSize;
+
+  public MappedFileCrypto(int windowSize) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+    }
+    this.windowSize = windowSize;
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Runs the whole of src through cipher and writes the result to out, which
+   * is not closed.
+   * @return the number of bytes processed.
+   */
+  public long transformFrom(File src, StreamCipher cipher, OutputStream out) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(src, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      byte[] buf = new byte[Math.min(CHUNK_SIZE, windowSize)];
+      ByteBuffer dst = ByteBuffer.wrap(buf);
+
+      for (long position = 0; position < length; position += windowSize) {
+        MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position,
+            Math.min(windowSize, length - position));
+        try {
+          while (window.hasRemaining()) {
+            int n = Math.min(buf.length, window.remaining());
+            window.limit(window.position() + n);
+            dst.clear();
+            cipher.process(window, dst);
+            window.limit(window.capacity());
+            out.write(buf, 0, n);
+          }
+        } finally {
+          CryptoStreamUtils.freeDB(window);
+        }
+      }
+      return length;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Reads exactly length bytes from in, runs them through cipher and writes
+   * the result into dst, which is created or truncated to length. in is not
+   * closed.
+   * @return the number of bytes processed.
+   */
+  public long transformTo(InputStream in, long length, StreamCipher cipher, File dst)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(dst, "rw");
+    try {
+      raf.setLength(length);
+      FileChannel channel = raf.getChannel();
+      byte[] buf = new byte[Math.min(CHUNK_SIZE, windowSize)];
+
+      for (long position = 0; position < length; position += windowSize) {
+        MappedByteBuffer window = channel.map(MapMode.READ_WRITE, position,
+            Math.min(windowSize, length - position));
+        try {
+          while (window.hasRemaining()) {
+            int n = in.read(buf, 0, Math.min(buf.length, window.remaining()));
+            if (n < 0) {
+              throw new EOFException("Stream ended " + (length - position - window.position())
+                  + " bytes early");
+            }
+            cipher.process(ByteBuffer.wrap(buf, 0, n), window);
+          }
+        } finally {
+          CryptoStreamUtils.freeDB(window);
+        }
+      }
+      return length;
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package com.databps.bigdaf.kuber;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * Encrypts (or decrypts) a stream on several cores.
+ * <p/>
+ * The input is cut into segments of {@link #getSegmentSize()} bytes. Segment
+ * i starts at stream position i * segmentSize, so a worker can seek its own
+ * cipher to that position and process the segment independently of the
+ * others. Segments are written to the output in order by the calling thread;
+ * at most 2 * threads segments are in flight, which bounds the memory used.
+ * <p/>
+ * {@link #transformRanges} is the random access variant: every worker claims
+ * the next range, reads it with a positioned read and writes the result at
+ * the same position of the output file, so no ordering is needed at all.
+ */
+public class ParallelCryptoEngine {
+  private static final Log LOG = LogFactory.getLog(ParallelCryptoEngine.class);
+
+  public static final String SEGMENT_SIZE_KEY = "kuber.crypto.segment.size";
+
+  public static final int SEGMENT_SIZE_DEFAULT = 4 * 1024 * 1024;
+
+  /**
+   * Creates a cipher positioned at the start of the stream. Called once per
+   * worker thread.
+   */
+  public interface CipherFactory {
+    StreamCipher newCipher();
+  }
+
+  private final int threads;
+  private final int segmentSize;
+  private final CipherFactory factory;
+
+  public ParallelCryptoEngine(int threads, int segmentSize, CipherFactory factory) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive: " + threads);
+    }
+    if (segmentSize < ChaCha20.BLOCK_SIZE) {
+      throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+    }
+    this.threads = threads;
+    this.segmentSize = segmentSize;
+    this.factory = factory;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  private static class Segment {
+    final byte[] buf;
+    final long position;
+    int len;
+
+    Segment(byte[] buf, long position) {
+      this.buf = buf;
+      this.position = position;
+    }
+  }
+
+  /**
+   * Reads in until end of stream, runs every byte through the cipher and
+   * writes the result to out in the original order. Neither stream is closed.
+   * @return the number of bytes processed.
+   */
+  public long transform(InputStream in, OutputStream out) throws IOException {
+    final ExecutorService pool = newPool(threads);
+    final ThreadLocal<StreamCipher> ciphers = newCiphers();
+    final int maxInFlight = 2 * threads;
+    final Deque<byte[]> free = new ArrayDeque<byte[]>(maxInFlight);
+    final Deque<Future<Segment>> pending = new ArrayDeque<Future<Segment>>(maxInFlight);
+
+    long position = 0;
+    boolean eof = false;
+    try {
+      while (true) {
+        while (!eof && pending.size() < maxInFlight) {
+          byte[] buf = free.poll();
+          if (buf == null) {
+            buf = new byte[segmentSize];
+          }
+          final Segment segment = new Segment(buf, position);
+          segment.len = readFully(in, buf);
+          if (segment.len < buf.length) {
+            eof = true;
+          }
+          if (segment.len == 0) {
+            free.add(buf);
+            break;
+          }
+          position += segment.len;
+          pending.add(pool.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() {
+              StreamCipher cipher = ciphers.get();
+              cipher.seek(segment.position);
+              cipher.encrypt(segment.buf, 0, segment.len);
+              return segment;
+            }
+          }));
+        }
+
+        Future<Segment> head = pending.poll();
+        if (head == null) {
+          break;
+        }
+        Segment segment = get(head);
+        out.write(segment.buf, 0, segment.len);
+        free.add(segment.buf);
+      }
+    } finally {
+      for (Future<Segment> f : pending) {
+        f.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+    LOG.debug("Processed " + position + " bytes on " + threads + " threads");
+    return position;
+  }
+
+  /**
+   * Processes bytes [0, length) of in into the same positions of out, one
+   * segment per task, with concurrent positioned reads. Segments never
+   * straddle a multiple of the segment size, so choose a segment size that
+   * divides the HDFS block size to keep every read on one datanode.
+   * @return the number of bytes processed.
+   */
+  public long transformRanges(PositionedReadable in, long length, FileChannel out)
+      throws IOException {
+    return transformRanges(in, 0, length, out);
+  }
+
+  /**
+   * As {@link #transformRanges(PositionedReadable, long, FileChannel)}, with
+   * stream position 0 at offset of in, e.g. just past a file header.
+   */
+  public long transformRanges(final PositionedReadable in, final long offset,
+      final long length, final FileChannel out) throws IOException {
+    final ExecutorService pool = newPool(threads);
+    final ThreadLocal<StreamCipher> ciphers = newCiphers();
+    final AtomicLong next = new AtomicLong();
+    final Deque<Future<Long>> workers = new ArrayDeque<Future<Long>>(threads);
+
+    try {
+      for (int i = 0; i < threads; i++) {
+        workers.add(pool.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws IOException {
+            StreamCipher cipher = ciphers.get();
+            byte[] buf = new byte[segmentSize];
+            long done = 0;
+            long position;
+            while ((position = next.getAndAdd(segmentSize)) < length) {
+              int len = (int) Math.min(segmentSize, length - position);
+              in.readFully(offset + position, buf, 0, len);
+              cipher.seek(position);
+              cipher.decrypt(buf, 0, len);
+              ByteBuffer src = ByteBuffer.wrap(buf, 0, len);
+              while (src.hasRemaining()) {
+                out.write(src, position + src.position());
+              }
+              done += len;
+            }
+            return done;
+          }
+        }));
+      }
+
+      long total = 0;
+      for (Future<Long> worker : workers) {
+        total += get(worker);
+      }
+      LOG.debug("Processed " + total + " bytes in ranges on " + threads + " threads");
+      return total;
+    } finally {
+      for (Future<Long> worker : workers) {
+        worker.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Largest segment size not above segmentSize that divides blockSize, so that
+   * ranges stay inside one block. Falls back to segmentSize for block sizes it
+   * cannot divide evenly.
+   */
+  public static int alignToBlock(int segmentSize, long blockSize) {
+    int size = (int) Math.min(segmentSize, blockSize);
+    while (size > ChaCha20.BLOCK_SIZE && blockSize % size != 0) {
+      size /= 2;
+    }
+    return blockSize % size == 0 ? size : segmentSize;
+  }
+
+  /** Fill buf from in; returns less than buf.length only at end of stream. */
+  static int readFully(InputStream in, byte[] buf) throws IOException {
+    int n = 0;
+    while (n < buf.length) {
+      int r = in.read(buf, n, buf.length - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    return n;
+  }
+
+  ThreadLocal<StreamCipher> newCiphers() {
+    return new ThreadLocal<StreamCipher>() {
+      @Override
+      protected StreamCipher initialValue() {
+        return factory.newCipher();
+      }
+    };
+  }
+
+  static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for cipher worker");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  static ExecutorService newPool(int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "kuber-crypto-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+}
@@ -0,0 +1,197 @@
+package com.databps.bigdaf.kuber;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Copies a stream through a transform with reading, transforming and writing
+ * overlapped on three threads.
+ * <p/>
+ * A fixed set of buffers circulates from the reader to the transform stage,
+ * on to the writer, and back to the reader. Every hand-off goes through a
+ * bounded queue, so a stage only waits when the stage after it is behind or
+ * when all buffers are in use. Wall-clock time then approaches that of the
+ * slowest stage rather than the sum of all three. The transform stage runs on
+ * a single thread and sees the chunks in stream order, so a stateful cipher
+ * can be used as is.
+ */
+public class PipelinedTransfer {
+  private static final Log LOG = LogFactory.getLog(PipelinedTransfer.class);
+
+  public static final String BUFFER_SIZE_KEY = "kuber.pipeline.buffer.size";
+
+  public static final int BUFFER_SIZE_DEFAULT = 1024 * 1024;
+
+  public static final String BUFFERS_KEY = "kuber.pipeline.buffers";
+
+  /** Triple buffering: one buffer per stage. */
+  public static final int BUFFERS_DEFAULT = 3;
+
+  /**
+   * Rewrites len bytes of buf starting at off in place. Called for every chunk
+   * in stream order from a single thread.
+   */
+  public interface Transform {
+    void apply(byte[] buf, int off, int len) throws IOException;
+  }
+
+  /** Passes the bytes through unchanged. */
+  public static final Transform IDENTITY = new Transform() {
+    @Override
+    public void apply(byte[] buf, int off, int len) {
+    }
+  };
+
+  private static class Chunk {
+    final byte[] buf;
+    int len;
+
+    Chunk(byte[] buf) {
+      this.buf = buf;
+    }
+  }
+
+  /** Marks the end of the stream in the stage queues. */
+  private static final Chunk EOF = new Chunk(new byte[0]);
+
+  private final int bufferSize;
+  private final int buffers;
+
+  public PipelinedTransfer(int bufferSize, int buffers) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+    }
+    if (buffers < 2) {
+      throw new IllegalArgumentException("At least 2 buffers are needed: " + buffers);
+    }
+    this.bufferSize = bufferSize;
+    this.buffers = buffers;
+  }
+
+  public PipelinedTransfer(Configuration conf) {
+    this(conf.getInt(BUFFER_SIZE_KEY, BUFFER_SIZE_DEFAULT),
+        conf.getInt(BUFFERS_KEY, BUFFERS_DEFAULT));
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getBuffers() {
+    return buffers;
+  }
+
+  /**
+   * Reads in until end of stream, runs every chunk through transform and
+   * writes it to out. Neither stream is closed. If any stage fails the other
+   * two are interrupted and the failure is rethrown.
+   * @return the number of bytes written.
+   */
+  public long transfer(final InputStream in, final OutputStream out,
+      final Transform transform) throws IOException {
+    final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(buffers);
+    // One extra slot each for EOF, so a stage never blocks handing it on.
+    final BlockingQueue<Chunk> toTransform = new ArrayBlockingQueue<Chunk>(buffers + 1);
+    final BlockingQueue<Chunk> toWrite = new ArrayBlockingQueue<Chunk>(buffers + 1);
+    for (int i = 0; i < buffers; i++) {
+      free.add(new Chunk(new byte[bufferSize]));
+    }
+
+    ExecutorService pool = ParallelCryptoEngine.newPool(3);
+    CompletionService<Long> stages = new ExecutorCompletionService<Long>(pool);
+    List<Future<Long>> futures = new ArrayList<Future<Long>>(3);
+    Future<Long> writer;
+    try {
+      futures.add(stages.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          long read = 0;
+          try {
+            while (true) {
+              Chunk chunk = free.take();
+              chunk.len = ParallelCryptoEngine.readFully(in, chunk.buf);
+              if (chunk.len > 0) {
+                read += chunk.len;
+                toTransform.put(chunk);
+              }
+              if (chunk.len < chunk.buf.length) {
+                return read;
+              }
+            }
+          } finally {
+            toTransform.put(EOF);
+          }
+        }
+      }));
+      futures.add(stages.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          long transformed = 0;
+          try {
+            Chunk chunk;
+            while ((chunk = toTransform.take()) != EOF) {
+              transform.apply(chunk.buf, 0, chunk.len);
+              transformed += chunk.len;
+              toWrite.put(chunk);
+            }
+            return transformed;
+          } finally {
+            toWrite.put(EOF);
+          }
+        }
+      }));
+      writer = stages.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          long written = 0;
+          Chunk chunk;
+          while ((chunk = toWrite.take()) != EOF) {
+            out.write(chunk.buf, 0, chunk.len);
+            written += chunk.len;
+            free.put(chunk);
+          }
+          return written;
+        }
+      });
+      futures.add(writer);
+
+      // Take the stages in completion order so the first failure surfaces
+      // straight away instead of after the stages blocked behind it.
+      for (int i = 0; i < futures.size(); i++) {
+        ParallelCryptoEngine.get(take(stages));
+      }
+      long written = ParallelCryptoEngine.get(writer);
+      LOG.debug("Transferred " + written + " bytes through " + buffers + " buffers of "
+          + bufferSize + " bytes");
+      return written;
+    } finally {
+      for (Future<Long> future : futures) {
+        future.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+  }
+
+  private static <T> Future<T> take(CompletionService<T> stages) throws IOException {
+    try {
+      return stages.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for pipeline stage");
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package com.databps.bigdaf.kuber;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20Poly1305;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * Segmented ChaCha20-Poly1305: the data is cut into chunks of
+ * {@link #getChunkSize()} bytes and every chunk is sealed on its own, so
+ * chunks can be encrypted, verified and decrypted in any order and on any
+ * number of threads.
+ * <p/>
+ * Chunk i is stored as its ciphertext followed by a 16 byte tag, at data
+ * offset i * (chunkSize + 16). Its nonce is the file nonce with i XORed into
+ * the last 8 bytes, and its associated data is i followed by a final flag.
+ * The final chunk is the only one shorter than chunkSize, and is empty if
+ * the length is a multiple of it. Dropping, reordering or truncating chunks
+ * therefore fails authentication.
+ */
+public class SegmentedAead {
+  private static final Log LOG = LogFactory.getLog(SegmentedAead.class);
+
+  public static final int TAG_SIZE = ChaCha20Poly1305.TAG_SIZE;
+
+  private final byte[] key;
+  private final byte[] nonce;
+  private final int chunkSize;
+  private final ThreadLocal<ChaCha20Poly1305> aeads = new ThreadLocal<ChaCha20Poly1305>() {
+    @Override
+    protected ChaCha20Poly1305 initialValue() {
+      return new ChaCha20Poly1305(key);
+    }
+  };
+
+  public SegmentedAead(byte[] key, byte[] nonce, int chunkSize) {
+    if (nonce.length != ChaCha20Poly1305.NONCE_SIZE) {
+      throw new IllegalArgumentException("Nonce must be " + ChaCha20Poly1305.NONCE_SIZE
+          + " bytes");
+    }
+    if (chunkSize < 1 || chunkSize > Integer.MAX_VALUE - TAG_SIZE) {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+    }
+    if (key.length != ChaCha20Poly1305.KEY_SIZE) {
+      throw new IllegalArgumentException("Key must be " + ChaCha20Poly1305.KEY_SIZE + " bytes");
+    }
+    this.key = key.clone();
+    this.nonce = nonce.clone();
+    this.chunkSize = chunkSize;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /** @return chunk size plus tag: the stored size of every chunk but the last. */
+  public int getStoredChunkSize() {
+    return chunkSize + TAG_SIZE;
+  }
+
+  /** @return the number of chunks stored for plainLength bytes. */
+  public long getChunks(long plainLength) {
+    return plainLength / chunkSize + 1;
+  }
+
+  public long getStoredLength(long plainLength) {
+    return plainLength + getChunks(plainLength) * TAG_SIZE;
+  }
+
+  /**
+   * @throws IOException if no plaintext length is stored as storedLength
+   * bytes, i.e. the data was truncated.
+   */
+  public long getPlainLength(long storedLength) throws IOException {
+    long chunks = storedLength / getStoredChunkSize() + 1;
+    if (storedLength % getStoredChunkSize() < TAG_SIZE) {
+      throw new EOFException("Truncated data: " + storedLength + " bytes");
+    }
+    return storedLength - chunks * TAG_SIZE;
+  }
+
+  /**
+   * Encrypts buf[off, off + len) in place and appends the tag, which needs
+   * TAG_SIZE more bytes of buf.
+   */
+  public void seal(long chunk, boolean last, byte[] buf, int off, int len) {
+    aeads.get().seal(chunkNonce(chunk), associatedData(chunk, last), buf, off, len,
+        buf, off + len);
+  }
+
+  /**
+   * Verifies and decrypts the stored chunk buf[off, off + storedLen) in
+   * place; the plaintext is its first storedLen - TAG_SIZE bytes.
+   * @throws IOException if the chunk fails authentication.
+   */
+  public void open(long chunk, boolean last, byte[] buf, int off, int storedLen)
+      throws IOException {
+    int len = storedLen - TAG_SIZE;
+    if (len < 0) {
+      throw new EOFException("Chunk " + chunk + " truncated");
+    }
+    try {
+      aeads.get().open(chunkNonce(chunk), associatedData(chunk, last), buf, off, len,
+          buf, off + len);
+    } catch (AEADBadTagException e) {
+      throw new IOException("Chunk " + chunk + " failed authentication", e);
+    }
+  }
+
+  private byte[] chunkNonce(long chunk) {
+    byte[] n = nonce.clone();
+    for (int i = n.length; i-- > n.length - 8; ) {
+      n[i] ^= (byte) chunk;
+      chunk >>>= 8;
+    }
+    return n;
+  }
+
+  private static byte[] associatedData(long chunk, boolean last) {
+    return ByteBuffer.allocate(9).putLong(chunk).put((byte) (last ? 1 : 0)).array();
+  }
+
+  /**
+   * Reads in until end of stream and writes the sealed chunks to out in order,
+   * sealing on up to threads threads. Neither stream is closed.
+   * @return the number of plaintext bytes.
+   */
+  public long seal(InputStream in, OutputStream out, int threads) throws IOException {
+    final ExecutorService pool = ParallelCryptoEngine.newPool(threads);
+    final int maxInFlight = 2 * threads;
+    final Deque<byte[]> free = new ArrayDeque<byte[]>(maxInFlight);
+    final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(maxInFlight);
+    final Deque<Integer> lengths = new ArrayDeque<Integer>(maxInFlight);
+
+    long length = 0;
+    long chunk = 0;
+    boolean last = false;
+    try {
+      while (true) {
+        while (!last && pending.size() < maxInFlight) {
+          byte[] buf = free.poll();
+          if (buf == null) {
+            buf = new byte[getStoredChunkSize()];
+          }
+          final byte[] b = buf;
+          final int len = readFully(in, b, chunkSize);
+          final long index = chunk++;
+          final boolean isLast = len < chunkSize;
+          last = isLast;
+          length += len;
+          lengths.add(len + TAG_SIZE);
+          pending.add(pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+              seal(index, isLast, b, 0, len);
+              return b;
+            }
+          }));
+        }
+
+        Future<byte[]> head = pending.poll();
+        if (head == null) {
+          break;
+        }
+        byte[] buf = ParallelCryptoEngine.get(head);
+        out.write(buf, 0, lengths.poll());
+        free.add(buf);
+      }
+    } finally {
+      for (Future<byte[]> f : pending) {
+        f.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+    LOG.debug("Sealed " + length + " bytes in " + chunk + " chunks on " + threads + " threads");
+    return length;
+  }
+
+  /**
+   * Verifies and decrypts the storedLength bytes of sealed chunks starting at
+   * offset of in into the same plaintext positions of out, one chunk per
+   * task on threads threads. Nothing is written for a chunk that fails.
+   * @return the number of plaintext bytes.
+   */
+  public long openRanges(final PositionedReadable in, final long offset,
+      final long storedLength, final FileChannel out, int threads) throws IOException {
+    final long plainLength = getPlainLength(storedLength);
+    final long chunks = getChunks(plainLength);
+    final ExecutorService pool = ParallelCryptoEngine.newPool(threads);
+    final AtomicLong next = new AtomicLong();
+    final Deque<Future<Long>> workers = new ArrayDeque<Future<Long>>(threads);
+
+    try {
+      for (int i = 0; i < threads; i++) {
+        workers.add(pool.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws IOException {
+            byte[] buf = new byte[getStoredChunkSize()];
+            long done = 0;
+            long chunk;
+            while ((chunk = next.getAndIncrement()) < chunks) {
+              long position = chunk * getStoredChunkSize();
+              int storedLen = (int) Math.min(getStoredChunkSize(), storedLength - position);
+              in.readFully(offset + position, buf, 0, storedLen);
+              open(chunk, chunk == chunks - 1, buf, 0, storedLen);
+              ByteBuffer src = ByteBuffer.wrap(buf, 0, storedLen - TAG_SIZE);
+              while (src.hasRemaining()) {
+                out.write(src, chunk * chunkSize + src.position());
+              }
+              done += storedLen - TAG_SIZE;
+            }
+            return done;
+          }
+        }));
+      }
+
+      long total = 0;
+      for (Future<Long> worker : workers) {
+        total += ParallelCryptoEngine.get(worker);
+      }
+      LOG.debug("Opened " + total + " bytes in " + chunks + " chunks on " + threads
+          + " threads");
+      return total;
+    } finally {
+      for (Future<Long> worker : workers) {
+        worker.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads up to len plaintext bytes at plaintext position from the sealed
+   * data at offset of in. Only the chunks overlapping the range are read and
+   * verified.
+   * @return the number of bytes read, or -1 at end of data.
+   */
+  public int read(PositionedReadable in, long offset, long storedLength, long position,
+      byte[] b, int off, int len) throws IOException {
+    long plainLength = getPlainLength(storedLength);
+    if (position >= plainLength) {
+      return -1;
+    }
+    len = (int) Math.min(len, plainLength - position);
+    long chunks = getChunks(plainLength);
+    byte[] buf = new byte[getStoredChunkSize()];
+    int n = 0;
+    while (n < len) {
+      long chunk = (position + n) / chunkSize;
+      long stored = chunk * getStoredChunkSize();
+      int storedLen = (int) Math.min(getStoredChunkSize(), storedLength - stored);
+      in.readFully(offset + stored, buf, 0, storedLen);
+      open(chunk, chunk == chunks - 1, buf, 0, storedLen);
+      int from = (int) ((position + n) - chunk * chunkSize);
+      int count = Math.min(len - n, storedLen - TAG_SIZE - from);
+      System.arraycopy(buf, from, b, off + n, count);
+      n += count;
+    }
+    return n;
+  }
+
+  private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+    int n = 0;
+    while (n < len) {
+      int r = in.read(buf, n, len - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,59 @@
+package com.databps.bigdaf.kuber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits "--name value" and "--flag" options off the positional arguments of
+ * the Kuber tools. Options may appear anywhere on the command line.
+ */
+public class ToolArgs {
+
+  private final List<String> args;
+
+  public ToolArgs(String[] args) {
+    this.args = new ArrayList<String>(Arrays.asList(args));
+  }
+
+  /**
+   * Removes "--name value" and returns the value, or def if absent.
+   */
+  public String getOption(String name, String def) {
+    int i = args.indexOf(name);
+    if (i < 0) {
+      return def;
+    }
+    if (i + 1 >= args.size()) {
+      throw new IllegalArgumentException("Missing value for " + name);
+    }
+    args.remove(i);
+    return args.remove(i);
+  }
+
+  public int getInt(String name, int def) {
+    String value = getOption(name, null);
+    if (value == null) {
+      return def;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  /**
+   * Removes "--name" and returns whether it was present.
+   */
+  public boolean hasFlag(String name) {
+    return args.remove(name);
+  }
+
+  /**
+   * @return the arguments left after the options were taken out.
+   */
+  public String[] remaining() {
+    return args.toArray(new String[args.size()]);
+  }
+}
@@ -2,16 +2,24 @@ package com.databps.bigdaf.kuber.algorithms;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -20,25 +28,17 @@ import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.lang.ArrayUtils;
 
 /**
  * @author merlin
  * @create 2018-03-22 下午5:06
  */
-public class AesCtr extends JavaxCipher
+public class AesCtr extends JavaxCipher implements Closeable
 {
-  /**
-   * Secure random generator.
-   */
-  protected SecureRandom m_secureRandom;
-
   /**
    * Number of bytes in a block, which is constant for AES.
    */
@@ -54,10 +54,60 @@ public class AesCtr extends JavaxCipher
    */
   protected int KEY_SIZE_BYTES;
 
+  /**
+   * IV of the last message, reused so a message allocates nothing itself.
+   */
+  private final byte[] m_iv = new byte[BLOCK_SIZE_BYTES];
+
+  /**
+   * PBKDF2 iterations of the password based modes.
+   */
+  public static final int PBKDF2_ITERATIONS = 10000;
+
+  /**
+   * Largest PBKDF2 iteration count a stream header may ask for. The count is
+   * read before the MAC can be checked, so a corrupt or crafted header must
+   * not be able to pin a CPU.
+   */
+  public static final int MAX_PBKDF2_ITERATIONS = 100 * PBKDF2_ITERATIONS;
+
+  /**
+   * Salt size of the streaming password mode.
+   */
+  public static final int STREAM_SALT_SIZE = 20;
+
+  /**
+   * Size of the HMAC-SHA256 trailer of the streaming password mode.
+   */
+  public static final int MAC_SIZE = 32;
+
+  private static final int STREAM_HEADER_SIZE = 4 + STREAM_SALT_SIZE + 16;
+
+  /**
+   * Bytes of the stream master secret: one PBKDF2WithHmacSHA1 block, so the
+   * defender pays for no more iterations than a password guess needs.
+   */
+  private static final int STREAM_SECRET_SIZE = 20;
+
+  /*
+   * Labels expanding the stream master secret into its two keys.
+   */
+  private static final String STREAM_AES_LABEL = "kuber stream aes-128-ctr key";
+
+  private static final String STREAM_MAC_LABEL = "kuber stream hmac-sha256 key";
+
+  /*
+   * Pooled algorithms, named the same way when borrowed and released.
+   */
+  private static final String AES_CTR = "AES/CTR/NoPadding";
+
+  private static final String HMAC_SHA256 = "HMACSHA256";
+
 
   /**
-   * Class constructor. Creates a Javax.Crypto.Cipher instance with AES in CTR<br>
-   * mode, without any padding.
+   * Class constructor. Borrows a Javax.Crypto.Cipher instance with AES in CTR<br>
+   * mode, without any padding, from {@link CryptoContextPool}; {@link #close()}<br>
+   * gives it back.
    * @param key Input key for the cipher. Should be 16, 24, or 32 bytes long
    * @throws Exception Throws exception if key length is not 16, 24, or 32 bytes.<br>
    *       May throw exception based on Javax.Crypto classes.
@@ -79,11 +129,19 @@ public class AesCtr extends JavaxCipher
     //create secret key spec instance
     m_keySpec = new SecretKeySpec(key, "AES");
 
-    //create cipher instance
-    m_cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+    //borrow cipher instance
+    m_cipher = borrowCipher();
+  }
+
 
-    //create secure random number generator instance
-    m_secureRandom = new SecureRandom();
+  /**
+   * Gives the cipher back to the pool. The instance is unusable after.
+   */
+  @Override
+  public void close()
+  {
+    CryptoContextPool.release(m_cipher, AES_CTR);
+    m_cipher = null;
   }
 
 
@@ -97,6 +155,15 @@ public class AesCtr extends JavaxCipher
    *       May throw exception based on Javax.Crypto.Cipher class
    */
   public byte[] encrypt(byte[] data) throws Exception
+  {
+    //iv + encrypted data, written straight into the result
+    byte[] output = new byte[BLOCK_SIZE_BYTES + data.length];
+    encrypt(data, 0, data.length, output, 0);
+    return output;
+  }
+
+
+  public byte[] encrypt(byte[] data,byte[] iv) throws Exception
   {
     //check if there is data to encrypt
     if(data.length == 0)
@@ -104,37 +171,118 @@ public class AesCtr extends JavaxCipher
       throw new Exception("No data to encrypt");
     }
 
-    //create iv
-    byte[] iv = new byte[BLOCK_SIZE_BYTES];
-    byte[] randomNumber = (new BigInteger(BLOCK_SIZE_BITS, m_secureRandom)).toByteArray();
-    int a;
-    for(a = 0; a<randomNumber.length && a<BLOCK_SIZE_BYTES; a++)
-      iv[a] = randomNumber[a];
-    for(; a<BLOCK_SIZE_BYTES; a++)
-      iv[a] = 0;
-
-    //init cipher instance
+    //iv + encrypted data, written straight into the result
+    byte[] output = new byte[BLOCK_SIZE_BYTES + data.length];
+    System.arraycopy(iv, 0, output, 0, BLOCK_SIZE_BYTES);
     m_cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, m_keySpec, new IvParameterSpec(iv));
+    process(data, 0, data.length, output, BLOCK_SIZE_BYTES);
+    return output;
+  }
 
-    //return concatenation of iv + encrypted data
-    return ArrayUtils.addAll(iv, m_cipher.doFinal(data));
+
+  /**
+   * The IV leads the encrypted data.
+   * @return {@link #BLOCK_SIZE_BYTES}
+   */
+  @Override
+  public int getOverhead()
+  {
+    return BLOCK_SIZE_BYTES;
   }
 
 
-  public byte[] encrypt(byte[] data,byte[] iv) throws Exception
+  /**
+   * Encrypts in[inOff, inOff + len) with a random IV into out at outOff as
+   * iv + encrypted data, without intermediate arrays.
+   * @return len + {@link #getOverhead()}.
+   * @throws Exception Throws exception if there is no data to encrypt.<br>
+   *       May throw exception based on Javax.Crypto.Cipher class
+   */
+  @Override
+  public int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception
   {
     //check if there is data to encrypt
-    if(data.length == 0)
+    if(len == 0)
     {
       throw new Exception("No data to encrypt");
     }
 
+    //create iv in place
+    NonceService.getDefault().nextBytes(m_iv);
+    System.arraycopy(m_iv, 0, out, outOff, BLOCK_SIZE_BYTES);
 
     //init cipher instance
-    m_cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, m_keySpec, new IvParameterSpec(iv));
+    m_cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, m_keySpec, new IvParameterSpec(m_iv));
+
+    return BLOCK_SIZE_BYTES + process(in, inOff, len, out, outOff + BLOCK_SIZE_BYTES);
+  }
+
+
+  /**
+   * Decrypts iv + encrypted data at in[inOff, inOff + len) into out at
+   * outOff, without intermediate arrays.
+   * @return len - {@link #getOverhead()}.
+   * @throws Exception Throws exception if there is no data to decrypt.<br>
+   *       May throw exception based on Javax.Crypto.Cipher class
+   */
+  @Override
+  public int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception
+  {
+    //check if there is data to decrypt after the iv
+    if(len <= BLOCK_SIZE_BYTES)
+    {
+      throw new Exception("No data to decrypt");
+    }
+
+    //init cipher instance with the iv at the beginning of data
+    m_cipher.init(javax.crypto.Cipher.DECRYPT_MODE, m_keySpec,
+        new IvParameterSpec(in, inOff, BLOCK_SIZE_BYTES));
+
+    return process(in, inOff + BLOCK_SIZE_BYTES, len - BLOCK_SIZE_BYTES, out, outOff);
+  }
+
+
+  /**
+   * Encrypts the remaining bytes of in with a random IV into out as
+   * iv + encrypted data. Direct buffers are processed without copies.
+   * @return in.remaining() + {@link #getOverhead()}.
+   * @throws Exception Throws exception if there is no data to encrypt.<br>
+   *       May throw exception based on Javax.Crypto.Cipher class
+   */
+  @Override
+  public int encrypt(ByteBuffer in, ByteBuffer out) throws Exception
+  {
+    //check if there is data to encrypt
+    if(!in.hasRemaining())
+    {
+      throw new Exception("No data to encrypt");
+    }
+
+    NonceService.getDefault().nextBytes(m_iv);
+    m_cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, m_keySpec, new IvParameterSpec(m_iv));
+    out.put(m_iv);
+    return BLOCK_SIZE_BYTES + process(in, out);
+  }
+
+
+  /**
+   * Decrypts the remaining bytes of in, iv + encrypted data, into out.
+   * @return The number of decrypted bytes.
+   * @throws Exception Throws exception if there is no data to decrypt.<br>
+   *       May throw exception based on Javax.Crypto.Cipher class
+   */
+  @Override
+  public int decrypt(ByteBuffer in, ByteBuffer out) throws Exception
+  {
+    //check if there is data to decrypt after the iv
+    if(in.remaining() <= BLOCK_SIZE_BYTES)
+    {
+      throw new Exception("No data to decrypt");
+    }
 
-    //return concatenation of iv + encrypted data
-    return ArrayUtils.addAll(iv, m_cipher.doFinal(data));
+    in.get(m_iv);
+    m_cipher.init(javax.crypto.Cipher.DECRYPT_MODE, m_keySpec, new IvParameterSpec(m_iv));
+    return process(in, out);
   }
 
 
@@ -170,15 +318,10 @@ public class AesCtr extends JavaxCipher
       throw new Exception("No data to decrypt");
     }
 
-    //get iv value from the beggining of data
-    byte[] iv = new byte[BLOCK_SIZE_BYTES];
-    System.arraycopy(data, offset, iv, 0, BLOCK_SIZE_BYTES);
-
-    //init cipher instance
-    m_cipher.init(javax.crypto.Cipher.DECRYPT_MODE, m_keySpec, new IvParameterSpec(iv));
-
-    //return decrypted value
-    return m_cipher.doFinal(data, (BLOCK_SIZE_BYTES + offset), data.length - (BLOCK_SIZE_BYTES + offset));
+    //decrypt straight into the result
+    byte[] output = new byte[data.length - (BLOCK_SIZE_BYTES + offset)];
+    decrypt(data, offset, data.length - offset, output, 0);
+    return output;
   }
 
   public byte[] decrypt(byte[] data, int offset,byte[] iv) throws Exception
@@ -198,10 +341,9 @@ public class AesCtr extends JavaxCipher
 
 
   public byte[] encrypt(byte[] input, String password) throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-    SecureRandom rando = SecureRandom.getInstance("SHA1PRNG");
+    NonceService rando = NonceService.getDefault();
     //generate IV for AES-CTR mode sets the counter to random value from secure random
-    byte[] IV = new byte[16];
-    rando.nextBytes(IV);
+    byte[] IV = rando.nextIV();
 
     //generate eSalt for use with password derived key AES, to be used with PBKDF2WithHmacSHA1
     byte[] eSalt = new byte[20];
@@ -211,26 +353,31 @@ public class AesCtr extends JavaxCipher
     byte[] hSalt = new byte[20];
     rando.nextBytes(hSalt);
 
-    SecretKeyFactory fact = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-
     //generate eKey from eSalt and password, key to be used for AES-128-CTR mode, computed with PBKDF2WithHmacSHA1
-    KeySpec eKS = new PBEKeySpec(password.toCharArray(), eSalt, 10000, 128);
-    SecretKey eS = fact.generateSecret(eKS);
-    Key eK = new SecretKeySpec(eS.getEncoded(), "AES");
+    // The salts are fresh, so the keys are not cached: they would never be hit.
+    Key eK = new SecretKeySpec(deriveKey(password, eSalt, 128, false), "AES");
     //encrypt plaintext bytes in AES-128-CTR with eKey and IV
-    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-    cipher.init(Cipher.ENCRYPT_MODE, eK, new IvParameterSpec(IV));
-    byte[] eMessage = cipher.doFinal(input);
+    Cipher cipher = borrowCipher();
+    byte[] eMessage;
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, eK, new IvParameterSpec(IV));
+      eMessage = cipher.doFinal(input);
+    } finally {
+      CryptoContextPool.release(cipher, AES_CTR);
+    }
 
     // we compute the HMACSHA256 on the ciphertext according to RFC7366 (Encrypt then MAC)
     //generate hKey from hSalt and password, key to be used for HMACSHA256, computed with PBKDF2WithHmacSHA1
 
-    KeySpec hKS = new PBEKeySpec(password.toCharArray(), hSalt, 10000, 160);
-    SecretKey hS = fact.generateSecret(hKS);
-    Key hK = new SecretKeySpec(hS.getEncoded(), "HMACSHA256");
-    Mac mac = Mac.getInstance("HMACSHA256");
-    mac.init(hK);
-    byte[] hMac = mac.doFinal(eMessage);
+    Key hK = new SecretKeySpec(deriveKey(password, hSalt, 160, false), "HMACSHA256");
+    Mac mac = borrowMac();
+    byte[] hMac;
+    try {
+      mac.init(hK);
+      hMac = mac.doFinal(eMessage);
+    } finally {
+      CryptoContextPool.release(mac, HMAC_SHA256);
+    }
 
     //now we put all into new byte[]
 
@@ -260,15 +407,16 @@ public class AesCtr extends JavaxCipher
     //recover hmac
     byte[] hMac = Arrays.copyOfRange(input, input.length -32, input.length);
 
-    SecretKeyFactory fact = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-
     //first we check to see if the HMAC of the input matches the recomputed HMAC
-    KeySpec rhKS = new PBEKeySpec(password.toCharArray(),hSalt, 10000, 160);
-    SecretKey rHS = fact.generateSecret(rhKS);
-    Key rhK = new SecretKeySpec(rHS.getEncoded(), "HMACSHA256");
-    Mac rMac = Mac.getInstance("HMACSHA256");
-    rMac.init(rhK);
-    byte [] rhMac = rMac.doFinal(eMessage);
+    Key rhK = new SecretKeySpec(deriveKey(password, hSalt, 160, true), "HMACSHA256");
+    Mac rMac = borrowMac();
+    byte [] rhMac;
+    try {
+      rMac.init(rhK);
+      rhMac = rMac.doFinal(eMessage);
+    } finally {
+      CryptoContextPool.release(rMac, HMAC_SHA256);
+    }
     byte [] pMessage = null;
 
     boolean sameHash = true;
@@ -279,13 +427,15 @@ public class AesCtr extends JavaxCipher
     }
     if(sameHash == true){
       //generate eKey from eSalt and password, key to be used for AES-128-CTR mode, computed with PBKDF2WithHmacSHA1
-      KeySpec eKS = new PBEKeySpec(password.toCharArray(), eSalt, 10000, 128);
-      SecretKey eS = fact.generateSecret(eKS);
-      Key eK = new SecretKeySpec(eS.getEncoded(), "AES");
+      Key eK = new SecretKeySpec(deriveKey(password, eSalt, 128, true), "AES");
       //decrypt plaintext bytes in AES-128-CTR with eKey and IV
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      cipher.init(Cipher.DECRYPT_MODE, eK, new IvParameterSpec(IV));
-      pMessage = cipher.doFinal(eMessage);
+      Cipher cipher = borrowCipher();
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, eK, new IvParameterSpec(IV));
+        pMessage = cipher.doFinal(eMessage);
+      } finally {
+        CryptoContextPool.release(cipher, AES_CTR);
+      }
       return pMessage;
     }else {
       //lame error message but didn't want to write custom errors just yet.
@@ -297,9 +447,309 @@ public class AesCtr extends JavaxCipher
   }
 
 
+  /**
+   * PBKDF2WithHmacSHA1 of the password based modes, through
+   * {@link DerivedKeyCache#getDefault()} when cached so a salt seen before
+   * costs nothing.
+   */
+  private static byte[] deriveKey(String password, byte[] salt, int keyBits, boolean cached)
+      throws InvalidKeySpecException, NoSuchAlgorithmException {
+    try {
+      return cached
+          ? DerivedKeyCache.getDefault().derive(password, salt, PBKDF2_ITERATIONS, keyBits)
+          : DerivedKeyCache.deriveUncached(password, salt, PBKDF2_ITERATIONS, keyBits);
+    } catch (InvalidKeySpecException e) {
+      throw e;
+    } catch (NoSuchAlgorithmException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new InvalidKeySpecException(e);
+    }
+  }
+
+  private static Cipher borrowCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+    try {
+      return CryptoContextPool.borrowCipher(AES_CTR);
+    } catch (NoSuchAlgorithmException e) {
+      throw e;
+    } catch (NoSuchPaddingException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new NoSuchAlgorithmException(e);
+    }
+  }
+
+  private static Mac borrowMac() throws NoSuchAlgorithmException {
+    try {
+      return CryptoContextPool.borrowMac(HMAC_SHA256);
+    } catch (NoSuchAlgorithmException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new NoSuchAlgorithmException(e);
+    }
+  }
+
+  /**
+   * Returns a stream that encrypts everything written to it into out with a
+   * key derived from password, in the streaming password format:
+   * <pre>
+   *   iterations 4 bytes, big-endian
+   *   salt       {@link #STREAM_SALT_SIZE} bytes, random per stream
+   *   IV         16 bytes, random per stream
+   *   ciphertext AES-128-CTR of the data
+   *   MAC        HMAC-SHA256 of everything before it
+   * </pre>
+   * One PBKDF2 derivation per stream yields a master secret of a single
+   * SHA-1 block, which HMAC-SHA256 expands into the AES key and the MAC key,
+   * so the data itself is processed at AES-CTR speed. Closing the returned
+   * stream writes the MAC and closes out.
+   */
+  public static OutputStream encryptingStream(OutputStream out, String password)
+      throws IOException {
+    NonceService random = NonceService.getDefault();
+    byte[] header = new byte[STREAM_HEADER_SIZE];
+    ByteBuffer.wrap(header).putInt(PBKDF2_ITERATIONS);
+    byte[] salt = new byte[STREAM_SALT_SIZE];
+    random.nextBytes(salt);
+    System.arraycopy(salt, 0, header, 4, STREAM_SALT_SIZE);
+    byte[] iv = new byte[BLOCK_SIZE_BYTES];
+    random.nextBytes(iv);
+    System.arraycopy(iv, 0, header, 4 + STREAM_SALT_SIZE, BLOCK_SIZE_BYTES);
+
+    StreamKeys keys = new StreamKeys(password, header, Cipher.ENCRYPT_MODE);
+    out.write(header);
+    return new PasswordOutputStream(out, keys);
+  }
+
+  /**
+   * Returns a stream of the data encrypted by
+   * {@link #encryptingStream(OutputStream, String)}. The MAC is checked when
+   * the end of in is reached: that read throws if the data was modified or
+   * the password is wrong, in which case everything read before it must be
+   * discarded.
+   */
+  public static InputStream decryptingStream(InputStream in, String password)
+      throws IOException {
+    byte[] header = new byte[STREAM_HEADER_SIZE];
+    new DataInputStream(in).readFully(header);
+    return new PasswordInputStream(in, new StreamKeys(password, header, Cipher.DECRYPT_MODE));
+  }
+
+  /**
+   * Cipher and MAC of one password stream, both keyed from a single
+   * derivation over the stream's salt. The master secret is expanded as in
+   * HKDF-Expand (RFC 5869): key = HMAC-SHA256(secret, label || 0x01).
+   */
+  private static class StreamKeys {
+    Cipher cipher;
+    Mac mac;
+
+    StreamKeys(String password, byte[] header, int mode) throws IOException {
+      ByteBuffer h = ByteBuffer.wrap(header);
+      int iterations = h.getInt();
+      if (iterations < 1 || iterations > MAX_PBKDF2_ITERATIONS) {
+        throw new IOException("Invalid PBKDF2 iteration count " + iterations);
+      }
+      byte[] salt = new byte[STREAM_SALT_SIZE];
+      h.get(salt);
+      byte[] iv = new byte[BLOCK_SIZE_BYTES];
+      h.get(iv);
+      byte[] secret = null;
+      byte[] aesKey = null;
+      byte[] macKey = null;
+      try {
+        secret = DerivedKeyCache.getDefault().derive(password, salt, iterations,
+            STREAM_SECRET_SIZE * 8);
+        mac = CryptoContextPool.borrowMac(HMAC_SHA256);
+        aesKey = expand(mac, secret, STREAM_AES_LABEL);
+        macKey = expand(mac, secret, STREAM_MAC_LABEL);
+        cipher = CryptoContextPool.borrowCipher(AES_CTR);
+        cipher.init(mode, new SecretKeySpec(aesKey, 0, 16, "AES"), new IvParameterSpec(iv));
+        mac.init(new SecretKeySpec(macKey, 0, MAC_SIZE, "HMACSHA256"));
+      } catch (GeneralSecurityException e) {
+        release();
+        throw new IOException(e);
+      } finally {
+        for (byte[] k : new byte[][] {secret, aesKey, macKey}) {
+          if (k != null) {
+            Arrays.fill(k, (byte) 0);
+          }
+        }
+      }
+      mac.update(header);
+    }
+
+    /** HMAC-SHA256(secret, label || 0x01), the first block of HKDF-Expand. */
+    private static byte[] expand(Mac mac, byte[] secret, String label)
+        throws GeneralSecurityException {
+      mac.init(new SecretKeySpec(secret, "HMACSHA256"));
+      mac.update(label.getBytes(StandardCharsets.US_ASCII));
+      mac.update((byte) 1);
+      return mac.doFinal();
+    }
+
+    /** Returns the cipher and MAC to the pool; the keys are unusable after. */
+    void release() {
+      CryptoContextPool.release(cipher, AES_CTR);
+      CryptoContextPool.release(mac, HMAC_SHA256);
+      cipher = null;
+      mac = null;
+    }
+  }
+
+  private static class PasswordOutputStream extends FilterOutputStream {
+    private final StreamKeys keys;
+    private final byte[] buf = new byte[8192];
+    private boolean closed;
+
+    PasswordOutputStream(OutputStream out, StreamKeys keys) {
+      super(out);
+      this.keys = keys;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      while (len > 0) {
+        int n = Math.min(len, buf.length);
+        try {
+          n = keys.cipher.update(b, off, n, buf, 0);
+        } catch (ShortBufferException e) {
+          throw new IOException(e);
+        }
+        keys.mac.update(buf, 0, n);
+        out.write(buf, 0, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        out.write(keys.mac.doFinal());
+      } finally {
+        keys.release();
+        out.close();
+      }
+    }
+  }
+
+  private static class PasswordInputStream extends FilterInputStream {
+    private final StreamKeys keys;
+    /*
+     * Ciphertext read ahead of the caller. The last MAC_SIZE bytes are held
+     * back until the end of the stream, where they turn out to be the MAC.
+     */
+    private final byte[] pending = new byte[8192 + MAC_SIZE];
+    private int pendingLen;
+    private boolean eof;
+    private boolean verified;
+
+    PasswordInputStream(InputStream in, StreamKeys keys) {
+      super(in);
+      this.keys = keys;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (keys.cipher == null) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      while (!eof && pendingLen < pending.length) {
+        int n = in.read(pending, pendingLen, pending.length - pendingLen);
+        if (n < 0) {
+          eof = true;
+        } else {
+          pendingLen += n;
+        }
+      }
+      int available = pendingLen - MAC_SIZE;
+      if (available <= 0) {
+        verify();
+        return -1;
+      }
+      int n = Math.min(len, available);
+      keys.mac.update(pending, 0, n);
+      try {
+        n = keys.cipher.update(pending, 0, n, b, off);
+      } catch (ShortBufferException e) {
+        throw new IOException(e);
+      }
+      System.arraycopy(pending, n, pending, 0, pendingLen - n);
+      pendingLen -= n;
+      return n;
+    }
+
+    private void verify() throws IOException {
+      if (verified) {
+        return;
+      }
+      if (pendingLen != MAC_SIZE) {
+        throw new EOFException("Stream truncated before the MAC");
+      }
+      byte[] expected = keys.mac.doFinal();
+      if (!MessageDigest.isEqual(expected, Arrays.copyOf(pending, MAC_SIZE))) {
+        throw new IOException("MAC mismatch: data has been modified or wrong password supplied");
+      }
+      verified = true;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] b = new byte[(int) Math.min(n, 8192)];
+      long skipped = 0;
+      while (skipped < n) {
+        int r = read(b, 0, (int) Math.min(b.length, n - skipped));
+        if (r < 0) {
+          break;
+        }
+        skipped += r;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return Math.max(0, pendingLen - MAC_SIZE);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      keys.release();
+      super.close();
+    }
+  }
+
   public  byte[] decrypt2(byte[] input, byte[] keyBytes) throws Exception{
     SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
-    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    Cipher cipher = borrowCipher();
 
     ByteArrayOutputStream byteArrayOutputStream;
 
@@ -310,8 +760,12 @@ public class AesCtr extends JavaxCipher
     cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivByte));
     byteArrayOutputStream = new ByteArrayOutputStream();
     CipherOutputStream cipherOutputStream = new CipherOutputStream(byteArrayOutputStream, cipher);
-    cipherOutputStream.write(input);
-    cipherOutputStream.close();
+    try {
+      cipherOutputStream.write(input);
+      cipherOutputStream.close();
+    } finally {
+      CryptoContextPool.release(cipher, AES_CTR);
+    }
 
     byte[] decryptedByte = removePadding(byteArrayOutputStream.toByteArray());
 
@@ -329,21 +783,13 @@ public class AesCtr extends JavaxCipher
 
   public static byte[] addPadding(byte[] input) {
     int res = 16 - input.length % 16;
-    byte[] result = new byte[res];
-
-    Arrays.fill(result,(byte) res);
-    return ArrayUtils.addAll(input, result);
+    byte[] result = Arrays.copyOf(input, input.length + res);
+    Arrays.fill(result, input.length, result.length, (byte) res);
+    return result;
   }
 
   public static byte[] generateIV() {
-    SecureRandom secureRandom = new SecureRandom();
-    byte[] newSeed = secureRandom.generateSeed(16);
-    secureRandom.setSeed(newSeed);
-
-    byte[] byteIV = new byte[16];
-    secureRandom.nextBytes(byteIV);
-
-    return byteIV;
+    return NonceService.getDefault().nextIV();
   }
 
 
@@ -1,10 +1,14 @@
 package com.databps.bigdaf.kuber.algorithms;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * @author merlin
  * @create 2018-03-08 下午5:31
  */
-public class ChaCha20 {
+public class ChaCha20 implements StreamCipher {
   /*
    * Key size in byte
    */
@@ -20,8 +24,43 @@ public class ChaCha20 {
    */
   public static final int NONCE_SIZE_IETF = 12; //IETF nonce size = 96 bits
 
+  /*
+   * Block size in byte
+   */
+  public static final int BLOCK_SIZE = 64;
+
   private int[] matrix = new int[16];
 
+  /*
+   * Number of blocks generated per iteration of the bulk loop. The state is
+   * loaded once per batch, but the rounds of the blocks run one after the
+   * other: HotSpot does not vectorize the scalar round function.
+   */
+  private static final int PARALLEL_BLOCKS = 4;
+
+  /*
+   * Keystream words of the blocks being generated, and the bytes of the last
+   * partially consumed block. Both are kept for the lifetime of the instance
+   * so that process() never allocates.
+   */
+  private final int[] words = new int[16 * PARALLEL_BLOCKS];
+
+  private final byte[] keystream = new byte[BLOCK_SIZE];
+
+  private int keystreamPos = BLOCK_SIZE;
+
+  /*
+   * Block counter. With the reference nonce it is 64 bits wide, state words 12
+   * and 13. With the IETF nonce word 13 is the first nonce word, so the
+   * counter is word 12 alone and ends at maxCounter rather than carrying into
+   * the nonce, as in RFC 7539 and the JDK cipher.
+   */
+  private long counter;
+
+  private final long initialCounter;
+
+  private final long maxCounter;
+
 
   protected static int littleEndianToInt(byte[] bs, int i) {
     return (bs[i] & 0xff) | ((bs[i + 1] & 0xff) << 8) | ((bs[i + 2] & 0xff) << 16) | ((bs[i + 3] & 0xff) << 24);
@@ -34,21 +73,6 @@ public class ChaCha20 {
     bs[++off] = (byte)(n >>> 24);
   }
 
-  protected static int ROTATE(int v, int c) {
-    return (v << c) | (v >>> (32 - c));
-  }
-
-  protected static void quarterRound(int[] x, int a, int b, int c, int d) {
-    x[a] += x[b];
-    x[d] = ROTATE(x[d] ^ x[a], 16);
-    x[c] += x[d];
-    x[b] = ROTATE(x[b] ^ x[c], 12);
-    x[a] += x[b];
-    x[d] = ROTATE(x[d] ^ x[a], 8);
-    x[c] += x[d];
-    x[b] = ROTATE(x[b] ^ x[c], 7);
-  }
-
   public class WrongNonceSizeException extends Exception {
     private static final long serialVersionUID = 2687731889587117531L;
   }
@@ -79,63 +103,292 @@ public class ChaCha20 {
     this.matrix[11] = littleEndianToInt(key, 28);
 
     if (nonce.length == NONCE_SIZE_REF) {        // reference implementation
+      this.initialCounter = 0;
+      this.maxCounter = Long.MAX_VALUE;
       this.matrix[12] = 0;
       this.matrix[13] = 0;
       this.matrix[14] = littleEndianToInt(nonce, 0);
       this.matrix[15] = littleEndianToInt(nonce, 4);
 
     } else if (nonce.length == NONCE_SIZE_IETF) {
-      this.matrix[12] = counter;
+      this.initialCounter = counter & 0xffffffffL;
+      this.maxCounter = 0xffffffffL;
+      this.matrix[12] = 0;
       this.matrix[13] = littleEndianToInt(nonce, 0);
       this.matrix[14] = littleEndianToInt(nonce, 4);
       this.matrix[15] = littleEndianToInt(nonce, 8);
     } else {
       throw new WrongNonceSizeException();
     }
+    this.counter = this.initialCounter;
+  }
+
+  /**
+   * Positions the keystream at the given byte offset from the start of the
+   * stream, so that the next byte processed is XORed with keystream byte
+   * {@code position}.
+   * @param position Stream position in bytes, not negative.
+   * @throws IllegalArgumentException if the position is beyond the keystream
+   *     of a 32-bit IETF counter.
+   */
+  public void seek(long position) {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position " + position);
+    }
+    seek(position / BLOCK_SIZE, (int) (position % BLOCK_SIZE));
   }
 
+  /**
+   * Positions the keystream at byte {@code offset} of block {@code block},
+   * counted from the initial block counter.
+   * @param block Block index relative to the initial counter.
+   * @param offset Offset within the block, 0 to 63.
+   * @throws IllegalArgumentException if the block is beyond the keystream of
+   *     a 32-bit IETF counter.
+   */
+  public void seek(long block, int offset) {
+    if (offset < 0 || offset >= BLOCK_SIZE) {
+      throw new IllegalArgumentException("Invalid block offset " + offset);
+    }
+    if (block < 0 || block > maxCounter - initialCounter) {
+      throw new IllegalArgumentException("Block " + block + " beyond the "
+          + (maxCounter == 0xffffffffL ? "32" : "64") + "-bit counter");
+    }
+    counter = initialCounter + block;
+    keystreamPos = BLOCK_SIZE;
+    if (offset > 0) {
+      generate(1);
+      for (int i = 16; i-- > 0; ) intToLittleEndian(words[i], keystream, 4 * i);
+      keystreamPos = offset;
+    }
+  }
+
+  /**
+   * Returns the stream position of the next byte to be processed.
+   */
+  public long getPosition() {
+    long position = (counter - initialCounter) * BLOCK_SIZE;
+    if (keystreamPos < BLOCK_SIZE) {
+      position -= BLOCK_SIZE - keystreamPos;
+    }
+    return position;
+  }
+
+  /**
+   * Encrypts len bytes of src into dst. Calls on the same instance continue the
+   * keystream where the previous call stopped.
+   */
   public void encrypt(byte[] dst, byte[] src, int len) {
-    int[] x = new int[16];
-    byte[] output = new byte[64];
-    int i, dpos = 0, spos = 0;
-
-    while (len > 0) {
-      for (i = 16; i-- > 0; ) x[i] = this.matrix[i];
-      for (i = 20; i > 0; i -= 2) {
-        quarterRound(x, 0, 4,  8, 12);
-        quarterRound(x, 1, 5,  9, 13);
-        quarterRound(x, 2, 6, 10, 14);
-        quarterRound(x, 3, 7, 11, 15);
-        quarterRound(x, 0, 5, 10, 15);
-        quarterRound(x, 1, 6, 11, 12);
-        quarterRound(x, 2, 7,  8, 13);
-        quarterRound(x, 3, 4,  9, 14);
-      }
-      for (i = 16; i-- > 0; ) x[i] += this.matrix[i];
-      for (i = 16; i-- > 0; ) intToLittleEndian(x[i], output, 4 * i);
+    process(src, 0, dst, 0, len);
+  }
 
-      // TODO: (1) check block count is 32-bit vs 64-bit; (2) java int is signed!
-      this.matrix[12] += 1;
-      if (this.matrix[12] <= 0) {
-        this.matrix[13] += 1;
+  public void decrypt(byte[] dst, byte[] src, int len) {
+    process(src, 0, dst, 0, len);
+  }
+
+  /**
+   * Encrypts buf[off, off + len) in place.
+   */
+  public void encrypt(byte[] buf, int off, int len) {
+    process(buf, off, buf, off, len);
+  }
+
+  /**
+   * Decrypts buf[off, off + len) in place.
+   */
+  public void decrypt(byte[] buf, int off, int len) {
+    process(buf, off, buf, off, len);
+  }
+
+  /**
+   * XORs len bytes of src with the keystream into dst. src and dst may be the
+   * same array. The block counter and the unused part of the current keystream
+   * block are kept across calls, so a file can be processed in chunks of any
+   * size with a single instance.
+   */
+  public void process(byte[] src, int srcOff, byte[] dst, int dstOff, int len) {
+    // Finish the keystream block left over from the previous call.
+    while (len > 0 && keystreamPos < BLOCK_SIZE) {
+      dst[dstOff++] = (byte) (src[srcOff++] ^ keystream[keystreamPos++]);
+      len--;
+    }
+
+    while (len >= PARALLEL_BLOCKS * BLOCK_SIZE) {
+      generate(PARALLEL_BLOCKS);
+      xorWords(src, srcOff, dst, dstOff, 16 * PARALLEL_BLOCKS);
+      srcOff += PARALLEL_BLOCKS * BLOCK_SIZE;
+      dstOff += PARALLEL_BLOCKS * BLOCK_SIZE;
+      len -= PARALLEL_BLOCKS * BLOCK_SIZE;
+    }
+
+    while (len >= BLOCK_SIZE) {
+      generate(1);
+      xorWords(src, srcOff, dst, dstOff, 16);
+      srcOff += BLOCK_SIZE;
+      dstOff += BLOCK_SIZE;
+      len -= BLOCK_SIZE;
+    }
+
+    if (len > 0) {
+      generate(1);
+      for (int i = 16; i-- > 0; ) intToLittleEndian(words[i], keystream, 4 * i);
+      for (int i = 0; i < len; i++) {
+        dst[dstOff + i] = (byte) (src[srcOff + i] ^ keystream[i]);
       }
-      if (len <= 64) {
-        for (i = len; i-- > 0; ) {
-          dst[i + dpos] = (byte) (src[i + spos] ^ output[i]);
+      keystreamPos = len;
+    }
+  }
+
+  /**
+   * XORs all remaining bytes of src with the keystream into dst, advancing the
+   * position of both buffers. Heap buffers go through the array path; direct
+   * buffers are processed a little-endian long at a time.
+   */
+  public void process(ByteBuffer src, ByteBuffer dst) {
+    int len = src.remaining();
+    if (dst.remaining() < len) {
+      throw new BufferOverflowException();
+    }
+    if (src.hasArray() && dst.hasArray()) {
+      process(src.array(), src.arrayOffset() + src.position(),
+          dst.array(), dst.arrayOffset() + dst.position(), len);
+      src.position(src.position() + len);
+      dst.position(dst.position() + len);
+      return;
+    }
+
+    while (len > 0 && keystreamPos < BLOCK_SIZE) {
+      dst.put((byte) (src.get() ^ keystream[keystreamPos++]));
+      len--;
+    }
+
+    if (len >= BLOCK_SIZE) {
+      final ByteOrder srcOrder = src.order();
+      final ByteOrder dstOrder = dst.order();
+      src.order(ByteOrder.LITTLE_ENDIAN);
+      dst.order(ByteOrder.LITTLE_ENDIAN);
+      try {
+        while (len >= BLOCK_SIZE) {
+          final int blocks = Math.min(len / BLOCK_SIZE, PARALLEL_BLOCKS);
+          generate(blocks);
+          for (int i = 0; i < 16 * blocks; i += 2) {
+            dst.putLong(src.getLong() ^ ((words[i] & 0xffffffffL) | ((long) words[i + 1] << 32)));
+          }
+          len -= blocks * BLOCK_SIZE;
         }
-        return;
+      } finally {
+        src.order(srcOrder);
+        dst.order(dstOrder);
       }
-      for (i = 64; i-- > 0; ) {
-        dst[i + dpos] = (byte) (src[i + spos] ^ output[i]);
+    }
+
+    if (len > 0) {
+      generate(1);
+      for (int i = 16; i-- > 0; ) intToLittleEndian(words[i], keystream, 4 * i);
+      for (int i = 0; i < len; i++) {
+        dst.put((byte) (src.get() ^ keystream[i]));
       }
-      len -= 64;
-      spos += 64;
-      dpos += 64;
+      keystreamPos = len;
     }
   }
 
-  public void decrypt(byte[] dst, byte[] src, int len) {
-    encrypt(dst, src, len);
+  /**
+   * XORs count keystream words with src into dst, one little-endian word at a
+   * time.
+   */
+  private void xorWords(byte[] src, int srcOff, byte[] dst, int dstOff, int count) {
+    final int[] ks = words;
+    for (int i = 0; i < count; i++) {
+      final int k = ks[i];
+      dst[dstOff    ] = (byte) (src[srcOff    ] ^ k);
+      dst[dstOff + 1] = (byte) (src[srcOff + 1] ^ (k >>>  8));
+      dst[dstOff + 2] = (byte) (src[srcOff + 2] ^ (k >>> 16));
+      dst[dstOff + 3] = (byte) (src[srcOff + 3] ^ (k >>> 24));
+      srcOff += 4;
+      dstOff += 4;
+    }
+  }
+
+  /**
+   * Generates the next {@code blocks} keystream blocks into {@link #words} and
+   * advances the block counter.
+   * @throws IllegalStateException if the counter would pass its last block.
+   */
+  private void generate(int blocks) {
+    if (counter > maxCounter - (blocks - 1)) {
+      throw new IllegalStateException("Keystream exhausted: block "
+          + (counter + blocks - 1) + " beyond the block counter");
+    }
+    final int[] m = this.matrix;
+    final int j0 = m[0], j1 = m[1], j2 = m[2], j3 = m[3];
+    final int j4 = m[4], j5 = m[5], j6 = m[6], j7 = m[7];
+    final int j8 = m[8], j9 = m[9], j10 = m[10], j11 = m[11];
+    final int j14 = m[14], j15 = m[15];
+    final int[] out = words;
+    long c = counter;
+
+    for (int b = 0, off = 0; b < blocks; b++, off += 16, c++) {
+      final int j12 = (int) c, j13 = m[13] | (int) (c >>> 32);
+      int x0 = j0, x1 = j1, x2 = j2, x3 = j3;
+      int x4 = j4, x5 = j5, x6 = j6, x7 = j7;
+      int x8 = j8, x9 = j9, x10 = j10, x11 = j11;
+      int x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+
+      for (int i = 20; i > 0; i -= 2) {
+        // column round
+        x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+        x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+        x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0,  8);
+        x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8,  7);
+        x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+        x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+        x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1,  8);
+        x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9,  7);
+        x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+        x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+        x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2,  8);
+        x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10,  7);
+        x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+        x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+        x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3,  8);
+        x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11,  7);
+        // diagonal round
+        x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+        x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+        x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0,  8);
+        x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10,  7);
+        x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+        x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+        x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1,  8);
+        x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11,  7);
+        x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+        x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+        x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2,  8);
+        x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8,  7);
+        x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+        x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+        x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3,  8);
+        x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9,  7);
+      }
+
+      out[off     ] = x0 + j0;
+      out[off +  1] = x1 + j1;
+      out[off +  2] = x2 + j2;
+      out[off +  3] = x3 + j3;
+      out[off +  4] = x4 + j4;
+      out[off +  5] = x5 + j5;
+      out[off +  6] = x6 + j6;
+      out[off +  7] = x7 + j7;
+      out[off +  8] = x8 + j8;
+      out[off +  9] = x9 + j9;
+      out[off + 10] = x10 + j10;
+      out[off + 11] = x11 + j11;
+      out[off + 12] = x12 + j12;
+      out[off + 13] = x13 + j13;
+      out[off + 14] = x14 + j14;
+      out[off + 15] = x15 + j15;
+    }
+    counter = c;
   }
 
-}
\ No newline at end of file
+}
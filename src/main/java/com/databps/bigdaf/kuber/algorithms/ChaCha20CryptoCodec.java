@@ -0,0 +1,193 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import static org.apache.hadoop.fs.CommonConfigurationKeysPublic.HADOOP_SECURITY_JAVA_SECURE_RANDOM_ALGORITHM_DEFAULT;
+import static org.apache.hadoop.fs.CommonConfigurationKeysPublic.HADOOP_SECURITY_JAVA_SECURE_RANDOM_ALGORITHM_KEY;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CipherSuite;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.Decryptor;
+import org.apache.hadoop.crypto.Encryptor;
+
+/**
+ * Hadoop {@link CryptoCodec} backed by Kuber's {@link ChaCha20}.
+ * <p/>
+ * The IV is 16 bytes so that the codec drops into streams written for
+ * AES-CTR: the first 8 bytes are the ChaCha20 nonce and the last 8 bytes are a
+ * big-endian counter of 16-byte units. IV arithmetic in
+ * {@link #calculateIV(byte[], long, byte[])} therefore matches AES-CTR, and
+ * the cipher seeks to byte {@code counter * 16} of the keystream.
+ * <p/>
+ * Hadoop's {@link CipherSuite} enum is closed, so the codec reports
+ * {@link CipherSuite#UNKNOWN}; use {@link CryptoCodecFactory} to select it
+ * from configuration.
+ */
+public class ChaCha20CryptoCodec extends CryptoCodec {
+  private static final Log LOG =
+      LogFactory.getLog(ChaCha20CryptoCodec.class.getName());
+
+  /**
+   * IV length in bytes.
+   */
+  public static final int IV_SIZE = 16;
+
+  /**
+   * Size of the unit counted by the IV counter, as for AES-CTR.
+   */
+  public static final int COUNTER_UNIT = 16;
+
+  private Configuration conf;
+  private SecureRandom random;
+
+  public ChaCha20CryptoCodec() {
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    final String secureRandomAlg = conf.get(
+        HADOOP_SECURITY_JAVA_SECURE_RANDOM_ALGORITHM_KEY,
+        HADOOP_SECURITY_JAVA_SECURE_RANDOM_ALGORITHM_DEFAULT);
+    try {
+      random = SecureRandom.getInstance(secureRandomAlg);
+    } catch (GeneralSecurityException e) {
+      LOG.warn(e.getMessage());
+      random = new SecureRandom();
+    }
+  }
+
+  @Override
+  public CipherSuite getCipherSuite() {
+    return CipherSuite.UNKNOWN;
+  }
+
+  @Override
+  public Encryptor createEncryptor() throws GeneralSecurityException {
+    return new ChaCha20Cipher();
+  }
+
+  @Override
+  public Decryptor createDecryptor() throws GeneralSecurityException {
+    return new ChaCha20Cipher();
+  }
+
+  /**
+   * The nonce half of the IV is copied, the counter half is initIV's counter
+   * plus {@code counter}, wrapping within 64 bits so the nonce never changes.
+   */
+  @Override
+  public void calculateIV(byte[] initIV, long counter, byte[] IV) {
+    Preconditions.checkArgument(initIV.length == IV_SIZE);
+    Preconditions.checkArgument(IV.length == IV_SIZE);
+
+    System.arraycopy(initIV, 0, IV, 0, ChaCha20.NONCE_SIZE_REF);
+    long sum = bigEndianToLong(initIV, ChaCha20.NONCE_SIZE_REF) + counter;
+    for (int i = IV_SIZE; i-- > ChaCha20.NONCE_SIZE_REF; ) {
+      IV[i] = (byte) sum;
+      sum >>>= 8;
+    }
+  }
+
+  @Override
+  public void generateSecureRandom(byte[] bytes) {
+    if (random == null) {
+      random = new SecureRandom();
+    }
+    random.nextBytes(bytes);
+  }
+
+  static long bigEndianToLong(byte[] bs, int off) {
+    long v = 0;
+    for (int i = 0; i < 8; i++) {
+      v = (v << 8) | (bs[off + i] & 0xff);
+    }
+    return v;
+  }
+
+  private static class ChaCha20Cipher implements Encryptor, Decryptor {
+    private final byte[] nonce = new byte[ChaCha20.NONCE_SIZE_REF];
+    private byte[] key;
+    private ChaCha20 cipher;
+
+    @Override
+    public void init(byte[] key, byte[] iv) throws IOException {
+      Preconditions.checkNotNull(key);
+      Preconditions.checkNotNull(iv);
+      Preconditions.checkArgument(iv.length == IV_SIZE);
+
+      // Re-keying is only needed when key or nonce change; a new counter is
+      // just a seek.
+      if (cipher == null || !Arrays.equals(this.key, key)
+          || !rangeEquals(nonce, iv)) {
+        System.arraycopy(iv, 0, nonce, 0, nonce.length);
+        try {
+          cipher = new ChaCha20(key, nonce, 0);
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+        this.key = key.clone();
+      }
+      final long counter = bigEndianToLong(iv, ChaCha20.NONCE_SIZE_REF);
+      // 4 counter units per ChaCha20 block; unsigned so the full 64-bit
+      // counter range is usable.
+      cipher.seek(counter >>> 2, (int) (counter & 3) * COUNTER_UNIT);
+    }
+
+    private static boolean rangeEquals(byte[] nonce, byte[] iv) {
+      for (int i = 0; i < nonce.length; i++) {
+        if (nonce[i] != iv[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * ChaCha20 will consume all of the input data. It requires enough space in
+     * the destination buffer to encrypt entire input buffer.
+     */
+    @Override
+    public void encrypt(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      process(inBuffer, outBuffer);
+    }
+
+    /**
+     * ChaCha20 will consume all of the input data. It requires enough space in
+     * the destination buffer to decrypt entire input buffer.
+     */
+    @Override
+    public void decrypt(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      process(inBuffer, outBuffer);
+    }
+
+    private void process(ByteBuffer inBuffer, ByteBuffer outBuffer)
+        throws IOException {
+      Preconditions.checkState(cipher != null, "Cipher not initialized");
+      try {
+        cipher.process(inBuffer, outBuffer);
+      } catch (RuntimeException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public boolean isContextReset() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.security.MessageDigest;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * ChaCha20-Poly1305 AEAD (RFC 8439 section 2.8) over byte arrays, in place.
+ * <p/>
+ * Block 0 of the ChaCha20 keystream under the nonce supplies the one-time
+ * Poly1305 key; the data is encrypted from block 1 on. The tag covers the
+ * associated data and the ciphertext, each padded to 16 bytes, followed by
+ * both lengths. An instance is bound to one key and is not thread safe.
+ */
+public class ChaCha20Poly1305 {
+
+  public static final int KEY_SIZE = ChaCha20.KEY_SIZE;
+
+  public static final int NONCE_SIZE = ChaCha20.NONCE_SIZE_IETF;
+
+  public static final int TAG_SIZE = Poly1305.TAG_SIZE;
+
+  private static final byte[] NO_AAD = new byte[0];
+
+  private final byte[] key;
+  private final Poly1305 mac = new Poly1305();
+  private final byte[] macKey = new byte[Poly1305.KEY_SIZE];
+  private final byte[] lengths = new byte[16];
+  private final byte[] expected = new byte[TAG_SIZE];
+
+  public ChaCha20Poly1305(byte[] key) {
+    if (key.length != KEY_SIZE) {
+      throw new IllegalArgumentException("Key must be " + KEY_SIZE + " bytes");
+    }
+    this.key = key.clone();
+  }
+
+  /**
+   * Encrypts buf[off, off + len) in place and writes the tag to tag[tagOff].
+   */
+  public void seal(byte[] nonce, byte[] aad, byte[] buf, int off, int len,
+      byte[] tag, int tagOff) {
+    ChaCha20 cipher = newCipher(nonce);
+    cipher.encrypt(buf, off, len);
+    computeTag(aad, buf, off, len, tag, tagOff);
+  }
+
+  /**
+   * Checks the tag at tag[tagOff] and only then decrypts buf[off, off + len)
+   * in place.
+   * @throws AEADBadTagException if the tag does not match; buf is unchanged.
+   */
+  public void open(byte[] nonce, byte[] aad, byte[] buf, int off, int len,
+      byte[] tag, int tagOff) throws AEADBadTagException {
+    ChaCha20 cipher = newCipher(nonce);
+    computeTag(aad, buf, off, len, expected, 0);
+    byte[] actual = new byte[TAG_SIZE];
+    System.arraycopy(tag, tagOff, actual, 0, TAG_SIZE);
+    if (!MessageDigest.isEqual(expected, actual)) {
+      throw new AEADBadTagException("Tag mismatch");
+    }
+    cipher.decrypt(buf, off, len);
+  }
+
+  /**
+   * A ChaCha20 at block 1 of the keystream for nonce, with block 0 taken as
+   * the Poly1305 key.
+   */
+  private ChaCha20 newCipher(byte[] nonce) {
+    if (nonce.length != NONCE_SIZE) {
+      throw new IllegalArgumentException("Nonce must be " + NONCE_SIZE + " bytes");
+    }
+    ChaCha20 cipher;
+    try {
+      cipher = new ChaCha20(key, nonce, 0);
+    } catch (Exception e) {
+      // Sizes were checked above.
+      throw new IllegalStateException(e);
+    }
+    for (int i = 0; i < macKey.length; i++) {
+      macKey[i] = 0;
+    }
+    cipher.encrypt(macKey, 0, macKey.length);
+    mac.init(macKey, 0);
+    cipher.seek(ChaCha20.BLOCK_SIZE);
+    return cipher;
+  }
+
+  private void computeTag(byte[] aad, byte[] ct, int off, int len, byte[] tag, int tagOff) {
+    if (aad == null) {
+      aad = NO_AAD;
+    }
+    mac.update(aad, 0, aad.length);
+    mac.padToBlock();
+    mac.update(ct, off, len);
+    mac.padToBlock();
+    longToLittleEndian(aad.length, lengths, 0);
+    longToLittleEndian(len, lengths, 8);
+    mac.update(lengths, 0, lengths.length);
+    mac.doFinal(tag, tagOff);
+  }
+
+  private static void longToLittleEndian(long n, byte[] bs, int off) {
+    ChaCha20.intToLittleEndian((int) n, bs, off);
+    ChaCha20.intToLittleEndian((int) (n >>> 32), bs, off + 4);
+  }
+}
@@ -1,5 +1,8 @@
 package com.databps.bigdaf.kuber.algorithms;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * @author merlin
  * @create 2018-03-22 下午5:06
@@ -41,4 +44,75 @@ public abstract class Cipher2
    * @throws Exception
    */
   public abstract byte[] decrypt(byte[] data, int offset) throws Exception;
+
+
+  /**
+   * Number of bytes encrypt adds to the data, e.g. a leading IV.
+   * @return Encryption overhead in bytes.
+   */
+  public int getOverhead()
+  {
+    return 0;
+  }
+
+
+  /**
+   * Encrypt in[inOff, inOff + len) into out starting at outOff, which needs
+   * len + {@link #getOverhead()} bytes. Subclasses should override this to
+   * avoid the copies of the default implementation.
+   * @return Number of bytes written to out.
+   * @throws Exception
+   */
+  public int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception
+  {
+    byte[] result = encrypt(Arrays.copyOfRange(in, inOff, inOff + len));
+    System.arraycopy(result, 0, out, outOff, result.length);
+    return result.length;
+  }
+
+
+  /**
+   * Decrypt the output of encrypt at in[inOff, inOff + len) into out starting
+   * at outOff, which needs len - {@link #getOverhead()} bytes.
+   * @return Number of bytes written to out.
+   * @throws Exception
+   */
+  public int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception
+  {
+    byte[] result = decrypt(Arrays.copyOfRange(in, inOff, inOff + len));
+    System.arraycopy(result, 0, out, outOff, result.length);
+    return result.length;
+  }
+
+
+  /**
+   * Encrypt the remaining bytes of in into out. Both positions advance by the
+   * bytes consumed and produced.
+   * @return Number of bytes written to out.
+   * @throws Exception
+   */
+  public int encrypt(ByteBuffer in, ByteBuffer out) throws Exception
+  {
+    byte[] data = new byte[in.remaining()];
+    in.get(data);
+    byte[] result = encrypt(data);
+    out.put(result);
+    return result.length;
+  }
+
+
+  /**
+   * Decrypt the remaining bytes of in, the output of encrypt, into out. Both
+   * positions advance by the bytes consumed and produced.
+   * @return Number of bytes written to out.
+   * @throws Exception
+   */
+  public int decrypt(ByteBuffer in, ByteBuffer out) throws Exception
+  {
+    byte[] data = new byte[in.remaining()];
+    in.get(data);
+    byte[] result = decrypt(data);
+    out.put(result);
+    return result.length;
+  }
 }
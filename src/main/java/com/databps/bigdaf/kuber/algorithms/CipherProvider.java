@@ -0,0 +1,50 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Service provider of a {@link StreamCipher} implementation, discovered with
+ * {@link java.util.ServiceLoader} from
+ * META-INF/services/com.databps.bigdaf.kuber.algorithms.CipherProvider and
+ * selected by {@link CipherProviders}.
+ * <p/>
+ * Implementations of the same {@link #getAlgorithm()} produce the same
+ * keystream for the same 32 byte key and 12 byte nonce, so data written
+ * with one can be read with any other. Implementations must have a public
+ * no-argument constructor.
+ */
+public abstract class CipherProvider {
+
+  public static final int KEY_SIZE = 32;
+
+  public static final int NONCE_SIZE = 12;
+
+  /**
+   * @return the unique name of this implementation, e.g. "chacha20-java".
+   */
+  public abstract String getName();
+
+  /**
+   * @return the algorithm name as used in file headers, e.g. "chacha20".
+   */
+  public abstract String getAlgorithm();
+
+  /**
+   * @return whether this implementation can run in this JVM, e.g. whether
+   * the JDK or native library it needs is present.
+   */
+  public boolean isAvailable() {
+    return true;
+  }
+
+  /**
+   * A cipher positioned at the start of the keystream for key and nonce.
+   */
+  public abstract StreamCipher newCipher(byte[] key, byte[] nonce)
+      throws GeneralSecurityException;
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+}
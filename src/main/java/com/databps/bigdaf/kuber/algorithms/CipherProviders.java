@@ -0,0 +1,267 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Discovers {@link CipherProvider}s with {@link ServiceLoader} and picks one
+ * per algorithm from configuration.
+ * <p/>
+ * {@value #PROVIDER_KEY} names the implementation to use. Left empty, the
+ * first available provider of the algorithm in service file order is used.
+ * Set to {@value #AUTO}, every available provider is benchmarked once and the
+ * fastest wins. The winner is remembered per host and JVM version in the
+ * properties file {@value #AUTO_CACHE_KEY}, so a node benchmarks only the
+ * first time and nodes with different hardware each keep their own choice.
+ */
+public final class CipherProviders {
+  private static final Log LOG = LogFactory.getLog(CipherProviders.class);
+
+  public static final String PROVIDER_KEY = "kuber.cipher.provider";
+
+  public static final String PROVIDER_DEFAULT = "";
+
+  public static final String AUTO = "auto";
+
+  /** Per-host cache of the auto selection; empty to benchmark in every JVM. */
+  public static final String AUTO_CACHE_KEY = "kuber.cipher.auto.cache";
+
+  public static final String AUTO_CACHE_DEFAULT = "${user.home}/.kuber/cipher-auto.properties";
+
+  /** Bytes each provider encrypts in the auto benchmark. */
+  public static final String AUTO_BYTES_KEY = "kuber.cipher.auto.bytes";
+
+  public static final int AUTO_BYTES_DEFAULT = 16 * 1024 * 1024;
+
+  private static final List<CipherProvider> PROVIDERS = load();
+
+  private static final ConcurrentMap<String, CipherProvider> FASTEST =
+      new ConcurrentHashMap<String, CipherProvider>();
+
+  private CipherProviders() {
+  }
+
+  private static List<CipherProvider> load() {
+    List<CipherProvider> providers = new ArrayList<CipherProvider>();
+    for (CipherProvider p : ServiceLoader.load(CipherProvider.class,
+        CipherProvider.class.getClassLoader())) {
+      providers.add(p);
+    }
+    return Collections.unmodifiableList(providers);
+  }
+
+  /**
+   * @return every discovered provider, available or not.
+   */
+  public static List<CipherProvider> getProviders() {
+    return PROVIDERS;
+  }
+
+  /**
+   * @return the provider named name, or null.
+   */
+  public static CipherProvider get(String name) {
+    for (CipherProvider p : PROVIDERS) {
+      if (p.getName().equalsIgnoreCase(name)) {
+        return p;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the available providers of algorithm, or of any algorithm if it
+   * is null.
+   */
+  public static List<CipherProvider> getAvailable(String algorithm) {
+    List<CipherProvider> available = new ArrayList<CipherProvider>();
+    for (CipherProvider p : PROVIDERS) {
+      if ((algorithm == null || p.getAlgorithm().equalsIgnoreCase(algorithm))
+          && p.isAvailable()) {
+        available.add(p);
+      }
+    }
+    return available;
+  }
+
+  /**
+   * The provider for algorithm as configured by {@value #PROVIDER_KEY}. A
+   * configured provider of another algorithm is passed over, so a file is
+   * always read with its own algorithm.
+   * @param algorithm the algorithm, or null for any.
+   * @throws IllegalArgumentException if the configured provider is unknown
+   * or unavailable, or no provider implements algorithm.
+   */
+  public static CipherProvider select(Configuration conf, String algorithm) {
+    String name = conf.getTrimmed(PROVIDER_KEY, PROVIDER_DEFAULT);
+    if (AUTO.equalsIgnoreCase(name)) {
+      return fastest(conf, algorithm);
+    }
+    if (!name.isEmpty()) {
+      CipherProvider p = get(name);
+      if (p == null || !p.isAvailable()) {
+        throw new IllegalArgumentException("Cipher provider " + name
+            + " is unknown or unavailable; available: " + getAvailable(null));
+      }
+      if (algorithm == null || p.getAlgorithm().equalsIgnoreCase(algorithm)) {
+        return p;
+      }
+      LOG.debug("Cipher provider " + name + " does not implement " + algorithm);
+    }
+    List<CipherProvider> available = getAvailable(algorithm);
+    if (available.isEmpty()) {
+      throw new IllegalArgumentException("No cipher provider for " + algorithm);
+    }
+    return available.get(0);
+  }
+
+  /**
+   * The fastest available provider of algorithm (any if null) on this host,
+   * from the in-process choice, the per-host cache file or a benchmark.
+   */
+  public static CipherProvider fastest(Configuration conf, String algorithm) {
+    String key = (algorithm == null ? "any" : algorithm.toLowerCase()) + "@" + hostName()
+        + "/" + System.getProperty("java.version");
+    CipherProvider p = FASTEST.get(key);
+    if (p != null) {
+      return p;
+    }
+
+    File cache = null;
+    String cachePath = conf.getTrimmed(AUTO_CACHE_KEY, AUTO_CACHE_DEFAULT);
+    if (!cachePath.isEmpty()) {
+      cache = new File(cachePath);
+      Properties cached = readCache(cache);
+      p = get(cached.getProperty(key, ""));
+      if (p != null && p.isAvailable()
+          && (algorithm == null || p.getAlgorithm().equalsIgnoreCase(algorithm))) {
+        FASTEST.putIfAbsent(key, p);
+        return p;
+      }
+    }
+
+    List<CipherProvider> available = getAvailable(algorithm);
+    if (available.isEmpty()) {
+      throw new IllegalArgumentException("No cipher provider for " + algorithm);
+    }
+    int bytes = conf.getInt(AUTO_BYTES_KEY, AUTO_BYTES_DEFAULT);
+    double best = -1;
+    for (CipherProvider candidate : available) {
+      double rate;
+      try {
+        rate = benchmark(candidate, bytes);
+      } catch (Exception e) {
+        LOG.warn("Cipher provider " + candidate + " failed its benchmark", e);
+        continue;
+      }
+      LOG.info(String.format("Cipher provider %s: %.1f MB/s", candidate, rate / (1 << 20)));
+      if (rate > best) {
+        best = rate;
+        p = candidate;
+      }
+    }
+    if (p == null) {
+      throw new IllegalArgumentException("Every cipher provider for " + algorithm + " failed");
+    }
+    LOG.info("Selected cipher provider " + p + " for " + key);
+    FASTEST.putIfAbsent(key, p);
+    if (cache != null) {
+      writeCache(cache, key, p.getName());
+    }
+    return p;
+  }
+
+  /**
+   * @return the encryption rate of provider in bytes per second, the best of
+   * three timed runs over bytes bytes after a warm-up run.
+   */
+  public static double benchmark(CipherProvider provider, int bytes)
+      throws GeneralSecurityException {
+    byte[] key = NonceService.getDefault().nextNonce(CipherProvider.KEY_SIZE);
+    byte[] nonce = NonceService.getDefault().nextNonce(CipherProvider.NONCE_SIZE);
+    StreamCipher cipher = provider.newCipher(key, nonce);
+    byte[] buf = new byte[Math.min(bytes, 1 << 20)];
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < 4; run++) {
+      cipher.seek(0);
+      long start = System.nanoTime();
+      for (int done = 0; done < bytes; done += buf.length) {
+        cipher.encrypt(buf, 0, Math.min(buf.length, bytes - done));
+      }
+      long elapsed = System.nanoTime() - start;
+      if (run > 0) {
+        best = Math.min(best, elapsed);
+      }
+    }
+    return bytes * 1e9 / Math.max(best, 1);
+  }
+
+  private static String hostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      return "localhost";
+    }
+  }
+
+  private static Properties readCache(File cache) {
+    Properties props = new Properties();
+    if (cache.isFile()) {
+      try {
+        InputStream in = new FileInputStream(cache);
+        try {
+          props.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOG.warn("Cannot read cipher provider cache " + cache, e);
+      }
+    }
+    return props;
+  }
+
+  private static synchronized void writeCache(File cache, String key, String name) {
+    Properties props = readCache(cache);
+    props.setProperty(key, name);
+    File dir = cache.getAbsoluteFile().getParentFile();
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Cannot create " + dir);
+      }
+      // Written aside and renamed, so readers never see half a file.
+      File tmp = File.createTempFile(cache.getName(), ".tmp", dir);
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        props.store(out, "Fastest Kuber cipher provider per algorithm, host and JVM");
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(cache)) {
+        cache.delete();
+        if (!tmp.renameTo(cache)) {
+          tmp.delete();
+          throw new IOException("Cannot rename " + tmp + " to " + cache);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot write cipher provider cache " + cache, e);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CipherSuite;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.JceAesCtrCryptoCodec;
+import org.apache.hadoop.crypto.OpensslAesCtrCryptoCodec;
+import org.apache.hadoop.crypto.OpensslCipher;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Creates the {@link CryptoCodec} used by Kuber streams from configuration.
+ * <p/>
+ * Set {@value #KUBER_CRYPTO_CODEC_CLASS_KEY} to
+ * {@link ChaCha20CryptoCodec} to run Kuber streams on ChaCha20. Otherwise the
+ * streams use AES-CTR from the first codec of Hadoop's
+ * hadoop.security.crypto.codec.classes.aes.ctr.nopadding chain that loads,
+ * by default OpenSSL and then JCE, so nodes with libcrypto get the native
+ * cipher and others fall back to JCE.
+ */
+public class CryptoCodecFactory {
+  private static final Log LOG = LogFactory.getLog(CryptoCodecFactory.class);
+
+  public static final String KUBER_CRYPTO_CODEC_CLASS_KEY =
+      "kuber.crypto.codec.class";
+
+  /** Used when no codec of the AES-CTR chain can be loaded. */
+  public static final Class<? extends CryptoCodec> KUBER_CRYPTO_CODEC_CLASS_DEFAULT =
+      JceAesCtrCryptoCodec.class;
+
+  private static final AtomicBoolean FALLBACK_LOGGED = new AtomicBoolean();
+
+  private static volatile CryptoCodec defaultAesCtr;
+
+  private CryptoCodecFactory() {
+  }
+
+  /**
+   * @param conf the configuration
+   * @return a configured instance of the codec class named by
+   *     {@value #KUBER_CRYPTO_CODEC_CLASS_KEY}, or else of the AES-CTR chain.
+   */
+  public static CryptoCodec getInstance(Configuration conf) {
+    Class<? extends CryptoCodec> klass = conf.getClass(
+        KUBER_CRYPTO_CODEC_CLASS_KEY, null, CryptoCodec.class);
+    if (klass != null) {
+      return ReflectionUtils.newInstance(klass, conf);
+    }
+    return getAesCtrInstance(conf);
+  }
+
+  /**
+   * @return the first codec of the configured AES-CTR chain that loads, or
+   *     JCE if none does.
+   */
+  public static CryptoCodec getAesCtrInstance(Configuration conf) {
+    CryptoCodec codec = CryptoCodec.getInstance(conf, CipherSuite.AES_CTR_NOPADDING);
+    if (codec == null) {
+      codec = ReflectionUtils.newInstance(KUBER_CRYPTO_CODEC_CLASS_DEFAULT, conf);
+    }
+    if (!(codec instanceof OpensslAesCtrCryptoCodec)
+        && FALLBACK_LOGGED.compareAndSet(false, true)) {
+      LOG.info("AES-CTR streams use " + codec.getClass().getSimpleName()
+          + "; OpenSSL: " + getOpensslStatus());
+    }
+    return codec;
+  }
+
+  /**
+   * The AES-CTR codec for streams created without a configuration, chosen
+   * once from the default configuration.
+   */
+  static CryptoCodec getDefaultAesCtrInstance() {
+    CryptoCodec codec = defaultAesCtr;
+    if (codec == null) {
+      codec = getAesCtrInstance(new Configuration());
+      defaultAesCtr = codec;
+    }
+    return codec;
+  }
+
+  /**
+   * @return "available", or why native OpenSSL cannot be used here.
+   */
+  public static String getOpensslStatus() {
+    try {
+      String reason = OpensslCipher.getLoadingFailureReason();
+      return reason == null ? "available" : reason;
+    } catch (LinkageError e) {
+      return e.toString();
+    }
+  }
+
+  /**
+   * @return a short description of the cipher behind codec for diagnostics,
+   *     e.g. "OpensslAesCtrCryptoCodec".
+   */
+  public static String describe(CryptoCodec codec) {
+    return codec == null ? "none" : codec.getClass().getSimpleName();
+  }
+}
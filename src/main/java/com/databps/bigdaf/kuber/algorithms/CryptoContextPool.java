@@ -0,0 +1,188 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * Process wide pools of JCE {@link Cipher}, {@link Mac} and
+ * {@link SecretKeyFactory} instances.
+ * <p/>
+ * {@code getInstance} walks the provider list and builds a new engine on every
+ * call, which dominates the cost of encrypting many small files. Ciphers and
+ * MACs are borrowed for the life of a message or stream and given back with
+ * {@link #release(Cipher, String, String)} / {@link #release(Mac, String)},
+ * naming the algorithm they were borrowed for; a borrower always
+ * re-initialises the instance, so no key or IV carries over. Each algorithm
+ * and provider has its own lock-free queue of at most {@link #MAX_IDLE} idle
+ * instances, and the pool keeps no reference to borrowed ones: an instance
+ * that is never given back is simply garbage collected. Key factories are
+ * stateless between calls and kept one per thread.
+ */
+public final class CryptoContextPool {
+
+  public static final int MAX_IDLE = 32;
+
+  private static final class Pool<T> {
+    final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+    final AtomicInteger size = new AtomicInteger();
+
+    T poll() {
+      T t = idle.poll();
+      if (t != null) {
+        size.decrementAndGet();
+      }
+      return t;
+    }
+
+    void offer(T t) {
+      if (size.incrementAndGet() <= MAX_IDLE) {
+        idle.offer(t);
+      } else {
+        size.decrementAndGet();
+      }
+    }
+  }
+
+  private static final ConcurrentMap<String, Pool<Cipher>> CIPHERS =
+      new ConcurrentHashMap<String, Pool<Cipher>>();
+  private static final ConcurrentMap<String, Pool<Mac>> MACS =
+      new ConcurrentHashMap<String, Pool<Mac>>();
+
+  private static final ThreadLocal<Map<String, SecretKeyFactory>> KEY_FACTORIES =
+      new ThreadLocal<Map<String, SecretKeyFactory>>() {
+        @Override
+        protected Map<String, SecretKeyFactory> initialValue() {
+          return new HashMap<String, SecretKeyFactory>();
+        }
+      };
+
+  private static final AtomicLong CREATED = new AtomicLong();
+  private static final AtomicLong REUSED = new AtomicLong();
+
+  private CryptoContextPool() {
+  }
+
+  /**
+   * Borrows a Cipher for transformation from the default provider. The
+   * caller must init it before use.
+   */
+  public static Cipher borrowCipher(String transformation) throws GeneralSecurityException {
+    return borrowCipher(transformation, null);
+  }
+
+  /**
+   * Borrows a Cipher for transformation from provider, or from the default
+   * provider if it is null or empty. The caller must init it before use.
+   */
+  public static Cipher borrowCipher(String transformation, String provider)
+      throws GeneralSecurityException {
+    Cipher cipher = pool(CIPHERS, poolKey(transformation, provider)).poll();
+    if (cipher != null) {
+      REUSED.incrementAndGet();
+    } else {
+      cipher = provider == null || provider.isEmpty() ? Cipher.getInstance(transformation)
+          : Cipher.getInstance(transformation, provider);
+      CREATED.incrementAndGet();
+    }
+    return cipher;
+  }
+
+  /**
+   * Gives back a Cipher from {@link #borrowCipher(String)}. The caller must not
+   * use it afterwards. Null is ignored.
+   */
+  public static void release(Cipher cipher, String transformation) {
+    release(cipher, transformation, null);
+  }
+
+  /**
+   * Gives back a Cipher from {@link #borrowCipher(String, String)}, with the
+   * transformation and provider it was borrowed for. The caller must not use
+   * it afterwards. Null is ignored.
+   */
+  public static void release(Cipher cipher, String transformation, String provider) {
+    if (cipher != null) {
+      pool(CIPHERS, poolKey(transformation, provider)).offer(cipher);
+    }
+  }
+
+  /**
+   * Borrows a Mac for algorithm from the default provider. The caller must
+   * init it before use.
+   */
+  public static Mac borrowMac(String algorithm) throws GeneralSecurityException {
+    Mac mac = pool(MACS, poolKey(algorithm, null)).poll();
+    if (mac != null) {
+      REUSED.incrementAndGet();
+    } else {
+      mac = Mac.getInstance(algorithm);
+      CREATED.incrementAndGet();
+    }
+    return mac;
+  }
+
+  /**
+   * Gives back a Mac from {@link #borrowMac}, with the algorithm it was
+   * borrowed for, resetting any partial message. Null is ignored.
+   */
+  public static void release(Mac mac, String algorithm) {
+    if (mac != null) {
+      mac.reset();
+      pool(MACS, poolKey(algorithm, null)).offer(mac);
+    }
+  }
+
+  /**
+   * The calling thread's SecretKeyFactory for algorithm. It must not be
+   * handed to another thread.
+   */
+  public static SecretKeyFactory secretKeyFactory(String algorithm)
+      throws GeneralSecurityException {
+    Map<String, SecretKeyFactory> factories = KEY_FACTORIES.get();
+    SecretKeyFactory factory = factories.get(algorithm);
+    if (factory == null) {
+      factory = SecretKeyFactory.getInstance(algorithm);
+      factories.put(algorithm, factory);
+      CREATED.incrementAndGet();
+    } else {
+      REUSED.incrementAndGet();
+    }
+    return factory;
+  }
+
+  /** @return the number of engines built through getInstance so far. */
+  public static long getCreated() {
+    return CREATED.get();
+  }
+
+  /** @return the number of borrows served by an existing engine so far. */
+  public static long getReused() {
+    return REUSED.get();
+  }
+
+  private static String poolKey(String algorithm, String provider) {
+    return provider == null || provider.isEmpty() ? algorithm : algorithm + "@" + provider;
+  }
+
+  private static <T> Pool<T> pool(ConcurrentMap<String, Pool<T>> pools, String key) {
+    Pool<T> pool = pools.get(key);
+    if (pool == null) {
+      Pool<T> created = new Pool<T>();
+      pool = pools.putIfAbsent(key, created);
+      if (pool == null) {
+        pool = created;
+      }
+    }
+    return pool;
+  }
+}
@@ -0,0 +1,677 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databps.bigdaf.kuber.algorithms;
+
+import com.google.common.base.Preconditions;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.CryptoStreamUtils;
+import org.apache.hadoop.crypto.Decryptor;
+import org.apache.hadoop.crypto.OpensslAesCtrCryptoCodec;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanSetDropBehind;
+import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * CryptoInputStream2 decrypts data written by {@link CryptoOutputStream2}. It
+ * is not thread-safe, except for the positioned reads. The cipher must be a
+ * counter mode cipher so that plain text and cipher text have a 1:1 mapping;
+ * the key points of the decryption are (1) calculating the counter and (2)
+ * padding through stream position:
+ * <p/>
+ * counter = base + pos/16;
+ * padding = pos%16;
+ * <p/>
+ * the same arithmetic {@link CryptoOutputStream2#calculateIV} uses. Reads of
+ * at least one buffer, positioned reads and {@link ByteBuffer} reads decrypt
+ * in place in the caller's buffer; only small sequential reads go through the
+ * internal buffers, which are borrowed from {@link DirectBufferArena} until
+ * close. OpenSSL only decrypts direct buffers, so with that codec the in place
+ * paths stage heap buffers through direct ones.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class CryptoInputStream2 extends FilterInputStream implements
+    Seekable, PositionedReadable, ByteBufferReadable, CanSetReadahead,
+    CanSetDropBehind {
+  /**
+   * Unit counted by the IV counter, see {@link CryptoOutputStream2}.
+   */
+  private static final int COUNTER_UNIT = 16;
+
+  private final byte[] oneByteBuf = new byte[1];
+  private final CryptoCodec codec;
+  private final Decryptor decryptor;
+  private final int bufferSize;
+
+  /** Whether the decryptor only takes direct buffers. */
+  private final boolean direct;
+
+  /**
+   * Input data buffer. The data starts at inBuffer.position() and ends at
+   * inBuffer.limit().
+   */
+  private ByteBuffer inBuffer;
+
+  /**
+   * The decrypted data buffer. The data starts at outBuffer.position() and
+   * ends at outBuffer.limit();
+   */
+  private ByteBuffer outBuffer;
+  private long streamOffset = 0; // Underlying stream offset.
+
+  /**
+   * Padding = pos%16; Padding is put into {@link #inBuffer} before any other
+   * data goes in. The purpose of padding is to put the input data at proper
+   * position.
+   */
+  private byte padding;
+  private boolean closed;
+  private final byte[] key;
+  private final byte[] initIV;
+  private byte[] iv;
+  private final boolean isByteBufferReadable;
+
+  /**
+   * Whether the underlying stream supports
+   * {@link org.apache.hadoop.fs.ByteBufferReadable}
+   */
+  private Boolean usingByteBufferRead = null;
+
+  /** Decryptor pool for positioned reads */
+  private final Queue<Decryptor> decryptorPool =
+      new ConcurrentLinkedQueue<Decryptor>();
+
+  public CryptoInputStream2(InputStream in, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv) throws IOException {
+    this(in, codec, bufferSize, key, iv,
+        CryptoStreamUtils.getInputStreamOffset(in));
+  }
+
+  public CryptoInputStream2(InputStream in, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, long streamOffset)
+      throws IOException {
+    super(in);
+    Preconditions.checkNotNull(codec);
+    this.bufferSize = bufferSize - bufferSize % COUNTER_UNIT;
+    Preconditions.checkArgument(this.bufferSize >= COUNTER_UNIT,
+        "Buffer size too small: %s", bufferSize);
+    this.codec = codec;
+    this.direct = codec instanceof OpensslAesCtrCryptoCodec;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    this.iv = iv.clone();
+    this.streamOffset = streamOffset;
+    isByteBufferReadable = in instanceof ByteBufferReadable;
+    decryptor = getDecryptor();
+    inBuffer = DirectBufferArena.getDefault().borrow(this.bufferSize);
+    outBuffer = DirectBufferArena.getDefault().borrow(this.bufferSize);
+    resetStreamOffset(streamOffset);
+  }
+
+  /**
+   * @return the codec this stream decrypts with, e.g.
+   *     "OpensslAesCtrCryptoCodec".
+   */
+  public String getBackend() {
+    return CryptoCodecFactory.describe(codec);
+  }
+
+  /**
+   * Uses the codec configured by
+   * {@link CryptoCodecFactory#getInstance(Configuration)}.
+   */
+  public CryptoInputStream2(InputStream in, Configuration conf,
+      byte[] key, byte[] iv) throws IOException {
+    this(in, CryptoCodecFactory.getInstance(conf),
+        CryptoStreamUtils.getBufferSize(conf), key, iv);
+  }
+
+  public InputStream getWrappedStream() {
+    return in;
+  }
+
+  /**
+   * Decryption is buffer based.
+   * If there is data in {@link #outBuffer}, then read it out of this buffer.
+   * If the request is at least one buffer long, the cipher text is read into
+   * b and decrypted there. Otherwise read more from the underlying stream into
+   * {@link #inBuffer} and do the decryption.
+   * @param b the buffer into which the decrypted data is read.
+   * @param off the buffer offset.
+   * @param len the maximum number of decrypted data bytes to read.
+   * @return int the total number of decrypted data bytes read into the buffer.
+   * @throws IOException
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (b == null) {
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+
+    final int remaining = outBuffer.remaining();
+    if (remaining > 0) {
+      int n = Math.min(len, remaining);
+      outBuffer.get(b, off, n);
+      return n;
+    }
+
+    if (len >= bufferSize && padding == 0) {
+      final int n = in.read(b, off, len);
+      if (n <= 0) {
+        return n;
+      }
+      streamOffset += n;
+      decryptInPlace(decryptor, ByteBuffer.wrap(b, off, n), inBuffer, outBuffer);
+      clearBuffers();
+      padding = afterDecryption(decryptor, inBuffer, streamOffset, iv);
+      return n;
+    }
+
+    final int n = readFromUnderlyingStream(inBuffer);
+    if (n <= 0) {
+      return n;
+    }
+
+    streamOffset += n; // Read n bytes
+    decrypt(decryptor, inBuffer, outBuffer, padding);
+    padding = afterDecryption(decryptor, inBuffer, streamOffset, iv);
+    final int m = Math.min(len, outBuffer.remaining());
+    outBuffer.get(b, off, m);
+    return m;
+  }
+
+  /**
+   * Read data from underlying stream into buf, without a copy when the stream
+   * is {@link ByteBufferReadable} or buf is a heap buffer.
+   */
+  private int readFromUnderlyingStream(ByteBuffer buf) throws IOException {
+    if (usingByteBufferRead == null) {
+      usingByteBufferRead = isByteBufferReadable;
+      if (isByteBufferReadable) {
+        try {
+          return ((ByteBufferReadable) in).read(buf);
+        } catch (UnsupportedOperationException e) {
+          usingByteBufferRead = Boolean.FALSE;
+        }
+      }
+    }
+    if (usingByteBufferRead) {
+      return ((ByteBufferReadable) in).read(buf);
+    }
+
+    final int pos = buf.position();
+    if (buf.hasArray()) {
+      final int n = in.read(buf.array(), buf.arrayOffset() + pos,
+          buf.remaining());
+      if (n > 0) {
+        buf.position(pos + n);
+      }
+      return n;
+    }
+    final int toRead = Math.min(buf.remaining(), bufferSize);
+    final byte[] tmp = getTmpBuf();
+    final int n = in.read(tmp, 0, toRead);
+    if (n > 0) {
+      buf.put(tmp, 0, n);
+    }
+    return n;
+  }
+
+  private byte[] tmpBuf;
+  private byte[] getTmpBuf() {
+    if (tmpBuf == null) {
+      tmpBuf = new byte[bufferSize];
+    }
+    return tmpBuf;
+  }
+
+  /**
+   * Do the decryption using inBuffer as input and outBuffer as output.
+   * Upon return, inBuffer is cleared; the decrypted data starts at
+   * outBuffer.position() and ends at outBuffer.limit();
+   */
+  private void decrypt(Decryptor decryptor, ByteBuffer inBuffer,
+      ByteBuffer outBuffer, byte padding) throws IOException {
+    Preconditions.checkState(inBuffer.position() >= padding);
+    if (inBuffer.position() == padding) {
+      // There is no real data in inBuffer.
+      return;
+    }
+    inBuffer.flip();
+    outBuffer.clear();
+    decryptor.decrypt(inBuffer, outBuffer);
+    inBuffer.clear();
+    outBuffer.flip();
+    if (padding > 0) {
+      /*
+       * The plain text and cipher text have a 1:1 mapping, they start at the
+       * same position.
+       */
+      outBuffer.position(padding);
+    }
+  }
+
+  /**
+   * Decrypt the remaining bytes of buf in place. The decryptor must already be
+   * positioned at the first byte; buf's position and limit are unchanged. A
+   * heap buf for a direct-only decryptor goes through stageIn and stageOut,
+   * which are overwritten.
+   */
+  private void decryptInPlace(Decryptor decryptor, ByteBuffer buf,
+      ByteBuffer stageIn, ByteBuffer stageOut) throws IOException {
+    if (!direct || buf.isDirect()) {
+      decryptor.decrypt(buf.duplicate(), buf.duplicate());
+      return;
+    }
+    final ByteBuffer src = buf.duplicate();
+    final ByteBuffer dst = buf.duplicate();
+    while (src.hasRemaining()) {
+      final int n = Math.min(src.remaining(), stageIn.capacity());
+      stageIn.clear();
+      stageIn.put(src.array(), src.arrayOffset() + src.position(), n);
+      src.position(src.position() + n);
+      stageIn.flip();
+      stageOut.clear();
+      decryptor.decrypt(stageIn, stageOut);
+      stageOut.flip();
+      dst.put(stageOut);
+    }
+  }
+
+  /**
+   * Move a freshly initialized decryptor past the first padding bytes of its
+   * counter unit.
+   */
+  private void skipPadding(Decryptor decryptor, byte padding,
+      ByteBuffer stageIn, ByteBuffer stageOut) throws IOException {
+    if (padding > 0) {
+      decryptInPlace(decryptor, ByteBuffer.allocate(padding), stageIn,
+          stageOut);
+    }
+  }
+
+  /** Empty {@link #inBuffer} and {@link #outBuffer} after staging. */
+  private void clearBuffers() {
+    inBuffer.clear();
+    outBuffer.clear();
+    outBuffer.limit(0);
+  }
+
+  /**
+   * This method is executed immediately after decryption. Check whether
+   * decryptor should be updated and recalculate padding if needed.
+   */
+  private byte afterDecryption(Decryptor decryptor, ByteBuffer inBuffer,
+      long position, byte[] iv) throws IOException {
+    byte padding = 0;
+    if (decryptor.isContextReset()) {
+      /*
+       * This code is generally not executed since the decryptor usually
+       * maintains decryption context (e.g. the counter) internally. However,
+       * some implementations can't maintain context so a re-init is necessary
+       * after each decryption call.
+       */
+      updateDecryptor(decryptor, position, iv);
+      padding = getPadding(position);
+      inBuffer.position(padding);
+    }
+    return padding;
+  }
+
+  private long getCounter(long position) {
+    return position / COUNTER_UNIT;
+  }
+
+  private byte getPadding(long position) {
+    return (byte) (position % COUNTER_UNIT);
+  }
+
+  /** Calculate the counter and iv, update the decryptor. */
+  private void updateDecryptor(Decryptor decryptor, long position, byte[] iv)
+      throws IOException {
+    final long counter = getCounter(position);
+    codec.calculateIV(initIV, counter, iv);
+    decryptor.init(key, iv);
+  }
+
+  /**
+   * Reset the underlying stream offset; clear {@link #inBuffer} and
+   * {@link #outBuffer}. This Typically happens during {@link #seek(long)}
+   * or {@link #skip(long)}.
+   */
+  private void resetStreamOffset(long offset) throws IOException {
+    streamOffset = offset;
+    clearBuffers();
+    updateDecryptor(decryptor, offset, iv);
+    padding = getPadding(offset);
+    inBuffer.position(padding); // Set proper position for input data.
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      super.close();
+    } finally {
+      freeBuffers();
+      closed = true;
+    }
+  }
+
+  /** Positioned read. It is thread-safe */
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    checkStream();
+    try {
+      final int n = ((PositionedReadable) in).read(position, buffer, offset,
+          length);
+      if (n > 0) {
+        // This operation does not change the current offset of the file
+        decrypt(position, buffer, offset, n);
+      }
+
+      return n;
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not support " +
+          "positioned read.");
+    }
+  }
+
+  /**
+   * Decrypt length bytes in buffer starting at offset. Output is also put
+   * into buffer starting at offset. It is thread-safe.
+   */
+  private void decrypt(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    Decryptor decryptor = null;
+    ByteBuffer stageIn = null;
+    ByteBuffer stageOut = null;
+    try {
+      decryptor = getDecryptor();
+      if (direct) {
+        // The stream's own buffers belong to the sequential reader.
+        final int size = Math.min(length, bufferSize);
+        stageIn = DirectBufferArena.getDefault().borrow(size);
+        stageOut = DirectBufferArena.getDefault().borrow(size);
+      }
+      updateDecryptor(decryptor, position, initIV.clone());
+      skipPadding(decryptor, getPadding(position), stageIn, stageOut);
+      decryptInPlace(decryptor, ByteBuffer.wrap(buffer, offset, length),
+          stageIn, stageOut);
+    } finally {
+      returnDecryptor(decryptor);
+      DirectBufferArena.getDefault().release(stageIn);
+      DirectBufferArena.getDefault().release(stageOut);
+    }
+  }
+
+  /** Positioned read fully. It is thread-safe */
+  @Override
+  public void readFully(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    checkStream();
+    try {
+      ((PositionedReadable) in).readFully(position, buffer, offset, length);
+      if (length > 0) {
+        // This operation does not change the current offset of the file
+        decrypt(position, buffer, offset, length);
+      }
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not support " +
+          "positioned readFully.");
+    }
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer) throws IOException {
+    readFully(position, buffer, 0, buffer.length);
+  }
+
+  /** Seek to a position. */
+  @Override
+  public void seek(long pos) throws IOException {
+    Preconditions.checkArgument(pos >= 0, "Cannot seek to negative offset.");
+    checkStream();
+    try {
+      /*
+       * If data of target pos in the underlying stream has already been read
+       * and decrypted in outBuffer, we just need to re-position outBuffer.
+       */
+      if (pos <= streamOffset && pos >= (streamOffset - outBuffer.remaining())) {
+        int forward = (int) (pos - (streamOffset - outBuffer.remaining()));
+        if (forward > 0) {
+          outBuffer.position(outBuffer.position() + forward);
+        }
+      } else {
+        ((Seekable) in).seek(pos);
+        resetStreamOffset(pos);
+      }
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not support " +
+          "seek.");
+    }
+  }
+
+  /** Skip n bytes */
+  @Override
+  public long skip(long n) throws IOException {
+    Preconditions.checkArgument(n >= 0, "Negative skip length.");
+    checkStream();
+
+    if (n == 0) {
+      return 0;
+    } else if (n <= outBuffer.remaining()) {
+      int pos = outBuffer.position() + (int) n;
+      outBuffer.position(pos);
+      return n;
+    } else {
+      /*
+       * Subtract outBuffer.remaining() to see how many bytes we need to
+       * skip in the underlying stream. Add outBuffer.remaining() to the
+       * actual number of skipped bytes in the underlying stream to get the
+       * number of skipped bytes from the user's point of view.
+       */
+      n -= outBuffer.remaining();
+      long skipped = in.skip(n);
+      if (skipped < 0) {
+        skipped = 0;
+      }
+      long pos = streamOffset + skipped;
+      skipped += outBuffer.remaining();
+      resetStreamOffset(pos);
+      return skipped;
+    }
+  }
+
+  /** Get underlying stream position. */
+  @Override
+  public long getPos() throws IOException {
+    checkStream();
+    // Equals: ((Seekable) in).getPos() - outBuffer.remaining()
+    return streamOffset - outBuffer.remaining();
+  }
+
+  /**
+   * ByteBuffer read. Data is read from the underlying stream into buf and
+   * decrypted there.
+   */
+  @Override
+  public int read(ByteBuffer buf) throws IOException {
+    checkStream();
+    final int unread = outBuffer.remaining();
+    if (unread > 0) { // Have unread decrypted data in buffer.
+      int toRead = buf.remaining();
+      if (toRead <= unread) {
+        final int limit = outBuffer.limit();
+        outBuffer.limit(outBuffer.position() + toRead);
+        buf.put(outBuffer);
+        outBuffer.limit(limit);
+        return toRead;
+      } else {
+        buf.put(outBuffer);
+      }
+    }
+
+    final int pos = buf.position();
+    final int n = readFromUnderlyingStream(buf);
+    if (n > 0) {
+      final long start = streamOffset;
+      streamOffset += n; // Read n bytes
+      final ByteBuffer data = buf.duplicate();
+      data.position(pos);
+      data.limit(pos + n);
+      if (padding > 0) {
+        // The decryptor sits at the start of the counter unit.
+        updateDecryptor(decryptor, start, iv);
+        skipPadding(decryptor, getPadding(start), inBuffer, outBuffer);
+      }
+      decryptInPlace(decryptor, data, inBuffer, outBuffer);
+      clearBuffers();
+      padding = afterDecryption(decryptor, inBuffer, streamOffset, iv);
+    }
+
+    if (n >= 0) {
+      return unread + n;
+    } else {
+      if (unread == 0) {
+        return -1;
+      } else {
+        return unread;
+      }
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkStream();
+
+    return in.available() + outBuffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readLimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("Mark/reset not supported");
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    Preconditions.checkArgument(targetPos >= 0,
+        "Cannot seek to negative offset.");
+    checkStream();
+    try {
+      boolean result = ((Seekable) in).seekToNewSource(targetPos);
+      resetStreamOffset(targetPos);
+      return result;
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not support " +
+          "seekToNewSource.");
+    }
+  }
+
+  @Override
+  public void setReadahead(Long readahead) throws IOException,
+      UnsupportedOperationException {
+    try {
+      ((CanSetReadahead) in).setReadahead(readahead);
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not support " +
+          "setting the readahead caching strategy.");
+    }
+  }
+
+  @Override
+  public void setDropBehind(Boolean dropCache) throws IOException,
+      UnsupportedOperationException {
+    try {
+      ((CanSetDropBehind) in).setDropBehind(dropCache);
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not " +
+          "support setting the drop-behind caching setting.");
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(oneByteBuf, 0, 1) == -1) ? -1 : (oneByteBuf[0] & 0xff);
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /** Give the direct buffers back to the arena. */
+  private void freeBuffers() {
+    DirectBufferArena.getDefault().release(inBuffer);
+    DirectBufferArena.getDefault().release(outBuffer);
+    inBuffer = null;
+    outBuffer = null;
+  }
+
+  /** Get decryptor from pool */
+  private Decryptor getDecryptor() throws IOException {
+    Decryptor decryptor = decryptorPool.poll();
+    if (decryptor == null) {
+      try {
+        decryptor = codec.createDecryptor();
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+
+    return decryptor;
+  }
+
+  /** Return decryptor to pool */
+  private void returnDecryptor(Decryptor decryptor) {
+    if (decryptor != null) {
+      decryptorPool.add(decryptor);
+    }
+  }
+}
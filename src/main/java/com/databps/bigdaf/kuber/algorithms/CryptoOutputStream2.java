@@ -18,20 +18,29 @@
 package com.databps.bigdaf.kuber.algorithms;
 
 import com.google.common.base.Preconditions;
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.crypto.CipherSuite;
+import org.apache.hadoop.crypto.CryptoCodec;
 import org.apache.hadoop.crypto.CryptoStreamUtils;
 import org.apache.hadoop.crypto.Decryptor;
 import org.apache.hadoop.crypto.Encryptor;
+import org.apache.hadoop.crypto.JceAesCtrCryptoCodec;
+import org.apache.hadoop.crypto.OpensslAesCtrCryptoCodec;
 import org.apache.hadoop.fs.CanSetDropBehind;
 import org.apache.hadoop.fs.Syncable;
 
@@ -46,6 +55,21 @@ import org.apache.hadoop.fs.Syncable;
  * <p/>
  * The underlying stream offset is maintained as state.
  *
+ * The cipher comes from the {@link CryptoCodec} passed in, e.g.
+ * {@link ChaCha20CryptoCodec}, whose IV must count 16-byte units. Without
+ * one, AES-CTR comes from Hadoop's codec chain, which prefers OpenSSL; when
+ * that resolves to JCE the stream uses its own pooled JCE cipher instead.
+ * {@link #getBackend()} tells which one a stream runs on.
+ *
+ * Encrypted data reaches the wrapped stream without an extra copy. Ciphers
+ * working on arrays (JCE, ChaCha20) encrypt between heap buffers whose array
+ * is passed to write. The native OpenSSL cipher needs direct buffers, which
+ * are borrowed from {@link DirectBufferArena} until close; they are written
+ * straight to the wrapped stream if it is a {@link WritableByteChannel} or a
+ * {@link FileOutputStream}, and copied to a heap array otherwise.
+ * {@link ParallelCryptoOutputStream} writes the same output using several
+ * cores.
+ *
  * Note that while some of this class' methods are synchronized, this is just to
  * match the threadsafety behavior of DFSOutputStream. See HADOOP-11710.
  */
@@ -53,7 +77,10 @@ import org.apache.hadoop.fs.Syncable;
 @InterfaceStability.Evolving
 public class CryptoOutputStream2 extends FilterOutputStream implements
     Syncable, CanSetDropBehind {
+  private static final Log LOG = LogFactory.getLog(CryptoOutputStream2.class);
+
   private final byte[] oneByteBuf = new byte[1];
+  private final CryptoCodec codec;
   private final Encryptor encryptor;
   private final int bufferSize;
   
@@ -68,6 +95,9 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
    * outBuffer.limit();
    */
   private ByteBuffer outBuffer;
+
+  /** Channel taking direct {@link #outBuffer} writes, or null. */
+  private final WritableByteChannel channel;
   private long streamOffset = 0; // Underlying stream offset.
   
   /**
@@ -89,20 +119,59 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
   public CryptoOutputStream2(OutputStream out,
       int bufferSize, byte[] key, byte[] iv, long streamOffset)
       throws IOException {
+    this(out, null, bufferSize, key, iv, streamOffset);
+  }
+
+  /**
+   * @param codec codec providing the encryptor and IV arithmetic, or null for
+   *     AES-CTR from the default codec chain.
+   */
+  public CryptoOutputStream2(OutputStream out, CryptoCodec codec,
+      int bufferSize, byte[] key, byte[] iv, long streamOffset)
+      throws IOException {
     super(out);
+    if (codec == null) {
+      codec = CryptoCodecFactory.getDefaultAesCtrInstance();
+    }
+    if (codec instanceof JceAesCtrCryptoCodec) {
+      // Same cipher and IV arithmetic, but pooled; see JceAesCtrCipher.
+      codec = null;
+    }
+    this.codec = codec;
     this.bufferSize = bufferSize - bufferSize % 16;
     this.key = key.clone();
     this.initIV = iv.clone();
     this.iv = iv.clone();
-    inBuffer = ByteBuffer.allocateDirect(this.bufferSize);
-    outBuffer = ByteBuffer.allocateDirect(this.bufferSize);
     this.streamOffset = streamOffset;
     try {
-      encryptor = new JceAesCtrCipher(Cipher.ENCRYPT_MODE, "");
+      encryptor = codec != null ? codec.createEncryptor() :
+          new JceAesCtrCipher(Cipher.ENCRYPT_MODE, "");
     } catch (GeneralSecurityException e) {
       throw new IOException(e);
     }
+    if (codec instanceof OpensslAesCtrCryptoCodec) {
+      inBuffer = DirectBufferArena.getDefault().borrow(this.bufferSize);
+      outBuffer = DirectBufferArena.getDefault().borrow(this.bufferSize);
+      channel = getChannel(out);
+    } else {
+      inBuffer = ByteBuffer.allocate(this.bufferSize);
+      outBuffer = ByteBuffer.allocate(this.bufferSize);
+      channel = null;
+    }
     updateEncryptor();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Encrypting with " + getBackend());
+    }
+  }
+
+  /**
+   * Uses the codec configured by
+   * {@link CryptoCodecFactory#getInstance(Configuration)}.
+   */
+  public CryptoOutputStream2(OutputStream out, Configuration conf,
+      byte[] key, byte[] iv, long streamOffset) throws IOException {
+    this(out, CryptoCodecFactory.getInstance(conf),
+        CryptoStreamUtils.getBufferSize(conf), key, iv, streamOffset);
   }
   
   public CryptoOutputStream2(OutputStream out,
@@ -116,9 +185,30 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
         key, iv, streamOffset);
   }
 
+  private static WritableByteChannel getChannel(OutputStream out) {
+    if (out instanceof WritableByteChannel) {
+      return (WritableByteChannel) out;
+    }
+    if (out instanceof FileOutputStream) {
+      return ((FileOutputStream) out).getChannel();
+    }
+    return null;
+  }
+
   public OutputStream getWrappedStream() {
     return out;
   }
+
+  /**
+   * @return the cipher implementation this stream encrypts with, e.g.
+   *     "OpensslAesCtrCryptoCodec" or "JCE AES/CTR/NoPadding (SunJCE)".
+   */
+  public String getBackend() {
+    if (encryptor instanceof JceAesCtrCipher) {
+      return ((JceAesCtrCipher) encryptor).describe();
+    }
+    return CryptoCodecFactory.describe(codec);
+  }
   
   /**
    * Encryption is buffer based.
@@ -177,14 +267,17 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
       padding = 0;
     }
     final int len = outBuffer.remaining();
-    
-    /*
-     * If underlying stream supports {@link ByteBuffer} write in future, needs
-     * refine here. 
-     */
-    final byte[] tmp = getTmpBuf();
-    outBuffer.get(tmp, 0, len);
-    out.write(tmp, 0, len);
+    if (outBuffer.hasArray()) {
+      out.write(outBuffer.array(), outBuffer.arrayOffset() + outBuffer.position(), len);
+    } else if (channel != null) {
+      while (outBuffer.hasRemaining()) {
+        channel.write(outBuffer);
+      }
+    } else {
+      final byte[] tmp = getTmpBuf();
+      outBuffer.get(tmp, 0, len);
+      out.write(tmp, 0, len);
+    }
     
     streamOffset += len;
     if (encryptor.isContextReset()) {
@@ -205,7 +298,11 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
     padding =
         (byte)(streamOffset % 16);
     inBuffer.position(padding); // Set proper position for input data.
-    calculateIV(initIV, counter, iv);
+    if (codec != null) {
+      codec.calculateIV(initIV, counter, iv);
+    } else {
+      calculateIV(initIV, counter, iv);
+    }
     encryptor.init(key, iv);
   }
 
@@ -241,9 +338,12 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
     }
     try {
       super.close();
-      freeBuffers();
     } finally {
       closed = true;
+      freeBuffers();
+      if (encryptor instanceof JceAesCtrCipher) {
+        ((JceAesCtrCipher) encryptor).release();
+      }
     }
   }
   
@@ -303,26 +403,36 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
     }
   }
   
-  /** Forcibly free the direct buffers. */
+  /** Give direct buffers back to the arena. */
   private void freeBuffers() {
-    CryptoStreamUtils.freeDB(inBuffer);
-    CryptoStreamUtils.freeDB(outBuffer);
+    if (inBuffer.isDirect()) {
+      DirectBufferArena.getDefault().release(inBuffer);
+      DirectBufferArena.getDefault().release(outBuffer);
+    }
+    inBuffer = null;
+    outBuffer = null;
   }
 
 
-  private static class JceAesCtrCipher implements Encryptor, Decryptor {
-    private final Cipher cipher;
+  /**
+   * JCE AES-CTR borrowed from {@link CryptoContextPool} for the life of the
+   * stream. The key spec is rebuilt only when the key changes, since init is
+   * called again on every counter reset.
+   */
+  static class JceAesCtrCipher implements Encryptor, Decryptor {
+    private Cipher cipher;
+    private final String provider;
     private final int mode;
     private boolean contextReset = false;
+    private byte[] specKey;
+    private SecretKeySpec keySpec;
 
     public JceAesCtrCipher(int mode, String provider)
         throws GeneralSecurityException {
       this.mode = mode;
-      if (provider == null || provider.isEmpty()) {
-        cipher = Cipher.getInstance(CipherSuite.AES_CTR_NOPADDING.getName());
-      } else {
-        cipher = Cipher.getInstance(CipherSuite.AES_CTR_NOPADDING.getName(), provider);
-      }
+      this.provider = provider;
+      cipher = CryptoContextPool.borrowCipher(CipherSuite.AES_CTR_NOPADDING.getName(),
+          provider);
     }
 
     @Override
@@ -330,9 +440,12 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
       Preconditions.checkNotNull(key);
       Preconditions.checkNotNull(iv);
       contextReset = false;
+      if (keySpec == null || !Arrays.equals(specKey, key)) {
+        specKey = key.clone();
+        keySpec = new SecretKeySpec(key, "AES");
+      }
       try {
-        cipher.init(mode, new SecretKeySpec(key, "AES"),
-            new IvParameterSpec(iv));
+        cipher.init(mode, keySpec, new IvParameterSpec(iv));
       } catch (Exception e) {
         throw new IOException(e);
       }
@@ -382,6 +495,19 @@ public class CryptoOutputStream2 extends FilterOutputStream implements
     public boolean isContextReset() {
       return contextReset;
     }
+
+    /** Gives the cipher back to the pool; this instance is unusable after. */
+    void release() {
+      CryptoContextPool.release(cipher, CipherSuite.AES_CTR_NOPADDING.getName(), provider);
+      cipher = null;
+    }
+
+    String describe() {
+      if (cipher == null) {
+        return "JCE " + CipherSuite.AES_CTR_NOPADDING.getName() + " (released)";
+      }
+      return "JCE " + cipher.getAlgorithm() + " (" + cipher.getProvider().getName() + ")";
+    }
   }
 
 }
@@ -0,0 +1,166 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded LRU cache of PBKDF2WithHmacSHA1 derived keys.
+ * <p/>
+ * Entries are keyed by a fingerprint of the password, the salt, the
+ * iteration count and the key length, so repeated derivations for the same
+ * file (e.g. decrypting it again) cost one map lookup instead of thousands of
+ * HMAC iterations. The fingerprint is an HMAC under a random key that never
+ * leaves the instance, so the cache holds nothing that could be used to test
+ * password guesses offline. Evicted keys are zeroed.
+ */
+public class DerivedKeyCache {
+
+  public static final int DEFAULT_CAPACITY = 64;
+
+  private static final DerivedKeyCache DEFAULT = new DerivedKeyCache(DEFAULT_CAPACITY);
+
+  private static final class CacheKey {
+    final byte[] fingerprint;
+    final byte[] salt;
+    final int iterations;
+    final int keyBits;
+
+    CacheKey(byte[] fingerprint, byte[] salt, int iterations, int keyBits) {
+      this.fingerprint = fingerprint;
+      this.salt = salt;
+      this.iterations = iterations;
+      this.keyBits = keyBits;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey k = (CacheKey) o;
+      return iterations == k.iterations && keyBits == k.keyBits
+          && Arrays.equals(fingerprint, k.fingerprint) && Arrays.equals(salt, k.salt);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (31 * Arrays.hashCode(fingerprint) + Arrays.hashCode(salt))
+          + iterations) + keyBits;
+    }
+  }
+
+  private final int capacity;
+  private final Map<CacheKey, byte[]> keys;
+  private final Mac fingerprint;
+  private long hits;
+  private long misses;
+
+  public DerivedKeyCache(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.keys = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[]> eldest) {
+        if (size() > capacity) {
+          Arrays.fill(eldest.getValue(), (byte) 0);
+          return true;
+        }
+        return false;
+      }
+    };
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    try {
+      fingerprint = Mac.getInstance("HmacSHA256");
+      fingerprint.init(new SecretKeySpec(secret, "HmacSHA256"));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HmacSHA256 not available", e);
+    }
+  }
+
+  /**
+   * The process wide cache used by {@link AesCtr}.
+   */
+  public static DerivedKeyCache getDefault() {
+    return DEFAULT;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns PBKDF2WithHmacSHA1(password, salt, iterations) of keyBits bits,
+   * deriving it only if it is not cached. The caller owns the returned array.
+   */
+  public byte[] derive(String password, byte[] salt, int iterations, int keyBits)
+      throws GeneralSecurityException {
+    CacheKey key = new CacheKey(fingerprint(password), salt.clone(), iterations, keyBits);
+    synchronized (this) {
+      byte[] cached = keys.get(key);
+      if (cached != null) {
+        hits++;
+        return cached.clone();
+      }
+      misses++;
+    }
+
+    // Derived outside the lock: it is slow by design.
+    byte[] derived = deriveUncached(password, salt, iterations, keyBits);
+    synchronized (this) {
+      keys.put(key, derived.clone());
+    }
+    return derived;
+  }
+
+  /**
+   * Returns PBKDF2WithHmacSHA1(password, salt, iterations) of keyBits bits
+   * without touching any cache, for salts that are never seen twice.
+   */
+  public static byte[] deriveUncached(String password, byte[] salt, int iterations,
+      int keyBits) throws GeneralSecurityException {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyBits);
+    try {
+      return CryptoContextPool.secretKeyFactory("PBKDF2WithHmacSHA1").generateSecret(spec)
+          .getEncoded();
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  public synchronized int size() {
+    return keys.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized void clear() {
+    for (byte[] k : keys.values()) {
+      Arrays.fill(k, (byte) 0);
+    }
+    keys.clear();
+  }
+
+  private synchronized byte[] fingerprint(String password) {
+    ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+    fingerprint.update(bytes);
+    return fingerprint.doFinal();
+  }
+}
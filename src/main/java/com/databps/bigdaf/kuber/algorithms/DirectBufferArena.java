@@ -0,0 +1,297 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoStreamUtils;
+
+/**
+ * Process wide arena of direct {@link ByteBuffer}s shared by the Kuber crypto
+ * streams.
+ * <p/>
+ * {@code allocateDirect} reserves native memory through Bits.reserveMemory,
+ * which may run a full GC and sleep when the direct memory limit is near, so
+ * a stream per small file pays for two native allocations and frees. The
+ * arena instead rounds each request up to a power of two size class between
+ * {@link #MIN_CLASS} and {@link #MAX_CLASS} and hands out a slice of an idle
+ * buffer of that class. Released buffers stay idle for the next borrower
+ * until {@value #MAX_IDLE_BYTES_KEY} bytes are idle; beyond that, and for
+ * requests above the largest class, memory is freed at once.
+ * <p/>
+ * A borrowed buffer that becomes unreachable without {@link #release} is a
+ * leak: it is logged, counted and its memory taken back on a later borrow.
+ * With {@value #LEAK_TRACE_KEY} set the log names the borrowing code.
+ */
+public final class DirectBufferArena {
+  private static final Log LOG = LogFactory.getLog(DirectBufferArena.class);
+
+  /** Most bytes kept idle across all size classes; 0 disables pooling. */
+  public static final String MAX_IDLE_BYTES_KEY = "kuber.buffer.arena.max.idle.bytes";
+
+  public static final long MAX_IDLE_BYTES_DEFAULT = 64L * 1024 * 1024;
+
+  /** Record where each buffer was borrowed, for leak reports. */
+  public static final String LEAK_TRACE_KEY = "kuber.buffer.arena.leak.trace";
+
+  public static final boolean LEAK_TRACE_DEFAULT = false;
+
+  public static final int MIN_CLASS = 4 * 1024;
+
+  public static final int MAX_CLASS = 16 * 1024 * 1024;
+
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS);
+
+  private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS) - MIN_SHIFT + 1;
+
+  private static volatile DirectBufferArena defaultArena;
+
+  /**
+   * A borrowed buffer, held weakly so that dropping it unreleased is noticed.
+   * Equal to another lease of the same buffer instance; ByteBuffer's own
+   * equals compares contents and cannot be used.
+   */
+  private static final class Lease extends WeakReference<ByteBuffer> {
+    final int hash;
+    final ByteBuffer parent;
+    final int sizeClass;
+    final Throwable site;
+
+    Lease(ByteBuffer buffer, ByteBuffer parent, int sizeClass, Throwable site,
+        ReferenceQueue<ByteBuffer> queue) {
+      super(buffer, queue);
+      this.hash = System.identityHashCode(buffer);
+      this.parent = parent;
+      this.sizeClass = sizeClass;
+      this.site = site;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Lease)) {
+        return false;
+      }
+      ByteBuffer buffer = get();
+      return buffer != null && buffer == ((Lease) o).get();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final long maxIdleBytes;
+  private final boolean leakTrace;
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final Queue<ByteBuffer>[] idle = new Queue[CLASSES];
+  private final ConcurrentMap<Lease, Lease> leases = new ConcurrentHashMap<Lease, Lease>();
+  private final ReferenceQueue<ByteBuffer> dropped = new ReferenceQueue<ByteBuffer>();
+
+  private final AtomicLong idleBytes = new AtomicLong();
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final AtomicLong nativeBytes = new AtomicLong();
+  private final AtomicLong borrows = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong leaks = new AtomicLong();
+
+  public DirectBufferArena(long maxIdleBytes, boolean leakTrace) {
+    if (maxIdleBytes < 0) {
+      throw new IllegalArgumentException("Negative idle limit: " + maxIdleBytes);
+    }
+    this.maxIdleBytes = maxIdleBytes;
+    this.leakTrace = leakTrace;
+    for (int i = 0; i < CLASSES; i++) {
+      idle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  public DirectBufferArena(Configuration conf) {
+    this(conf.getLong(MAX_IDLE_BYTES_KEY, MAX_IDLE_BYTES_DEFAULT),
+        conf.getBoolean(LEAK_TRACE_KEY, LEAK_TRACE_DEFAULT));
+  }
+
+  /**
+   * The arena of the Kuber streams, set up once from the default
+   * configuration.
+   */
+  public static DirectBufferArena getDefault() {
+    DirectBufferArena arena = defaultArena;
+    if (arena == null) {
+      synchronized (DirectBufferArena.class) {
+        arena = defaultArena;
+        if (arena == null) {
+          arena = new DirectBufferArena(new Configuration());
+          defaultArena = arena;
+        }
+      }
+    }
+    return arena;
+  }
+
+  /**
+   * Borrows a cleared direct buffer with exactly size bytes of capacity. It
+   * must be given back with {@link #release} and not used afterwards.
+   */
+  public ByteBuffer borrow(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Negative buffer size: " + size);
+    }
+    reclaimLeaks();
+    borrows.incrementAndGet();
+    int sizeClass = sizeClass(size);
+    ByteBuffer parent = null;
+    if (sizeClass >= 0) {
+      parent = idle[sizeClass].poll();
+      if (parent != null) {
+        idleBytes.addAndGet(-parent.capacity());
+        hits.incrementAndGet();
+      }
+    }
+    if (parent == null) {
+      parent = ByteBuffer.allocateDirect(sizeClass >= 0 ? MIN_CLASS << sizeClass : size);
+      nativeBytes.addAndGet(parent.capacity());
+    }
+    usedBytes.addAndGet(parent.capacity());
+
+    parent.clear().limit(size);
+    ByteBuffer buffer = parent.slice();
+    Lease lease = new Lease(buffer, parent, sizeClass,
+        leakTrace ? new Throwable("Borrowed here") : null, dropped);
+    leases.put(lease, lease);
+    return buffer;
+  }
+
+  /**
+   * Gives back a buffer from {@link #borrow}. Null is ignored.
+   * @throws IllegalArgumentException if buffer was not borrowed here or was
+   * already released.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    Lease lease = leases.remove(new Lease(buffer, null, -1, null, null));
+    if (lease == null) {
+      throw new IllegalArgumentException("Buffer not borrowed from this arena");
+    }
+    lease.clear();
+    giveBack(lease);
+  }
+
+  private void giveBack(Lease lease) {
+    ByteBuffer parent = lease.parent;
+    int capacity = parent.capacity();
+    usedBytes.addAndGet(-capacity);
+    if (lease.sizeClass >= 0 && idleBytes.addAndGet(capacity) <= maxIdleBytes) {
+      idle[lease.sizeClass].offer(parent);
+      return;
+    }
+    if (lease.sizeClass >= 0) {
+      idleBytes.addAndGet(-capacity);
+    }
+    nativeBytes.addAndGet(-capacity);
+    CryptoStreamUtils.freeDB(parent);
+  }
+
+  /** Takes back the memory of buffers that were dropped without release. */
+  private void reclaimLeaks() {
+    Lease lease;
+    while ((lease = (Lease) dropped.poll()) != null) {
+      if (leases.remove(lease) == null) {
+        continue;
+      }
+      leaks.incrementAndGet();
+      if (lease.site != null) {
+        LOG.warn("Direct buffer of " + lease.parent.capacity()
+            + " bytes was not released", lease.site);
+      } else {
+        LOG.warn("Direct buffer of " + lease.parent.capacity() + " bytes was not released;"
+            + " set " + LEAK_TRACE_KEY + " to find the owner");
+      }
+      giveBack(lease);
+    }
+  }
+
+  /** Frees every idle buffer. */
+  public void trim() {
+    for (Queue<ByteBuffer> queue : idle) {
+      ByteBuffer parent;
+      while ((parent = queue.poll()) != null) {
+        idleBytes.addAndGet(-parent.capacity());
+        nativeBytes.addAndGet(-parent.capacity());
+        CryptoStreamUtils.freeDB(parent);
+      }
+    }
+  }
+
+  /**
+   * @return the index of the smallest class holding size bytes, or -1 if it
+   * is larger than {@link #MAX_CLASS}.
+   */
+  private static int sizeClass(int size) {
+    if (size > MAX_CLASS) {
+      return -1;
+    }
+    if (size <= MIN_CLASS) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  public long getMaxIdleBytes() {
+    return maxIdleBytes;
+  }
+
+  /** @return the native bytes held by the arena, borrowed or idle. */
+  public long getNativeBytes() {
+    return nativeBytes.get();
+  }
+
+  /** @return the native bytes behind borrowed buffers. */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /** @return the native bytes of idle buffers. */
+  public long getIdleBytes() {
+    return idleBytes.get();
+  }
+
+  /** @return the number of buffers currently borrowed. */
+  public int getBorrowedCount() {
+    return leases.size();
+  }
+
+  public long getBorrows() {
+    return borrows.get();
+  }
+
+  /** @return the number of borrows served by an idle buffer. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of buffers found dropped without release. */
+  public long getLeaks() {
+    reclaimLeaks();
+    return leaks.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DirectBufferArena[native=" + getNativeBytes() + ", used=" + getUsedBytes()
+        + ", idle=" + getIdleBytes() + ", borrowed=" + getBorrowedCount()
+        + ", borrows=" + getBorrows() + ", hits=" + getHits() + ", leaks=" + leaks.get() + "]";
+  }
+}
@@ -0,0 +1,29 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+/**
+ * Kuber's pure Java {@link ChaCha20}; always available.
+ */
+public class JavaChaCha20Provider extends CipherProvider {
+
+  @Override
+  public String getName() {
+    return "chacha20-java";
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return "chacha20";
+  }
+
+  @Override
+  public StreamCipher newCipher(byte[] key, byte[] nonce) throws GeneralSecurityException {
+    try {
+      return new ChaCha20(key, nonce, 0);
+    } catch (Exception e) {
+      throw new InvalidKeyException("Invalid ChaCha20 key or nonce size", e);
+    }
+  }
+}
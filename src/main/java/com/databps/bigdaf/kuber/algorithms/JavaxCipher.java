@@ -26,4 +26,38 @@ public abstract class JavaxCipher extends Cipher2
   {
 
   }
+
+
+  /**
+   * Run all of in[inOff, inOff + len) through the initialised cipher into
+   * out at outOff, without intermediate arrays.
+   * @return Number of bytes written to out.
+   * @throws Exception
+   */
+  protected int process(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception
+  {
+    //Cipher#update keeps the context; a stream mode consumes all input here
+    int n = m_cipher.update(in, inOff, len, out, outOff);
+    if (n < len)
+    {
+      n += m_cipher.doFinal(out, outOff + n);
+    }
+    return n;
+  }
+
+
+  /**
+   * Run the remaining bytes of in through the initialised cipher into out.
+   * @return Number of bytes written to out.
+   * @throws Exception
+   */
+  protected int process(java.nio.ByteBuffer in, java.nio.ByteBuffer out) throws Exception
+  {
+    int n = m_cipher.update(in, out);
+    if (in.hasRemaining())
+    {
+      n += m_cipher.doFinal(in, out);
+    }
+    return n;
+  }
 }
\ No newline at end of file
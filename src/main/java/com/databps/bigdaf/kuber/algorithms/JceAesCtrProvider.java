@@ -0,0 +1,59 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-256-CTR through JCE. The initial counter block is the 12 byte nonce
+ * followed by a 4 byte zero counter, and the whole 16 bytes are incremented
+ * as one big-endian number, as JCE and OpenSSL both do.
+ */
+public class JceAesCtrProvider extends CipherProvider {
+
+  public static final int BLOCK_SIZE = 16;
+
+  @Override
+  public String getName() {
+    return "aes-ctr-jce";
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return "aes-ctr";
+  }
+
+  @Override
+  public StreamCipher newCipher(byte[] key, final byte[] nonce)
+      throws GeneralSecurityException {
+    final SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+    final byte[] n = nonce.clone();
+    StreamCipher stream = new JceStreamCipher(Cipher.getInstance("AES/CTR/NoPadding"),
+        BLOCK_SIZE) {
+      @Override
+      protected void init(long block) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(counterBlock(n, block)));
+      }
+    };
+    stream.seek(0);
+    return stream;
+  }
+
+  /**
+   * @return the counter block of block block: nonce || 0^32 plus block,
+   * modulo 2^128.
+   */
+  static byte[] counterBlock(byte[] nonce, long block) {
+    byte[] iv = new byte[BLOCK_SIZE];
+    System.arraycopy(nonce, 0, iv, 0, Math.min(nonce.length, BLOCK_SIZE));
+    int carry = 0;
+    for (int i = BLOCK_SIZE; i-- > 0; ) {
+      int sum = (iv[i] & 0xff) + (int) (block & 0xff) + carry;
+      iv[i] = (byte) sum;
+      carry = sum >>> 8;
+      block >>>= 8;
+    }
+    return iv;
+  }
+}
@@ -0,0 +1,90 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.lang.reflect.Constructor;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The ChaCha20 cipher built into JDK 11 and later. Kuber targets Java 8, so
+ * the parameter spec is reached by reflection; on older JDKs the provider is
+ * simply unavailable.
+ */
+public class JceChaCha20Provider extends CipherProvider {
+
+  private static final Constructor<?> SPEC = specConstructor();
+
+  private static Constructor<?> specConstructor() {
+    try {
+      return Class.forName("javax.crypto.spec.ChaCha20ParameterSpec")
+          .getConstructor(byte[].class, int.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static AlgorithmParameterSpec spec(byte[] nonce, int counter)
+      throws GeneralSecurityException {
+    try {
+      return (AlgorithmParameterSpec) SPEC.newInstance(nonce, counter);
+    } catch (Exception e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return "chacha20-jce";
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return "chacha20";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    if (SPEC == null) {
+      return false;
+    }
+    try {
+      Cipher.getInstance("ChaCha20");
+      return true;
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public StreamCipher newCipher(byte[] key, final byte[] nonce)
+      throws GeneralSecurityException {
+    if (SPEC == null) {
+      throw new GeneralSecurityException("ChaCha20ParameterSpec needs JDK 11 or later");
+    }
+    final SecretKeySpec keySpec = new SecretKeySpec(key, "ChaCha20");
+    final byte[] n = nonce.clone();
+    final byte[] other = nonce.clone();
+    other[0] ^= 1;
+    StreamCipher stream = new JceStreamCipher(Cipher.getInstance("ChaCha20"),
+        ChaCha20.BLOCK_SIZE) {
+      private boolean initialised;
+
+      @Override
+      protected void init(long block) throws GeneralSecurityException {
+        if (block > 0xffffffffL) {
+          throw new IllegalArgumentException("Block " + block + " beyond the 32-bit counter");
+        }
+        if (initialised) {
+          // The JDK refuses the key and nonce of the previous init, even
+          // at another counter, so step through a different nonce.
+          cipher.init(Cipher.DECRYPT_MODE, keySpec, spec(other, 0));
+        }
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, spec(n, (int) block));
+        initialised = true;
+      }
+    };
+    stream.seek(0);
+    return stream;
+  }
+}
@@ -0,0 +1,92 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+
+/**
+ * {@link StreamCipher} over a JCE cipher in a counter mode. Seeking
+ * re-initialises the cipher at the block holding the position and discards
+ * the keystream up to it.
+ */
+abstract class JceStreamCipher implements StreamCipher {
+
+  protected final Cipher cipher;
+  private final int blockSize;
+  private long position;
+
+  JceStreamCipher(Cipher cipher, int blockSize) {
+    this.cipher = cipher;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Initialises {@link #cipher} at the start of keystream block block.
+   */
+  protected abstract void init(long block) throws GeneralSecurityException;
+
+  @Override
+  public void seek(long position) {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position " + position);
+    }
+    try {
+      init(position / blockSize);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Cannot seek to " + position, e);
+    }
+    int offset = (int) (position % blockSize);
+    this.position = position - offset;
+    if (offset > 0) {
+      byte[] skip = new byte[offset];
+      process(skip, 0, skip, 0, offset);
+    }
+  }
+
+  @Override
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void encrypt(byte[] buf, int off, int len) {
+    process(buf, off, buf, off, len);
+  }
+
+  @Override
+  public void decrypt(byte[] buf, int off, int len) {
+    process(buf, off, buf, off, len);
+  }
+
+  @Override
+  public void process(byte[] src, int srcOff, byte[] dst, int dstOff, int len) {
+    int n;
+    try {
+      n = cipher.update(src, srcOff, len, dst, dstOff);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    checkConsumed(n, len);
+  }
+
+  @Override
+  public void process(ByteBuffer src, ByteBuffer dst) {
+    int len = src.remaining();
+    int n;
+    try {
+      n = cipher.update(src, dst);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    checkConsumed(n, len);
+  }
+
+  private void checkConsumed(int n, int len) {
+    // Counter modes are stream modes: update never holds bytes back.
+    if (n != len) {
+      throw new IllegalStateException(cipher.getAlgorithm() + " returned " + n + " of " + len
+          + " bytes");
+    }
+    position += len;
+  }
+}
@@ -0,0 +1,146 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of IVs, nonces and salts that never blocks on entropy.
+ * <p/>
+ * A root generator reading the non-blocking system source is used once per
+ * thread, to seed that thread's SHA1PRNG; after that every value comes from
+ * the thread's own generator without locks or system calls. Nothing here
+ * calls {@link SecureRandom#generateSeed}, which reads /dev/random.
+ * <p/>
+ * {@link #nextNonce(String, int)} is the registry mode: for one key id and
+ * size it never returns the same nonce twice during the life of the
+ * service. The leading size - 8 bytes hold a per-key counter that starts at
+ * a random value, and the trailing 8 bytes are random. Callers that derive
+ * sub-nonces by adding a block number or XORing a chunk number into the
+ * last 8 bytes therefore still never meet another nonce of the same key.
+ */
+public final class NonceService {
+
+  public static final int IV_SIZE = 16;
+
+  private static final NonceService DEFAULT = new NonceService();
+
+  private static final int TAIL_SIZE = 8;
+
+  private static final class KeyCounter {
+    final long start;
+    final AtomicLong issued = new AtomicLong();
+
+    KeyCounter(long start) {
+      this.start = start;
+    }
+  }
+
+  private final SecureRandom root;
+  private final ThreadLocal<SecureRandom> randoms = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
+      byte[] seed = new byte[32];
+      synchronized (root) {
+        root.nextBytes(seed);
+      }
+      try {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        // Seeding before the first use replaces self-seeding entirely.
+        random.setSeed(seed);
+        return random;
+      } catch (NoSuchAlgorithmException e) {
+        return new SecureRandom(seed);
+      }
+    }
+  };
+  private final ConcurrentMap<String, KeyCounter> registry =
+      new ConcurrentHashMap<String, KeyCounter>();
+
+  public NonceService() {
+    SecureRandom r;
+    try {
+      r = SecureRandom.getInstance("NativePRNGNonBlocking");
+    } catch (NoSuchAlgorithmException e) {
+      // Not on Linux; the default reads a non-blocking source for nextBytes.
+      r = new SecureRandom();
+    }
+    this.root = r;
+  }
+
+  /**
+   * The process wide service.
+   */
+  public static NonceService getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Fills b[off, off + len) with random bytes.
+   */
+  public void nextBytes(byte[] b, int off, int len) {
+    if (off == 0 && len == b.length) {
+      randoms.get().nextBytes(b);
+    } else {
+      byte[] r = new byte[len];
+      randoms.get().nextBytes(r);
+      System.arraycopy(r, 0, b, off, len);
+    }
+  }
+
+  public void nextBytes(byte[] b) {
+    randoms.get().nextBytes(b);
+  }
+
+  /**
+   * @return a random 16 byte IV.
+   */
+  public byte[] nextIV() {
+    return nextNonce(IV_SIZE);
+  }
+
+  /**
+   * @return size random bytes.
+   */
+  public byte[] nextNonce(int size) {
+    byte[] nonce = new byte[size];
+    randoms.get().nextBytes(nonce);
+    return nonce;
+  }
+
+  /**
+   * Registry mode: a nonce of size bytes, 9 to 16, never returned before for
+   * keyId and size by this service.
+   * @throws IllegalStateException if the counter space for keyId is used up;
+   * the key must be rotated.
+   */
+  public byte[] nextNonce(String keyId, int size) {
+    if (size <= TAIL_SIZE || size > TAIL_SIZE + 8) {
+      throw new IllegalArgumentException("Registry nonces are 9 to 16 bytes: " + size);
+    }
+    KeyCounter counter = registry.get(keyId + '/' + size);
+    if (counter == null) {
+      KeyCounter created = new KeyCounter(randoms.get().nextLong());
+      counter = registry.putIfAbsent(keyId + '/' + size, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+
+    int counterBits = 8 * (size - TAIL_SIZE);
+    long n = counter.issued.getAndIncrement();
+    if (counterBits < 64 && n >= 1L << counterBits) {
+      throw new IllegalStateException("Nonce space of key " + keyId + " exhausted");
+    }
+    long value = counter.start + n;
+    byte[] nonce = new byte[size];
+    for (int i = size - TAIL_SIZE; i-- > 0; ) {
+      nonce[i] = (byte) value;
+      value >>>= 8;
+    }
+    nextBytes(nonce, size - TAIL_SIZE, TAIL_SIZE);
+    return nonce;
+  }
+}
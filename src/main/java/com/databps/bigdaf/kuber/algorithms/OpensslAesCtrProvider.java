@@ -0,0 +1,152 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.Encryptor;
+import org.apache.hadoop.crypto.OpensslAesCtrCryptoCodec;
+import org.apache.hadoop.crypto.OpensslCipher;
+
+/**
+ * AES-256-CTR through Hadoop's OpenSSL codec, with the counter blocks of
+ * {@link JceAesCtrProvider}. Available when libhadoop was built with and
+ * finds OpenSSL. The codec only works on direct buffers, so heap data is
+ * staged through a pair of them.
+ */
+public class OpensslAesCtrProvider extends CipherProvider {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @Override
+  public String getName() {
+    return "aes-ctr-openssl";
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return "aes-ctr";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    try {
+      return OpensslCipher.getLoadingFailureReason() == null;
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  @Override
+  public StreamCipher newCipher(byte[] key, byte[] nonce) throws GeneralSecurityException {
+    if (!isAvailable()) {
+      throw new GeneralSecurityException("OpenSSL unavailable: "
+          + OpensslCipher.getLoadingFailureReason());
+    }
+    OpensslAesCtrCryptoCodec codec = new OpensslAesCtrCryptoCodec();
+    codec.setConf(new Configuration(false));
+    StreamCipher stream = new OpensslStreamCipher(codec.createEncryptor(), key, nonce);
+    stream.seek(0);
+    return stream;
+  }
+
+  private static class OpensslStreamCipher implements StreamCipher {
+    private final Encryptor encryptor;
+    private final byte[] key;
+    private final byte[] nonce;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long position;
+
+    OpensslStreamCipher(Encryptor encryptor, byte[] key, byte[] nonce) {
+      this.encryptor = encryptor;
+      this.key = key.clone();
+      this.nonce = nonce.clone();
+    }
+
+    @Override
+    public void seek(long position) {
+      if (position < 0) {
+        throw new IllegalArgumentException("Negative position " + position);
+      }
+      try {
+        encryptor.init(key, JceAesCtrProvider.counterBlock(nonce,
+            position / JceAesCtrProvider.BLOCK_SIZE));
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot seek to " + position, e);
+      }
+      int offset = (int) (position % JceAesCtrProvider.BLOCK_SIZE);
+      this.position = position - offset;
+      if (offset > 0) {
+        byte[] skip = new byte[offset];
+        process(skip, 0, skip, 0, offset);
+      }
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public void encrypt(byte[] buf, int off, int len) {
+      process(buf, off, buf, off, len);
+    }
+
+    @Override
+    public void decrypt(byte[] buf, int off, int len) {
+      process(buf, off, buf, off, len);
+    }
+
+    @Override
+    public void process(byte[] src, int srcOff, byte[] dst, int dstOff, int len) {
+      while (len > 0) {
+        int n = Math.min(len, BUFFER_SIZE);
+        in.clear();
+        in.put(src, srcOff, n).flip();
+        out.clear();
+        update(in, out);
+        out.flip();
+        out.get(dst, dstOff, n);
+        srcOff += n;
+        dstOff += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void process(ByteBuffer src, ByteBuffer dst) {
+      if (src.isDirect() && dst.isDirect()) {
+        update(src, dst);
+        return;
+      }
+      while (src.hasRemaining()) {
+        int n = Math.min(src.remaining(), BUFFER_SIZE);
+        ByteBuffer chunk = src.duplicate();
+        chunk.limit(chunk.position() + n);
+        in.clear();
+        in.put(chunk).flip();
+        src.position(src.position() + n);
+        out.clear();
+        update(in, out);
+        out.flip();
+        dst.put(out);
+      }
+    }
+
+    private void update(ByteBuffer src, ByteBuffer dst) {
+      int len = src.remaining();
+      try {
+        encryptor.encrypt(src, dst);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      if (encryptor.isContextReset()) {
+        // The counter was reset by a final call; carry on from the position.
+        seek(position + len);
+      } else {
+        position += len;
+      }
+    }
+  }
+}
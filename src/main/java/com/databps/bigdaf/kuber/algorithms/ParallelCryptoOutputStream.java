@@ -0,0 +1,386 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.Encryptor;
+import org.apache.hadoop.crypto.JceAesCtrCryptoCodec;
+import org.apache.hadoop.crypto.OpensslAesCtrCryptoCodec;
+import org.apache.hadoop.fs.CanSetDropBehind;
+import org.apache.hadoop.fs.Syncable;
+
+/**
+ * Drop-in variant of {@link CryptoOutputStream2} that encrypts on several
+ * cores. The output is byte for byte the same.
+ * <p/>
+ * Written data is collected in slabs of {@value #SLAB_SIZE_KEY} bytes. A full
+ * slab gets its counter and padding from its stream offset, exactly as
+ * {@link CryptoOutputStream2} computes them, and is encrypted by a worker of
+ * a pool shared by all streams of the process. The writing thread writes
+ * finished slabs to the wrapped stream in order, so the wrapped stream never
+ * sees concurrent calls. At most two slabs per worker are in flight.
+ * <p/>
+ * {@link #flush()}, {@link #hflush()} and {@link #hsync()} encrypt the
+ * partial slab and wait until every slab has been written before they reach
+ * the wrapped stream, so they guarantee what they do on
+ * {@link CryptoOutputStream2}.
+ */
+public class ParallelCryptoOutputStream extends FilterOutputStream implements
+    Syncable, CanSetDropBehind {
+
+  /** Workers of the shared pool; fixed by the first stream created. */
+  public static final String THREADS_KEY = "kuber.crypto.output.threads";
+
+  public static final int THREADS_DEFAULT = Runtime.getRuntime().availableProcessors();
+
+  public static final String SLAB_SIZE_KEY = "kuber.crypto.output.slab.size";
+
+  public static final int SLAB_SIZE_DEFAULT = 1024 * 1024;
+
+  /* Room in front of the data for the padding of an unaligned slab. */
+  private static final int HEADROOM = 16;
+
+  private static volatile ExecutorService pool;
+  private static int poolThreads;
+
+  private static final class Slab {
+    final byte[] buf;
+    long position;
+    int len;
+
+    Slab(byte[] buf) {
+      this.buf = buf;
+    }
+  }
+
+  private final byte[] oneByteBuf = new byte[1];
+  private final CryptoCodec codec;
+  private final boolean direct;
+  private final int slabSize;
+  private final byte[] key;
+  private final byte[] initIV;
+  private final ExecutorService workers;
+  private final int maxInFlight;
+
+  private final Queue<Encryptor> encryptors = new ConcurrentLinkedQueue<Encryptor>();
+  private final Deque<Future<Slab>> pending = new ArrayDeque<Future<Slab>>();
+  private final Deque<byte[]> free = new ArrayDeque<byte[]>();
+  private Slab slab;
+  private long streamOffset;
+  private IOException failure;
+  /** Read by the workers, which release their encryptor once it is set. */
+  private volatile boolean closed;
+
+  /**
+   * @param codec codec providing the encryptor and IV arithmetic, or null for
+   *     AES-CTR from the default codec chain.
+   * @param slabSize bytes encrypted per task.
+   */
+  public ParallelCryptoOutputStream(OutputStream out, CryptoCodec codec,
+      int slabSize, byte[] key, byte[] iv, long streamOffset) throws IOException {
+    this(out, codec, slabSize, key, iv, streamOffset, THREADS_DEFAULT);
+  }
+
+  /**
+   * Uses the codec configured by
+   * {@link CryptoCodecFactory#getInstance(Configuration)}.
+   */
+  public ParallelCryptoOutputStream(OutputStream out, Configuration conf,
+      byte[] key, byte[] iv, long streamOffset) throws IOException {
+    this(out, CryptoCodecFactory.getInstance(conf),
+        conf.getInt(SLAB_SIZE_KEY, SLAB_SIZE_DEFAULT), key, iv, streamOffset,
+        conf.getInt(THREADS_KEY, THREADS_DEFAULT));
+  }
+
+  public ParallelCryptoOutputStream(OutputStream out, byte[] key, byte[] iv)
+      throws IOException {
+    this(out, null, SLAB_SIZE_DEFAULT, key, iv, 0);
+  }
+
+  private ParallelCryptoOutputStream(OutputStream out, CryptoCodec codec,
+      int slabSize, byte[] key, byte[] iv, long streamOffset, int threads)
+      throws IOException {
+    super(out);
+    if (slabSize < HEADROOM) {
+      throw new IllegalArgumentException("Slab size too small: " + slabSize);
+    }
+    this.codec = codec != null ? codec : CryptoCodecFactory.getDefaultAesCtrInstance();
+    this.direct = this.codec instanceof OpensslAesCtrCryptoCodec;
+    this.slabSize = slabSize;
+    this.key = key.clone();
+    this.initIV = iv.clone();
+    this.streamOffset = streamOffset;
+    this.workers = getPool(threads);
+    this.maxInFlight = 2 * poolThreads;
+    // Fail here rather than in a worker if the cipher cannot be created.
+    encryptors.add(newEncryptor());
+  }
+
+  private static synchronized ExecutorService getPool(int threads) {
+    if (pool == null) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("threads must be positive: " + threads);
+      }
+      poolThreads = threads;
+      pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "kuber-crypto-out-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return pool;
+  }
+
+  private Encryptor newEncryptor() throws IOException {
+    try {
+      // The pooled JCE cipher, as in CryptoOutputStream2.
+      return codec instanceof JceAesCtrCryptoCodec
+          ? new CryptoOutputStream2.JceAesCtrCipher(Cipher.ENCRYPT_MODE, "")
+          : codec.createEncryptor();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  public OutputStream getWrappedStream() {
+    return out;
+  }
+
+  public int getSlabSize() {
+    return slabSize;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    checkStream();
+    if (b == null) {
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || off > b.length ||
+        len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      if (slab == null) {
+        byte[] buf = free.poll();
+        slab = new Slab(buf != null ? buf : new byte[HEADROOM + slabSize]);
+      }
+      int n = Math.min(len, slabSize - slab.len);
+      System.arraycopy(b, off, slab.buf, HEADROOM + slab.len, n);
+      slab.len += n;
+      off += n;
+      len -= n;
+      if (slab.len == slabSize) {
+        submit();
+      }
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    oneByteBuf[0] = (byte) (b & 0xff);
+    write(oneByteBuf, 0, oneByteBuf.length);
+  }
+
+  /** Hands the current slab to a worker, then writes what is finished. */
+  private void submit() throws IOException {
+    final Slab s = slab;
+    slab = null;
+    s.position = streamOffset;
+    streamOffset += s.len;
+    pending.add(workers.submit(new Callable<Slab>() {
+      @Override
+      public Slab call() throws IOException {
+        encrypt(s);
+        return s;
+      }
+    }));
+    writeFinished(false);
+  }
+
+  /**
+   * Writes finished slabs in order; all of them if all is set, otherwise
+   * those already done and as many as needed to get below the in-flight
+   * limit.
+   */
+  private void writeFinished(boolean all) throws IOException {
+    Future<Slab> head;
+    while ((head = pending.peek()) != null
+        && (all || head.isDone() || pending.size() >= maxInFlight)) {
+      Slab s;
+      try {
+        s = head.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw fail(new InterruptedIOException("Interrupted waiting for cipher worker"));
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw fail(cause instanceof IOException ? (IOException) cause : new IOException(cause));
+      }
+      pending.poll();
+      try {
+        out.write(s.buf, HEADROOM, s.len);
+      } catch (IOException e) {
+        throw fail(e);
+      }
+      s.len = 0;
+      free.add(s.buf);
+    }
+  }
+
+  /** Runs on a worker: encrypts s in place. */
+  private void encrypt(Slab s) throws IOException {
+    Encryptor encryptor = encryptors.poll();
+    if (encryptor == null) {
+      encryptor = newEncryptor();
+    }
+    try {
+      final int padding = (int) (s.position % 16);
+      final byte[] iv = new byte[initIV.length];
+      codec.calculateIV(initIV, s.position / 16, iv);
+      encryptor.init(key, iv);
+      int start = HEADROOM - padding;
+      if (!direct) {
+        ByteBuffer buf = ByteBuffer.wrap(s.buf, start, padding + s.len);
+        encryptor.encrypt(buf, buf.duplicate());
+        return;
+      }
+      DirectBufferArena arena = DirectBufferArena.getDefault();
+      ByteBuffer inBuffer = arena.borrow(padding + s.len);
+      ByteBuffer outBuffer = arena.borrow(padding + s.len);
+      try {
+        inBuffer.put(s.buf, start, padding + s.len);
+        inBuffer.flip();
+        encryptor.encrypt(inBuffer, outBuffer);
+        outBuffer.flip();
+        outBuffer.position(padding);
+        outBuffer.get(s.buf, HEADROOM, s.len);
+      } finally {
+        arena.release(inBuffer);
+        arena.release(outBuffer);
+      }
+    } finally {
+      encryptors.add(encryptor);
+      if (closed) {
+        // A cancelled task may finish after close drained the queue.
+        releaseEncryptors();
+      }
+    }
+  }
+
+  private IOException fail(IOException e) {
+    failure = e;
+    for (Future<Slab> f : pending) {
+      f.cancel(true);
+    }
+    pending.clear();
+    return e;
+  }
+
+  /**
+   * Encrypts the partial slab, writes every slab in order and flushes the
+   * wrapped stream.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    checkStream();
+    if (slab != null && slab.len > 0) {
+      submit();
+    }
+    writeFinished(true);
+    super.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      try {
+        if (failure == null) {
+          flush();
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      closed = true;
+      fail(failure != null ? failure : new IOException("Stream closed"));
+      releaseEncryptors();
+    }
+  }
+
+  /** Give the pooled JCE ciphers of the idle encryptors back. */
+  private void releaseEncryptors() {
+    Encryptor encryptor;
+    while ((encryptor = encryptors.poll()) != null) {
+      if (encryptor instanceof CryptoOutputStream2.JceAesCtrCipher) {
+        ((CryptoOutputStream2.JceAesCtrCipher) encryptor).release();
+      }
+    }
+  }
+
+  private void checkStream() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (failure != null) {
+      throw new IOException("Stream failed", failure);
+    }
+  }
+
+  @Override
+  public void setDropBehind(Boolean dropCache) throws IOException,
+      UnsupportedOperationException {
+    try {
+      ((CanSetDropBehind) out).setDropBehind(dropCache);
+    } catch (ClassCastException e) {
+      throw new UnsupportedOperationException("This stream does not " +
+          "support setting the drop-behind caching.");
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void sync() throws IOException {
+    hflush();
+  }
+
+  @Override
+  public void hflush() throws IOException {
+    flush();
+    if (out instanceof Syncable) {
+      ((Syncable) out).hflush();
+    }
+  }
+
+  @Override
+  public void hsync() throws IOException {
+    flush();
+    if (out instanceof Syncable) {
+      ((Syncable) out).hsync();
+    }
+  }
+}
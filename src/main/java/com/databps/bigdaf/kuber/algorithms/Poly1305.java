@@ -0,0 +1,193 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+/**
+ * Poly1305 one-time authenticator (RFC 8439 section 2.5).
+ * <p/>
+ * The accumulator and r are held in five 26-bit limbs so every product fits
+ * in a long; full 16 byte blocks are absorbed straight from the caller's
+ * array. A key must never be used for more than one message.
+ */
+public class Poly1305 {
+  /*
+   * One-time key size in byte: r followed by s
+   */
+  public static final int KEY_SIZE = 32;
+
+  /*
+   * Tag size in byte
+   */
+  public static final int TAG_SIZE = 16;
+
+  private static final int BLOCK_SIZE = 16;
+
+  private int r0, r1, r2, r3, r4;
+  private int s1, s2, s3, s4;
+  private int k0, k1, k2, k3;
+  private int h0, h1, h2, h3, h4;
+
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private int blockPos;
+
+  public Poly1305() {
+  }
+
+  public Poly1305(byte[] key) {
+    init(key, 0);
+  }
+
+  /**
+   * Starts a new message under the 32 byte one-time key at key[off].
+   */
+  public void init(byte[] key, int off) {
+    if (key.length - off < KEY_SIZE) {
+      throw new IllegalArgumentException("Poly1305 key must be " + KEY_SIZE + " bytes");
+    }
+    final int t0 = ChaCha20.littleEndianToInt(key, off);
+    final int t1 = ChaCha20.littleEndianToInt(key, off + 4);
+    final int t2 = ChaCha20.littleEndianToInt(key, off + 8);
+    final int t3 = ChaCha20.littleEndianToInt(key, off + 12);
+
+    // r is clamped as the RFC requires while it is split into limbs.
+    r0 = t0 & 0x03ffffff;
+    r1 = ((t0 >>> 26) | (t1 << 6)) & 0x03ffff03;
+    r2 = ((t1 >>> 20) | (t2 << 12)) & 0x03ffc0ff;
+    r3 = ((t2 >>> 14) | (t3 << 18)) & 0x03f03fff;
+    r4 = (t3 >>> 8) & 0x000fffff;
+    s1 = r1 * 5;
+    s2 = r2 * 5;
+    s3 = r3 * 5;
+    s4 = r4 * 5;
+
+    k0 = ChaCha20.littleEndianToInt(key, off + 16);
+    k1 = ChaCha20.littleEndianToInt(key, off + 20);
+    k2 = ChaCha20.littleEndianToInt(key, off + 24);
+    k3 = ChaCha20.littleEndianToInt(key, off + 28);
+
+    h0 = h1 = h2 = h3 = h4 = 0;
+    blockPos = 0;
+  }
+
+  public void update(byte[] in, int off, int len) {
+    if (blockPos > 0) {
+      final int n = Math.min(len, BLOCK_SIZE - blockPos);
+      System.arraycopy(in, off, block, blockPos, n);
+      blockPos += n;
+      off += n;
+      len -= n;
+      if (blockPos < BLOCK_SIZE) {
+        return;
+      }
+      processBlock(block, 0, 1 << 24);
+      blockPos = 0;
+    }
+    while (len >= BLOCK_SIZE) {
+      processBlock(in, off, 1 << 24);
+      off += BLOCK_SIZE;
+      len -= BLOCK_SIZE;
+    }
+    System.arraycopy(in, off, block, 0, len);
+    blockPos = len;
+  }
+
+  /**
+   * Absorbs zero bytes up to the next multiple of 16, as the AEAD
+   * construction pads its inputs.
+   */
+  public void padToBlock() {
+    if (blockPos > 0) {
+      for (int i = blockPos; i < BLOCK_SIZE; i++) {
+        block[i] = 0;
+      }
+      processBlock(block, 0, 1 << 24);
+      blockPos = 0;
+    }
+  }
+
+  /**
+   * Writes the 16 byte tag to out[off]. {@link #init} must be called again
+   * before the next message.
+   */
+  public void doFinal(byte[] out, int off) {
+    if (blockPos > 0) {
+      // A short final block is padded with a single 1 bit instead of 2^128.
+      block[blockPos] = 1;
+      for (int i = blockPos + 1; i < BLOCK_SIZE; i++) {
+        block[i] = 0;
+      }
+      processBlock(block, 0, 0);
+      blockPos = 0;
+    }
+
+    // Full carry, then h - p if h >= p, in constant time.
+    h1 += h0 >>> 26; h0 &= 0x3ffffff;
+    h2 += h1 >>> 26; h1 &= 0x3ffffff;
+    h3 += h2 >>> 26; h2 &= 0x3ffffff;
+    h4 += h3 >>> 26; h3 &= 0x3ffffff;
+    h0 += (h4 >>> 26) * 5; h4 &= 0x3ffffff;
+    h1 += h0 >>> 26; h0 &= 0x3ffffff;
+
+    int b;
+    int g0 = h0 + 5; b = g0 >>> 26; g0 &= 0x3ffffff;
+    int g1 = h1 + b; b = g1 >>> 26; g1 &= 0x3ffffff;
+    int g2 = h2 + b; b = g2 >>> 26; g2 &= 0x3ffffff;
+    int g3 = h3 + b; b = g3 >>> 26; g3 &= 0x3ffffff;
+    int g4 = h4 + b - (1 << 26);
+
+    b = (g4 >>> 31) - 1;
+    final int nb = ~b;
+    h0 = (h0 & nb) | (g0 & b);
+    h1 = (h1 & nb) | (g1 & b);
+    h2 = (h2 & nb) | (g2 & b);
+    h3 = (h3 & nb) | (g3 & b);
+    h4 = (h4 & nb) | (g4 & b);
+
+    // tag = (h + s) mod 2^128
+    long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + (k0 & 0xffffffffL);
+    long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (k1 & 0xffffffffL);
+    long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (k2 & 0xffffffffL);
+    long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (k3 & 0xffffffffL);
+
+    ChaCha20.intToLittleEndian((int) f0, out, off);
+    f1 += f0 >>> 32;
+    ChaCha20.intToLittleEndian((int) f1, out, off + 4);
+    f2 += f1 >>> 32;
+    ChaCha20.intToLittleEndian((int) f2, out, off + 8);
+    f3 += f2 >>> 32;
+    ChaCha20.intToLittleEndian((int) f3, out, off + 12);
+  }
+
+  /**
+   * h = (h + block + hibit * 2^128) * r mod 2^130 - 5
+   */
+  private void processBlock(byte[] m, int off, int hibit) {
+    final long t0 = ChaCha20.littleEndianToInt(m, off) & 0xffffffffL;
+    final long t1 = ChaCha20.littleEndianToInt(m, off + 4) & 0xffffffffL;
+    final long t2 = ChaCha20.littleEndianToInt(m, off + 8) & 0xffffffffL;
+    final long t3 = ChaCha20.littleEndianToInt(m, off + 12) & 0xffffffffL;
+
+    h0 += (int) (t0 & 0x3ffffff);
+    h1 += (int) ((((t1 << 32) | t0) >>> 26) & 0x3ffffff);
+    h2 += (int) ((((t2 << 32) | t1) >>> 20) & 0x3ffffff);
+    h3 += (int) ((((t3 << 32) | t2) >>> 14) & 0x3ffffff);
+    h4 += (int) (t3 >>> 8) | hibit;
+
+    final long d0 = (long) h0 * r0 + (long) h1 * s4 + (long) h2 * s3 + (long) h3 * s2
+        + (long) h4 * s1;
+    long d1 = (long) h0 * r1 + (long) h1 * r0 + (long) h2 * s4 + (long) h3 * s3
+        + (long) h4 * s2;
+    long d2 = (long) h0 * r2 + (long) h1 * r1 + (long) h2 * r0 + (long) h3 * s4
+        + (long) h4 * s3;
+    long d3 = (long) h0 * r3 + (long) h1 * r2 + (long) h2 * r1 + (long) h3 * r0
+        + (long) h4 * s4;
+    long d4 = (long) h0 * r4 + (long) h1 * r3 + (long) h2 * r2 + (long) h3 * r1
+        + (long) h4 * r0;
+
+    h0 = (int) d0 & 0x3ffffff; d1 += d0 >>> 26;
+    h1 = (int) d1 & 0x3ffffff; d2 += d1 >>> 26;
+    h2 = (int) d2 & 0x3ffffff; d3 += d2 >>> 26;
+    h3 = (int) d3 & 0x3ffffff; d4 += d3 >>> 26;
+    h4 = (int) d4 & 0x3ffffff;
+    h0 += (int) (d4 >>> 26) * 5;
+    h1 += h0 >>> 26; h0 &= 0x3ffffff;
+  }
+}
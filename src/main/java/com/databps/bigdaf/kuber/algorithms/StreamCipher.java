@@ -0,0 +1,47 @@
+package com.databps.bigdaf.kuber.algorithms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A seekable keystream cipher: encryption and decryption are the same XOR
+ * with the keystream, and any byte of the stream can be processed on its own
+ * after {@link #seek(long)}. Calls continue the keystream where the previous
+ * call stopped. Instances are not thread safe.
+ *
+ * @see CipherProvider
+ */
+public interface StreamCipher {
+
+  /**
+   * Positions the keystream so that the next byte processed is XORed with
+   * keystream byte position.
+   */
+  void seek(long position);
+
+  /**
+   * @return the stream position of the next byte to be processed.
+   */
+  long getPosition();
+
+  /**
+   * Encrypts buf[off, off + len) in place.
+   */
+  void encrypt(byte[] buf, int off, int len);
+
+  /**
+   * Decrypts buf[off, off + len) in place.
+   */
+  void decrypt(byte[] buf, int off, int len);
+
+  /**
+   * XORs len bytes of src with the keystream into dst. src and dst may be the
+   * same array.
+   */
+  void process(byte[] src, int srcOff, byte[] dst, int dstOff, int len);
+
+  /**
+   * XORs all remaining bytes of src with the keystream into dst, advancing the
+   * position of both buffers.
+   */
+  void process(ByteBuffer src, ByteBuffer dst);
+}
@@ -0,0 +1,201 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.databps.bigdaf.kuber.algorithms.AesCtr;
+import com.databps.bigdaf.kuber.algorithms.CryptoContextPool;
+import com.databps.bigdaf.kuber.algorithms.DerivedKeyCache;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 口令 AES 流式加密测试
+ */
+public class AesCtrPasswordTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] encrypt(byte[] plain, String password) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream aes = AesCtr.encryptingStream(out, password);
+    // Uneven writes, as a caller copying through a small buffer would do.
+    for (int off = 0; off < plain.length; off += 4093) {
+      aes.write(plain, off, Math.min(4093, plain.length - off));
+    }
+    aes.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] decrypt(byte[] encrypted, String password) throws IOException {
+    InputStream in = AesCtr.decryptingStream(new ByteArrayInputStream(encrypted), password);
+    return IOUtils.toByteArray(in);
+  }
+
+  @Test
+  public void testStreamRoundTrip() throws Exception {
+    for (int len : new int[] {0, 1, 31, 32, 33, 8192, 100001}) {
+      byte[] plain = TestBytes.randomBytes(len);
+      byte[] encrypted = encrypt(plain, "secret");
+      assertEquals(4 + AesCtr.STREAM_SALT_SIZE + 16 + len + AesCtr.MAC_SIZE, encrypted.length);
+      assertArrayEquals(plain, decrypt(encrypted, "secret"));
+    }
+  }
+
+  /** HMAC-SHA256(secret, label || 0x01). */
+  private static byte[] expand(byte[] secret, String label) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+    mac.update(label.getBytes(StandardCharsets.US_ASCII));
+    mac.update((byte) 1);
+    return mac.doFinal();
+  }
+
+  @Test
+  public void testStreamKeyDerivation() throws Exception {
+    byte[] plain = TestBytes.randomBytes(1000);
+    byte[] encrypted = encrypt(plain, "secret");
+    int salt = 4;
+    int iv = salt + AesCtr.STREAM_SALT_SIZE;
+    int data = iv + 16;
+
+    // One SHA-1 block of PBKDF2, expanded into two keys under their labels.
+    byte[] secret = DerivedKeyCache.deriveUncached("secret",
+        Arrays.copyOfRange(encrypted, salt, iv), AesCtr.PBKDF2_ITERATIONS, 160);
+    Cipher aes = Cipher.getInstance("AES/CTR/NoPadding");
+    aes.init(Cipher.DECRYPT_MODE,
+        new SecretKeySpec(expand(secret, "kuber stream aes-128-ctr key"), 0, 16, "AES"),
+        new IvParameterSpec(Arrays.copyOfRange(encrypted, iv, data)));
+    int macOffset = encrypted.length - AesCtr.MAC_SIZE;
+    assertArrayEquals(plain, aes.doFinal(encrypted, data, macOffset - data));
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(expand(secret, "kuber stream hmac-sha256 key"), "HmacSHA256"));
+    mac.update(encrypted, 0, macOffset);
+    assertArrayEquals(Arrays.copyOfRange(encrypted, macOffset, encrypted.length),
+        mac.doFinal());
+  }
+
+  @Test
+  public void testTamperedOrWrongPassword() throws Exception {
+    byte[] encrypted = encrypt(TestBytes.randomBytes(5000), "secret");
+    try {
+      decrypt(encrypted, "Secret");
+      fail("Wrong password accepted");
+    } catch (IOException expected) {
+    }
+    encrypted[100] ^= 1;
+    try {
+      decrypt(encrypted, "secret");
+      fail("Tampered data accepted");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testIterationCountIsBounded() throws Exception {
+    byte[] encrypted = encrypt(TestBytes.randomBytes(100), "secret");
+    for (int iterations : new int[] {0, AesCtr.MAX_PBKDF2_ITERATIONS + 1, Integer.MAX_VALUE}) {
+      java.nio.ByteBuffer.wrap(encrypted).putInt(iterations);
+      try {
+        decrypt(encrypted, "secret");
+        fail("Iteration count " + iterations + " accepted");
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testRepeatDecryptHitsCache() throws Exception {
+    DerivedKeyCache cache = DerivedKeyCache.getDefault();
+    byte[] plain = TestBytes.randomBytes(1000);
+    byte[] encrypted = encrypt(plain, "cached");
+
+    long misses = cache.getMisses();
+    long hits = cache.getHits();
+    assertArrayEquals(plain, decrypt(encrypted, "cached"));
+    assertArrayEquals(plain, decrypt(encrypted, "cached"));
+    assertEquals(misses, cache.getMisses());
+    assertEquals(hits + 2, cache.getHits());
+  }
+
+  @Test
+  public void testCacheIsBounded() throws Exception {
+    DerivedKeyCache cache = new DerivedKeyCache(2);
+    byte[] a = cache.derive("p", new byte[] {1}, 1000, 128);
+    cache.derive("p", new byte[] {2}, 1000, 128);
+    cache.derive("p", new byte[] {1}, 1000, 128);
+    cache.derive("p", new byte[] {3}, 1000, 128);
+    assertEquals(2, cache.size());
+    assertEquals(3, cache.getMisses());
+
+    // {1} was used last, so {2} was evicted.
+    assertArrayEquals(a, cache.derive("p", new byte[] {1}, 1000, 128));
+    assertEquals(3, cache.getMisses());
+    cache.derive("p", new byte[] {2}, 1000, 128);
+    assertEquals(4, cache.getMisses());
+
+    // Password, iterations and key length are all part of the key.
+    assertFalse(java.util.Arrays.equals(a, cache.derive("q", new byte[] {1}, 1000, 128)));
+    cache.derive("p", new byte[] {1}, 1001, 128);
+    cache.derive("p", new byte[] {1}, 1000, 256);
+    assertEquals(7, cache.getMisses());
+  }
+
+  @Test
+  public void testLegacyMessageRoundTrip() throws Exception {
+    AesCtr aes = new AesCtr(new byte[16]);
+    byte[] plain = TestBytes.randomBytes(4096);
+    DerivedKeyCache cache = DerivedKeyCache.getDefault();
+    long misses = cache.getMisses();
+    // Fresh salts on every message: encrypting leaves the cache alone.
+    byte[] encrypted = aes.encrypt(plain, "secret");
+    assertEquals(misses, cache.getMisses());
+    assertArrayEquals(plain, aes.decrypt(encrypted, "secret"));
+    aes.close();
+  }
+
+  @Test
+  public void testToolRoundTrip() throws Exception {
+    byte[] plain = TestBytes.randomBytes(300001);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    Configuration conf = new Configuration();
+    conf.set(Config.AES_PASSWORD_KEY, "tool password");
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///", "--aes"}));
+    String[] decrypt = {new File(hdfs, "plain.bin").getAbsolutePath(), local.getAbsolutePath(),
+        "file:///", "--aes"};
+    assertEquals(0, ToolRunner.run(conf, new Decrypt(), decrypt));
+    assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+
+    // Each run gives its cipher and MAC back, so the next one reuses them.
+    long created = CryptoContextPool.getCreated();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, ToolRunner.run(conf, new Decrypt(), decrypt));
+    }
+    assertEquals(created, CryptoContextPool.getCreated());
+  }
+}
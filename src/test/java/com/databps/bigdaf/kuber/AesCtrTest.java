@@ -0,0 +1,66 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.databps.bigdaf.kuber.algorithms.AesCtr;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * AES-CTR 偏移量与 ByteBuffer 接口测试
+ */
+public class AesCtrTest {
+
+  private final byte[] key = TestBytes.randomBytes(16);
+
+  @Test
+  public void testOffsetRoundTrip() throws Exception {
+    AesCtr aes = new AesCtr(key);
+    byte[] plain = TestBytes.randomBytes(100003);
+    byte[] out = new byte[7 + plain.length + aes.getOverhead()];
+    assertEquals(plain.length - 3 + 16, aes.encrypt(plain, 3, plain.length - 3, out, 7));
+
+    // The array API reads the same format.
+    byte[] encrypted = Arrays.copyOfRange(out, 7, out.length - 3);
+    assertArrayEquals(Arrays.copyOfRange(plain, 3, plain.length), aes.decrypt(encrypted));
+
+    byte[] back = new byte[plain.length];
+    int n = aes.decrypt(out, 7, plain.length - 3 + 16, back, 1);
+    assertEquals(plain.length - 3, n);
+    assertArrayEquals(Arrays.copyOfRange(plain, 3, plain.length),
+        Arrays.copyOfRange(back, 1, 1 + n));
+  }
+
+  @Test
+  public void testByteBufferRoundTrip() throws Exception {
+    AesCtr aes = new AesCtr(key);
+    byte[] plain = TestBytes.randomBytes(65537);
+    ByteBuffer in = ByteBuffer.allocateDirect(plain.length);
+    in.put(plain).flip();
+    ByteBuffer encrypted = ByteBuffer.allocateDirect(plain.length + aes.getOverhead());
+    assertEquals(plain.length + 16, aes.encrypt(in, encrypted));
+    assertEquals(0, in.remaining());
+    encrypted.flip();
+
+    byte[] copy = new byte[encrypted.remaining()];
+    encrypted.duplicate().get(copy);
+    assertArrayEquals(plain, aes.decrypt(copy));
+
+    ByteBuffer back = ByteBuffer.allocate(plain.length);
+    assertEquals(plain.length, aes.decrypt(encrypted, back));
+    assertArrayEquals(plain, back.array());
+  }
+
+  @Test
+  public void testFixedIV() throws Exception {
+    AesCtr aes = new AesCtr(key);
+    byte[] iv = TestBytes.randomBytes(16);
+    byte[] plain = TestBytes.randomBytes(1000);
+    byte[] encrypted = aes.encrypt(plain, iv);
+    assertArrayEquals(iv, Arrays.copyOf(encrypted, 16));
+    assertArrayEquals(plain, aes.decrypt(encrypted));
+    assertArrayEquals(plain, AesCtr.removePadding(AesCtr.addPadding(plain)));
+  }
+}
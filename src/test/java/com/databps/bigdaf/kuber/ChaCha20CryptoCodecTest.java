@@ -0,0 +1,105 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import com.databps.bigdaf.kuber.algorithms.ChaCha20CryptoCodec;
+import com.databps.bigdaf.kuber.algorithms.CryptoCodecFactory;
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.Decryptor;
+import org.junit.Test;
+
+/**
+ * ChaCha20 CryptoCodec 测试
+ */
+public class ChaCha20CryptoCodecTest {
+
+  private final byte[] key = new Config().getKey();
+
+  private CryptoCodec newCodec() {
+    Configuration conf = new Configuration(false);
+    conf.setClass(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_KEY,
+        ChaCha20CryptoCodec.class, CryptoCodec.class);
+    return CryptoCodecFactory.getInstance(conf);
+  }
+
+  /** Keystream of the codec for the given IV, computed with ChaCha20 directly. */
+  private byte[] expected(byte[] plain, byte[] iv, long streamOffset) throws Exception {
+    long counter = 0;
+    for (int i = 8; i < 16; i++) {
+      counter = (counter << 8) | (iv[i] & 0xff);
+    }
+    ChaCha20 cipher = new ChaCha20(key, Arrays.copyOf(iv, 8), 0);
+    cipher.seek(counter * 16 + streamOffset);
+    byte[] out = new byte[plain.length];
+    cipher.process(plain, 0, out, 0, plain.length);
+    return out;
+  }
+
+  @Test
+  public void testFactory() {
+    assertTrue(newCodec() instanceof ChaCha20CryptoCodec);
+  }
+
+  @Test
+  public void testOutputStream() throws Exception {
+    CryptoCodec codec = newCodec();
+    byte[] iv = new byte[16];
+    codec.generateSecureRandom(iv);
+    iv[8] = 0; // keep counter * 16 inside a long for the check below
+    byte[] plain = TestBytes.randomBytes(100000);
+
+    for (long streamOffset : new long[] {0, 5, 16, 1000003}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      CryptoOutputStream2 os = new CryptoOutputStream2(bytes, codec, 4096, key, iv,
+          streamOffset);
+      os.write(plain, 0, 10);
+      os.write(plain, 10, plain.length - 10);
+      os.close();
+      assertArrayEquals("offset " + streamOffset, expected(plain, iv, streamOffset),
+          bytes.toByteArray());
+    }
+  }
+
+  @Test
+  public void testDirectBufferDecryptor() throws Exception {
+    CryptoCodec codec = newCodec();
+    byte[] iv = new byte[16];
+    iv[15] = 7;
+    byte[] plain = TestBytes.randomBytes(5000);
+    byte[] encrypted = expected(plain, iv, 0);
+
+    Decryptor decryptor = codec.createDecryptor();
+    decryptor.init(key, iv);
+    ByteBuffer in = ByteBuffer.allocateDirect(encrypted.length);
+    ByteBuffer out = ByteBuffer.allocateDirect(encrypted.length);
+    in.put(encrypted, 0, 3).flip();
+    decryptor.decrypt(in, out);
+    in.clear();
+    in.put(encrypted, 3, encrypted.length - 3).flip();
+    decryptor.decrypt(in, out);
+    out.flip();
+    byte[] result = new byte[out.remaining()];
+    out.get(result);
+    assertArrayEquals(plain, result);
+
+    // Re-init on an IV further on must land on the same keystream.
+    byte[] iv2 = new byte[16];
+    codec.calculateIV(iv, 10, iv2);
+    decryptor.init(key, iv2);
+    in.clear();
+    in.put(encrypted, 160, 1000).flip();
+    out.clear();
+    decryptor.decrypt(in, out);
+    out.flip();
+    result = new byte[out.remaining()];
+    out.get(result);
+    assertArrayEquals(Arrays.copyOfRange(plain, 160, 1160), result);
+  }
+}
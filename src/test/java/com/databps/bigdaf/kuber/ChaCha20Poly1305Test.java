@@ -0,0 +1,90 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20Poly1305;
+import com.databps.bigdaf.kuber.algorithms.Poly1305;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+/**
+ * ChaCha20-Poly1305 测试，向量取自 RFC 8439
+ */
+public class ChaCha20Poly1305Test {
+
+  private static byte[] hex(String s) throws Exception {
+    return Hex.decodeHex(s.toCharArray());
+  }
+
+  @Test
+  public void testPoly1305Vector() throws Exception {
+    byte[] key = hex("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b");
+    byte[] msg = "Cryptographic Forum Research Group".getBytes("US-ASCII");
+    byte[] tag = new byte[Poly1305.TAG_SIZE];
+
+    Poly1305 mac = new Poly1305(key);
+    mac.update(msg, 0, msg.length);
+    mac.doFinal(tag, 0);
+    assertArrayEquals(hex("a8061dc1305136c6c22b8baf0c0127a9"), tag);
+
+    // Byte at a time gives the same tag.
+    mac.init(key, 0);
+    for (int i = 0; i < msg.length; i++) {
+      mac.update(msg, i, 1);
+    }
+    Arrays.fill(tag, (byte) 0);
+    mac.doFinal(tag, 0);
+    assertArrayEquals(hex("a8061dc1305136c6c22b8baf0c0127a9"), tag);
+  }
+
+  @Test
+  public void testAeadVector() throws Exception {
+    byte[] key = hex("808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f");
+    byte[] nonce = hex("070000004041424344454647");
+    byte[] aad = hex("50515253c0c1c2c3c4c5c6c7");
+    byte[] plain = ("Ladies and Gentlemen of the class of '99: If I could offer you only one "
+        + "tip for the future, sunscreen would be it.").getBytes("US-ASCII");
+    byte[] expected = hex("d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d6"
+        + "3dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b36"
+        + "92ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc"
+        + "3ff4def08e4b7a9de576d26586cec64b6116");
+    byte[] expectedTag = hex("1ae10b594f09e26a7e902ecbd0600691");
+
+    ChaCha20Poly1305 aead = new ChaCha20Poly1305(key);
+    byte[] buf = plain.clone();
+    byte[] tag = new byte[ChaCha20Poly1305.TAG_SIZE];
+    aead.seal(nonce, aad, buf, 0, buf.length, tag, 0);
+    assertArrayEquals(expected, buf);
+    assertArrayEquals(expectedTag, tag);
+
+    aead.open(nonce, aad, buf, 0, buf.length, tag, 0);
+    assertArrayEquals(plain, buf);
+  }
+
+  @Test
+  public void testTamperedData() throws Exception {
+    ChaCha20Poly1305 aead = new ChaCha20Poly1305(new byte[32]);
+    byte[] nonce = new byte[12];
+    byte[] buf = TestBytes.randomBytes(1000);
+    byte[] tag = new byte[ChaCha20Poly1305.TAG_SIZE];
+    aead.seal(nonce, null, buf, 0, buf.length, tag, 0);
+
+    buf[500] ^= 1;
+    byte[] tampered = buf.clone();
+    try {
+      aead.open(nonce, null, buf, 0, buf.length, tag, 0);
+      fail("Tampered data accepted");
+    } catch (AEADBadTagException expected) {
+      assertArrayEquals(tampered, buf);
+    }
+    buf[500] ^= 1;
+    try {
+      aead.open(nonce, new byte[] {1}, buf, 0, buf.length, tag, 0);
+      fail("Wrong associated data accepted");
+    } catch (AEADBadTagException expected) {
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import org.junit.Test;
+
+/**
+ * ChaCha20 测试
+ */
+public class ChaCha20Test {
+
+  private final Config config = new Config();
+
+  private ChaCha20 newCipher() throws Exception {
+    return new ChaCha20(config.getKey(), config.getNonce(), config.getCounter());
+  }
+
+  @Test
+  public void testChunkedMatchesOneShot() throws Exception {
+    byte[] plain = TestBytes.randomBytes(10000);
+    byte[] expected = new byte[plain.length];
+    newCipher().encrypt(expected, plain, plain.length);
+
+    ChaCha20 cipher = newCipher();
+    byte[] actual = plain.clone();
+    int[] chunks = {1, 63, 64, 65, 100, 4096, 7};
+    int off = 0;
+    for (int i = 0; off < actual.length; i++) {
+      int len = Math.min(chunks[i % chunks.length], actual.length - off);
+      cipher.encrypt(actual, off, len);
+      off += len;
+    }
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] plain = TestBytes.randomBytes(5000);
+    byte[] encrypted = new byte[plain.length];
+    newCipher().process(plain, 0, encrypted, 0, plain.length);
+
+    byte[] decrypted = new byte[plain.length + 10];
+    newCipher().process(encrypted, 0, decrypted, 10, encrypted.length);
+
+    byte[] result = new byte[plain.length];
+    System.arraycopy(decrypted, 10, result, 0, result.length);
+    assertArrayEquals(plain, result);
+  }
+
+  @Test
+  public void testMatchesReference() throws Exception {
+    int[] lengths = {1, 63, 64, 65, 255, 256, 257, 1000, 4096, 100000};
+    for (int len : lengths) {
+      byte[] plain = TestBytes.randomBytes(len);
+      byte[] expected = new byte[len];
+      new ReferenceChaCha20(config.getKey(), config.getNonce(), config.getCounter())
+          .encrypt(expected, plain, len);
+
+      byte[] actual = new byte[len];
+      newCipher().encrypt(actual, plain, len);
+      assertArrayEquals("length " + len, expected, actual);
+    }
+  }
+
+  @Test
+  public void testReferenceNonceMatchesReference() throws Exception {
+    byte[] nonce = "abcdefgh".getBytes();
+    byte[] plain = TestBytes.randomBytes(3000);
+    byte[] expected = new byte[plain.length];
+    new ReferenceChaCha20(config.getKey(), nonce, 0).encrypt(expected, plain, plain.length);
+
+    byte[] actual = plain.clone();
+    new ChaCha20(config.getKey(), nonce, 0).encrypt(actual, 0, actual.length);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void testSeek() throws Exception {
+    byte[] plain = TestBytes.randomBytes(20000);
+    byte[] expected = new byte[plain.length];
+    newCipher().encrypt(expected, plain, plain.length);
+
+    ChaCha20 cipher = newCipher();
+    long[][] ranges = {{0, 10}, {5000, 300}, {63, 2}, {64, 64}, {12345, 7000}, {1, 19999}};
+    for (long[] range : ranges) {
+      int off = (int) range[0];
+      int len = (int) range[1];
+      byte[] actual = new byte[len];
+      cipher.seek(off);
+      assertEquals(off, cipher.getPosition());
+      cipher.process(plain, off, actual, 0, len);
+      assertEquals(off + len, cipher.getPosition());
+      for (int i = 0; i < len; i++) {
+        assertEquals("position " + (off + i), expected[off + i], actual[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testCounterCarriesIntoHighWord() throws Exception {
+    byte[] nonce = "abcdefgh".getBytes();
+    byte[] plain = TestBytes.randomBytes(256);
+    long block = 0xffffffffL - 1;
+
+    ChaCha20 cipher = new ChaCha20(config.getKey(), nonce, 0);
+    byte[] expected = new byte[plain.length];
+    cipher.seek(block, 0);
+    cipher.process(plain, 0, expected, 0, plain.length);
+
+    byte[] actual = new byte[plain.length];
+    for (int i = 0; i < 4; i++) {
+      cipher.seek((block + i) * ChaCha20.BLOCK_SIZE);
+      cipher.process(plain, i * 64, actual, i * 64, 64);
+    }
+    assertArrayEquals(expected, actual);
+    assertEquals((block + 4) * ChaCha20.BLOCK_SIZE, cipher.getPosition());
+  }
+
+  @Test
+  public void testIetfCounterStopsAt32Bits() throws Exception {
+    byte[] plain = TestBytes.randomBytes(64);
+    // Blocks are counted from the initial counter of Config.
+    long last = 0xffffffffL - config.getCounter();
+
+    ChaCha20 cipher = newCipher();
+    cipher.seek(last, 0);
+    byte[] actual = new byte[plain.length];
+    cipher.process(plain, 0, actual, 0, plain.length);
+    byte[] expected = new byte[plain.length];
+    new ReferenceChaCha20(config.getKey(), config.getNonce(), 0xffffffff)
+        .encrypt(expected, plain, plain.length);
+    assertArrayEquals(expected, actual);
+
+    // The counter does not carry into the first nonce word.
+    try {
+      cipher.process(plain, 0, actual, 0, 1);
+      fail("Processed beyond the last block");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      cipher.seek(last + 1, 0);
+      fail("Seeked beyond the last block");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      cipher.seek((last + 1) * ChaCha20.BLOCK_SIZE + 1);
+      fail("Seeked beyond the last block");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    cipher.seek(last * ChaCha20.BLOCK_SIZE + 63);
+    cipher.process(plain, 63, actual, 0, 1);
+    assertEquals(expected[63], actual[0]);
+  }
+}
@@ -0,0 +1,164 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import com.databps.bigdaf.kuber.algorithms.CipherProvider;
+import com.databps.bigdaf.kuber.algorithms.CipherProviders;
+import com.databps.bigdaf.kuber.algorithms.StreamCipher;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 加密算法 SPI 测试
+ */
+public class CipherProvidersTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] key = TestBytes.randomBytes(CipherProvider.KEY_SIZE);
+  private final byte[] nonce = TestBytes.randomBytes(CipherProvider.NONCE_SIZE);
+
+  /** Keystream bytes [from, from + len) of cipher, read after a seek. */
+  private static byte[] keystream(StreamCipher cipher, long from, int len) {
+    cipher.seek(from);
+    byte[] b = new byte[len];
+    cipher.encrypt(b, 0, len);
+    return b;
+  }
+
+  private byte[] reference(String algorithm, int len) throws Exception {
+    byte[] b = new byte[len];
+    if ("chacha20".equals(algorithm)) {
+      new ChaCha20(key, nonce, 0).encrypt(b, 0, len);
+    } else {
+      Cipher aes = Cipher.getInstance("AES/CTR/NoPadding");
+      aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+          new IvParameterSpec(Arrays.copyOf(nonce, 16)));
+      b = aes.doFinal(b);
+    }
+    return b;
+  }
+
+  @Test
+  public void testProvidersMatchReference() throws Exception {
+    assertNotNull(CipherProviders.get("chacha20-java"));
+    assertNotNull(CipherProviders.get("aes-ctr-jce"));
+    assertEquals(4, CipherProviders.getProviders().size());
+
+    int len = 100000;
+    for (CipherProvider p : CipherProviders.getAvailable(null)) {
+      byte[] expected = reference(p.getAlgorithm(), len);
+      StreamCipher cipher = p.newCipher(key, nonce);
+      assertArrayEquals(p.getName(), expected, keystream(cipher, 0, len));
+      for (long from : new long[] {1, 63, 64, 1000, 4097, 99999}) {
+        assertArrayEquals(p.getName() + " at " + from,
+            Arrays.copyOfRange(expected, (int) from, len),
+            keystream(cipher, from, len - (int) from));
+        assertEquals(len, cipher.getPosition());
+      }
+
+      // Direct buffers give the same stream.
+      ByteBuffer src = ByteBuffer.allocateDirect(len);
+      ByteBuffer dst = ByteBuffer.allocateDirect(len);
+      cipher.seek(0);
+      cipher.process(src, dst);
+      dst.flip();
+      byte[] direct = new byte[len];
+      dst.get(direct);
+      assertArrayEquals(p.getName(), expected, direct);
+    }
+  }
+
+  @Test
+  public void testSelect() {
+    Configuration conf = new Configuration(false);
+    assertEquals("chacha20-java", CipherProviders.select(conf, "chacha20").getName());
+    assertEquals("aes-ctr-jce", CipherProviders.select(conf, "aes-ctr").getName());
+
+    // A provider of another algorithm never decides how a file is read.
+    conf.set(CipherProviders.PROVIDER_KEY, "aes-ctr-jce");
+    assertEquals("aes-ctr-jce", CipherProviders.select(conf, "aes-ctr").getName());
+    assertEquals("chacha20-java", CipherProviders.select(conf, "chacha20").getName());
+
+    conf.set(CipherProviders.PROVIDER_KEY, "rot13");
+    try {
+      CipherProviders.select(conf, "chacha20");
+      throw new AssertionError("Unknown provider accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testAutoCachesWinnerPerHost() throws Exception {
+    File cache = new File(folder.getRoot(), "dir/auto.properties");
+    Configuration conf = new Configuration(false);
+    conf.set(CipherProviders.PROVIDER_KEY, CipherProviders.AUTO);
+    conf.set(CipherProviders.AUTO_CACHE_KEY, cache.getPath());
+    conf.setInt(CipherProviders.AUTO_BYTES_KEY, 1 << 20);
+
+    CipherProvider fastest = CipherProviders.select(conf, "aes-ctr");
+    assertEquals("aes-ctr", fastest.getAlgorithm());
+    assertTrue(CipherProviders.benchmark(fastest, 1 << 20) > 0);
+
+    Properties props = new Properties();
+    FileInputStream in = new FileInputStream(cache);
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    assertEquals(1, props.size());
+    String entry = props.stringPropertyNames().iterator().next();
+    assertTrue(entry, entry.startsWith("aes-ctr@"));
+    assertEquals(fastest.getName(), props.getProperty(entry));
+    assertEquals(fastest, CipherProviders.select(conf, "aes-ctr"));
+  }
+
+  @Test
+  public void testToolRoundTripWithAesCtr() throws Exception {
+    byte[] plain = TestBytes.randomBytes(3 * 65536 + 11);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+
+    for (String threads : new String[] {"1", "3"}) {
+      File hdfs = folder.newFolder("hdfs" + threads);
+      File local = folder.newFolder("local" + threads);
+      Configuration conf = new Configuration();
+      conf.set(KuberHeader.ALGORITHM_KEY, "aes-ctr");
+      conf.setInt(KuberHeader.CHUNK_SIZE_KEY, 65536);
+      conf.setInt(ParallelCryptoEngine.SEGMENT_SIZE_KEY, 65536);
+      assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+          input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///", "--threads", threads}));
+
+      File encrypted = new File(hdfs, "plain.bin");
+      FileInputStream in = new FileInputStream(encrypted);
+      try {
+        assertEquals(KuberHeader.ALGORITHM_AES_CTR, KuberHeader.read(in).getAlgorithm());
+      } finally {
+        in.close();
+      }
+
+      assertEquals(0, ToolRunner.run(new Configuration(), new Decrypt(), new String[] {
+          encrypted.getAbsolutePath(), local.getAbsolutePath(), "file:///",
+          "--threads", threads}));
+      assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+    }
+  }
+}
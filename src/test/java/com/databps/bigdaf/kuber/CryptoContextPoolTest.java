@@ -0,0 +1,93 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.databps.bigdaf.kuber.algorithms.AesCtr;
+import com.databps.bigdaf.kuber.algorithms.CryptoContextPool;
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import java.io.ByteArrayOutputStream;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Test;
+
+/**
+ * JCE 实例池测试
+ */
+public class CryptoContextPoolTest {
+
+  @Test
+  public void testReleasedInstancesAreReused() throws Exception {
+    Cipher first = CryptoContextPool.borrowCipher("AES/CTR/NoPadding");
+    Cipher second = CryptoContextPool.borrowCipher("AES/CTR/NoPadding");
+    assertNotSame(first, second);
+    CryptoContextPool.release(second, "AES/CTR/NoPadding");
+    assertSame(second, CryptoContextPool.borrowCipher("AES/CTR/NoPadding"));
+    CryptoContextPool.release(first, "AES/CTR/NoPadding");
+    CryptoContextPool.release(second, "AES/CTR/NoPadding");
+
+    // Each provider has its own pool.
+    Cipher sun = CryptoContextPool.borrowCipher("AES/CTR/NoPadding", "SunJCE");
+    CryptoContextPool.release(sun, "AES/CTR/NoPadding", "SunJCE");
+    assertNotSame(sun, CryptoContextPool.borrowCipher("AES/CTR/NoPadding"));
+    assertSame(sun, CryptoContextPool.borrowCipher("AES/CTR/NoPadding", "SunJCE"));
+    CryptoContextPool.release(sun, "AES/CTR/NoPadding", "SunJCE");
+
+    Mac mac = CryptoContextPool.borrowMac("HmacSHA256");
+    mac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+    mac.update(new byte[10]);
+    CryptoContextPool.release(mac, "HmacSHA256");
+    // The partial message was reset on release.
+    Mac again = CryptoContextPool.borrowMac("HmacSHA256");
+    assertSame(mac, again);
+    again.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+    Mac fresh = Mac.getInstance("HmacSHA256");
+    fresh.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+    assertArrayEquals(fresh.doFinal(new byte[3]), again.doFinal(new byte[3]));
+    CryptoContextPool.release(again, "HmacSHA256");
+  }
+
+  @Test
+  public void testPooledCipherTakesNewKey() throws Exception {
+    byte[] plain = TestBytes.randomBytes(1000);
+    byte[] iv = new byte[16];
+    byte[][] keys = {new byte[16], TestBytes.randomBytes(16)};
+    for (byte[] key : keys) {
+      Cipher pooled = CryptoContextPool.borrowCipher("AES/CTR/NoPadding");
+      pooled.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      Cipher fresh = Cipher.getInstance("AES/CTR/NoPadding");
+      fresh.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      assertArrayEquals(fresh.doFinal(plain), pooled.doFinal(plain));
+      CryptoContextPool.release(pooled, "AES/CTR/NoPadding");
+    }
+  }
+
+  @Test
+  public void testHotPathsBorrow() throws Exception {
+    AesCtr aes = new AesCtr(new byte[16]);
+    byte[] plain = TestBytes.randomBytes(100);
+    aes.decrypt(aes.encrypt(plain, "p"), "p");
+    aes.close();
+    new CryptoOutputStream2(new ByteArrayOutputStream(), new byte[16], new byte[16]).close();
+
+    long created = CryptoContextPool.getCreated();
+    for (int i = 0; i < 10; i++) {
+      aes = new AesCtr(new byte[16]);
+      assertArrayEquals(plain, aes.decrypt(aes.encrypt(plain), 0));
+      assertArrayEquals(plain, aes.decrypt(aes.encrypt(plain, "p"), "p"));
+      aes.close();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CryptoOutputStream2 cos = new CryptoOutputStream2(out, new byte[16], new byte[16]);
+      cos.write(plain);
+      cos.close();
+      assertEquals(plain.length, out.size());
+    }
+    assertEquals(created, CryptoContextPool.getCreated());
+    assertTrue(CryptoContextPool.getReused() >= 50);
+  }
+}
@@ -0,0 +1,200 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20CryptoCodec;
+import com.databps.bigdaf.kuber.algorithms.CryptoCodecFactory;
+import com.databps.bigdaf.kuber.algorithms.CryptoInputStream2;
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import com.databps.bigdaf.kuber.algorithms.DirectBufferArena;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.crypto.JceAesCtrCryptoCodec;
+import org.apache.hadoop.crypto.OpensslAesCtrCryptoCodec;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CryptoOutputStream2 / CryptoInputStream2 测试
+ */
+public class CryptoStreamTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] key = new Config().getKey();
+  private final byte[] iv = "0123456789abcdef".getBytes();
+  private final byte[] plain = TestBytes.randomBytes(300000);
+
+  private CryptoCodec codec(Class<? extends CryptoCodec> klass) {
+    Configuration conf = new Configuration(false);
+    conf.setClass(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_KEY, klass, CryptoCodec.class);
+    return CryptoCodecFactory.getInstance(conf);
+  }
+
+  private FSDataInputStream writeAndOpen(CryptoCodec codec) throws Exception {
+    File file = folder.newFile();
+    OutputStream os = new CryptoOutputStream2(new FileOutputStream(file), codec, 8192, key,
+        iv, 0);
+    os.write(plain);
+    os.close();
+    FileSystem fs = FileSystem.getLocal(new Configuration()).getRaw();
+    return fs.open(new Path(file.getAbsolutePath()));
+  }
+
+  private void checkStream(CryptoCodec codec) throws Exception {
+    CryptoInputStream2 is = new CryptoInputStream2(writeAndOpen(codec), codec, 8192, key, iv);
+
+    // Sequential reads, small and larger than the buffer.
+    byte[] result = new byte[plain.length];
+    int off = 0;
+    int[] sizes = {1, 15, 100, 20000, 7, 8192, 50000};
+    for (int i = 0; off < result.length; i++) {
+      int n = is.read(result, off, Math.min(sizes[i % sizes.length], result.length - off));
+      if (n < 0) {
+        break;
+      }
+      off += n;
+    }
+    assertEquals(plain.length, off);
+    assertArrayEquals(plain, result);
+    assertEquals(-1, is.read());
+
+    // Seek then read.
+    for (long pos : new long[] {17, 0, 8191, 150001, 299999}) {
+      is.seek(pos);
+      assertEquals(pos, is.getPos());
+      assertEquals(plain[(int) pos] & 0xff, is.read());
+    }
+
+    // Positioned reads do not move the stream.
+    is.seek(5);
+    byte[] range = new byte[12345];
+    is.readFully(99999, range);
+    assertArrayEquals(Arrays.copyOfRange(plain, 99999, 99999 + range.length), range);
+    assertEquals(5, is.getPos());
+
+    // ByteBuffer reads into direct and heap buffers after an unaligned seek.
+    for (ByteBuffer buf : new ByteBuffer[] {ByteBuffer.allocateDirect(30000),
+        ByteBuffer.allocate(30000)}) {
+      is.seek(77);
+      buf.clear();
+      while (buf.hasRemaining() && is.read(buf) > 0) {
+      }
+      buf.flip();
+      byte[] got = new byte[buf.remaining()];
+      buf.get(got);
+      assertArrayEquals(Arrays.copyOfRange(plain, 77, 77 + got.length), got);
+    }
+    is.close();
+  }
+
+  @Test
+  public void testAesCtr() throws Exception {
+    checkStream(codec(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_DEFAULT));
+  }
+
+  @Test
+  public void testAesCtrCodecChain() throws Exception {
+    // Only OpenSSL in the chain: without libcrypto the factory falls back to JCE.
+    Configuration conf = new Configuration(false);
+    conf.set("hadoop.security.crypto.codec.classes.aes.ctr.nopadding",
+        OpensslAesCtrCryptoCodec.class.getName());
+    CryptoCodec codec = CryptoCodecFactory.getInstance(conf);
+    boolean openssl = "available".equals(CryptoCodecFactory.getOpensslStatus());
+    assertEquals(openssl ? OpensslAesCtrCryptoCodec.class : JceAesCtrCryptoCodec.class,
+        codec.getClass());
+    checkStream(codec);
+
+    CryptoOutputStream2 os = new CryptoOutputStream2(new ByteArrayOutputStream(), key, iv);
+    String backend = os.getBackend();
+    assertTrue(backend, openssl ? backend.equals("OpensslAesCtrCryptoCodec")
+        : backend.startsWith("JCE AES/CTR/NoPadding"));
+    os.close();
+  }
+
+  @Test
+  public void testOpensslHeapReads() throws Exception {
+    Assume.assumeTrue("available".equals(CryptoCodecFactory.getOpensslStatus()));
+    CryptoCodec codec = codec(OpensslAesCtrCryptoCodec.class);
+    assertTrue(codec instanceof OpensslAesCtrCryptoCodec);
+    checkStream(codec);
+
+    // Heap buffers of several stream buffers at unaligned positions.
+    CryptoInputStream2 is = new CryptoInputStream2(writeAndOpen(codec), codec, 8192, key, iv);
+    for (int pos : new int[] {0, 3, 8195, 100017}) {
+      byte[] got = new byte[50000];
+      is.seek(pos);
+      int off = 0;
+      while (off < got.length) {
+        int n = is.read(got, off, got.length - off);
+        assertTrue(n > 0);
+        off += n;
+      }
+      assertArrayEquals(Arrays.copyOfRange(plain, pos, pos + got.length), got);
+
+      byte[] range = new byte[30001];
+      is.readFully(pos + 5, range);
+      assertArrayEquals(Arrays.copyOfRange(plain, pos + 5, pos + 5 + range.length), range);
+      assertEquals(pos + got.length, is.getPos());
+    }
+    is.close();
+  }
+
+  @Test
+  public void testWritePaths() throws Exception {
+    List<CryptoCodec> codecs = new ArrayList<CryptoCodec>();
+    codecs.add(codec(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_DEFAULT));
+    codecs.add(codec(ChaCha20CryptoCodec.class));
+    if ("available".equals(CryptoCodecFactory.getOpensslStatus())) {
+      codecs.add(codec(OpensslAesCtrCryptoCodec.class));
+    }
+    for (CryptoCodec codec : codecs) {
+      // Plain stream, file channel and a stream taking only arrays, with
+      // flushes at unaligned offsets.
+      File file = folder.newFile();
+      ByteArrayOutputStream arrays = new ByteArrayOutputStream();
+      OutputStream[] sinks = {new ByteArrayOutputStream(), new FileOutputStream(file),
+          new FilterOutputStream(arrays)};
+      for (OutputStream sink : sinks) {
+        int borrowed = DirectBufferArena.getDefault().getBorrowedCount();
+        CryptoOutputStream2 os = new CryptoOutputStream2(sink, codec, 8192, key, iv, 0);
+        if (!(codec instanceof OpensslAesCtrCryptoCodec)) {
+          // Array ciphers run on heap buffers.
+          assertEquals(borrowed, DirectBufferArena.getDefault().getBorrowedCount());
+        }
+        for (int off = 0; off < plain.length; off += 12345) {
+          os.write(plain, off, Math.min(12345, plain.length - off));
+          os.flush();
+        }
+        os.close();
+      }
+      byte[] expected = ((ByteArrayOutputStream) sinks[0]).toByteArray();
+      assertEquals(plain.length, expected.length);
+      assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+      assertArrayEquals(expected, arrays.toByteArray());
+    }
+  }
+
+  @Test
+  public void testChaCha20() throws Exception {
+    checkStream(codec(ChaCha20CryptoCodec.class));
+  }
+}
@@ -0,0 +1,204 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension.EncryptedKeyVersion;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 数据密钥缓存测试
+ */
+public class DataKeyCacheTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+  /** Counts unwraps; the data key is the EDEK material reversed. */
+  private static class CountingUnwrapper implements DataKeyCache.Unwrapper {
+    final AtomicInteger calls = new AtomicInteger();
+    final List<byte[]> returned = new ArrayList<byte[]>();
+
+    @Override
+    public byte[] unwrap(EncryptedKeyVersion encryptedKey) throws IOException {
+      calls.incrementAndGet();
+      byte[] key = dataKey(encryptedKey);
+      synchronized (returned) {
+        returned.add(key);
+      }
+      return key;
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static EncryptedKeyVersion edek(String version, int seed) {
+    byte[] material = new byte[32];
+    Arrays.fill(material, (byte) seed);
+    material[0] = (byte) (seed >> 8);
+    return EncryptedKeyVersion.createForDecryption("warehouse", version, new byte[16], material);
+  }
+
+  private static byte[] dataKey(EncryptedKeyVersion encryptedKey) {
+    byte[] key = encryptedKey.getEncryptedKeyVersion().getMaterial().clone();
+    for (int i = 0; i < key.length / 2; i++) {
+      byte b = key[i];
+      key[i] = key[key.length - 1 - i];
+      key[key.length - 1 - i] = b;
+    }
+    return key;
+  }
+
+  @Test
+  public void testHitsSkipTheUnwrapper() throws Exception {
+    DataKeyCache cache = new DataKeyCache(100, 1 << 20, 60000);
+    CountingUnwrapper unwrapper = new CountingUnwrapper();
+    for (int i = 0; i < 1000; i++) {
+      byte[] key = cache.get(edek("warehouse@0", i % 10), unwrapper);
+      assertArrayEquals(dataKey(edek("warehouse@0", i % 10)), key);
+      // Callers own their copy.
+      Arrays.fill(key, (byte) 0);
+    }
+    assertEquals(10, unwrapper.calls.get());
+    assertEquals(990, cache.getHits());
+    assertEquals(10, cache.getMisses());
+
+    // Another key version is another key.
+    cache.get(edek("warehouse@1", 0), unwrapper);
+    assertEquals(11, unwrapper.calls.get());
+    assertEquals(11, cache.size());
+    assertEquals(11 * 32, cache.getBytes());
+  }
+
+  @Test
+  public void testEvictionZeroesKeys() throws Exception {
+    // Room for three 32-byte keys.
+    DataKeyCache cache = new DataKeyCache(10, 100, 60000);
+    CountingUnwrapper unwrapper = new CountingUnwrapper();
+    for (int i = 0; i < 3; i++) {
+      cache.get(edek("warehouse@0", i), unwrapper);
+    }
+    // Key 0 becomes the most recently used, so key 1 is evicted.
+    cache.get(edek("warehouse@0", 0), unwrapper);
+    cache.get(edek("warehouse@0", 3), unwrapper);
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getEvictions());
+    cache.get(edek("warehouse@0", 0), unwrapper);
+    assertEquals(4, unwrapper.calls.get());
+    byte[] copy = cache.get(edek("warehouse@0", 1), unwrapper);
+    assertEquals(5, unwrapper.calls.get());
+
+    // The cache keeps what the unwrapper returned and zeroes it once evicted
+    // (the first key 1 and key 2 by now) or cleared; callers get copies.
+    assertArrayEquals(new byte[32], unwrapper.returned.get(1));
+    assertArrayEquals(new byte[32], unwrapper.returned.get(2));
+    assertArrayEquals(dataKey(edek("warehouse@0", 3)), unwrapper.returned.get(3));
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+    for (byte[] key : unwrapper.returned) {
+      assertArrayEquals(new byte[32], key);
+    }
+    assertArrayEquals(dataKey(edek("warehouse@0", 1)), copy);
+
+    DataKeyCache expiring = new DataKeyCache(10, 1000, 300);
+    expiring.get(edek("warehouse@0", 7), unwrapper);
+    expiring.get(edek("warehouse@0", 7), unwrapper);
+    assertEquals(6, unwrapper.calls.get());
+    Thread.sleep(400);
+    expiring.get(edek("warehouse@0", 7), unwrapper);
+    assertEquals(7, unwrapper.calls.get());
+    // The expired key was zeroed.
+    assertArrayEquals(new byte[32], unwrapper.returned.get(5));
+
+    try {
+      new DataKeyCache(-1, 0, 0);
+      fail("negative size accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testConcurrentMissesAreCoalesced() throws Exception {
+    final DataKeyCache cache = new DataKeyCache(100, 1 << 20, 60000);
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final DataKeyCache.Unwrapper slow = new DataKeyCache.Unwrapper() {
+      @Override
+      public byte[] unwrap(EncryptedKeyVersion encryptedKey) throws IOException {
+        calls.incrementAndGet();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return dataKey(encryptedKey);
+      }
+    };
+    List<Future<byte[]>> readers = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 8; i++) {
+      readers.add(executor.submit(new java.util.concurrent.Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return cache.get(edek("warehouse@0", 42), slow);
+        }
+      }));
+    }
+    Thread.sleep(200);
+    release.countDown();
+    for (Future<byte[]> reader : readers) {
+      assertArrayEquals(dataKey(edek("warehouse@0", 42)), reader.get());
+    }
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testBatchUnwrap() throws Exception {
+    DataKeyCache cache = new DataKeyCache(100, 1 << 20, 60000);
+    CountingUnwrapper unwrapper = new CountingUnwrapper();
+    cache.get(edek("warehouse@0", 0), unwrapper);
+
+    List<EncryptedKeyVersion> edeks = new ArrayList<EncryptedKeyVersion>();
+    for (int i = 0; i < 500; i++) {
+      edeks.add(edek("warehouse@0", i % 20));
+    }
+    List<byte[]> keys = cache.getAll(edeks, unwrapper, executor);
+    assertEquals(500, keys.size());
+    for (int i = 0; i < 500; i++) {
+      assertArrayEquals(dataKey(edeks.get(i)), keys.get(i));
+    }
+    // Key 0 was cached; the 19 others were unwrapped once each.
+    assertEquals(20, unwrapper.calls.get());
+
+    DataKeyCache.Unwrapper failing = new DataKeyCache.Unwrapper() {
+      @Override
+      public byte[] unwrap(EncryptedKeyVersion encryptedKey) throws IOException {
+        throw new IOException("KMS down");
+      }
+    };
+    try {
+      cache.getAll(Arrays.asList(edek("warehouse@0", 99)), failing, executor);
+      fail("unwrap failure not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("KMS down"));
+    }
+    // A failed unwrap is not cached.
+    cache.get(edek("warehouse@0", 99), unwrapper);
+    assertEquals(21, unwrapper.calls.get());
+  }
+}
@@ -0,0 +1,107 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.databps.bigdaf.kuber.algorithms.CryptoInputStream2;
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import com.databps.bigdaf.kuber.algorithms.DirectBufferArena;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.junit.Test;
+
+/**
+ * 直接内存池测试
+ */
+public class DirectBufferArenaTest {
+
+  @Test
+  public void testSizeClassesAreReused() {
+    DirectBufferArena arena = new DirectBufferArena(1 << 20, false);
+    ByteBuffer a = arena.borrow(5000);
+    assertEquals(5000, a.capacity());
+    assertTrue(a.isDirect());
+    assertEquals(8192, arena.getUsedBytes());
+    arena.release(a);
+    assertEquals(8192, arena.getIdleBytes());
+
+    // Same class, different size: served by the idle buffer.
+    ByteBuffer b = arena.borrow(8192);
+    assertEquals(8192, b.capacity());
+    assertEquals(1, arena.getHits());
+    assertEquals(8192, arena.getNativeBytes());
+    arena.release(b);
+
+    try {
+      arena.release(b);
+      fail("released twice");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    // Above the largest class: freed on release.
+    ByteBuffer big = arena.borrow(DirectBufferArena.MAX_CLASS + 1);
+    arena.release(big);
+    assertEquals(8192, arena.getNativeBytes());
+    arena.trim();
+    assertEquals(0, arena.getNativeBytes());
+  }
+
+  @Test
+  public void testIdleCap() {
+    DirectBufferArena arena = new DirectBufferArena(16 * 1024, false);
+    ByteBuffer[] buffers = new ByteBuffer[4];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = arena.borrow(8192);
+    }
+    for (ByteBuffer b : buffers) {
+      arena.release(b);
+    }
+    assertEquals(16 * 1024, arena.getIdleBytes());
+    assertEquals(16 * 1024, arena.getNativeBytes());
+    assertEquals(0, arena.getBorrowedCount());
+  }
+
+  @Test
+  public void testLeakIsReclaimed() throws Exception {
+    DirectBufferArena arena = new DirectBufferArena(1 << 20, false);
+    arena.borrow(4096);
+    for (int i = 0; i < 50 && arena.getLeaks() == 0; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertEquals(1, arena.getLeaks());
+    assertEquals(0, arena.getUsedBytes());
+    assertEquals(4096, arena.getIdleBytes());
+  }
+
+  @Test
+  public void testStreamsReturnBuffers() throws Exception {
+    DirectBufferArena arena = DirectBufferArena.getDefault();
+    byte[] key = new byte[16];
+    byte[] iv = new byte[16];
+    byte[] plain = TestBytes.randomBytes(20000);
+    int borrowed = arena.getBorrowedCount();
+    long hits = arena.getHits();
+    for (int i = 0; i < 5; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CryptoOutputStream2 cos = new CryptoOutputStream2(out, key, iv);
+      cos.write(plain);
+      cos.close();
+      CryptoInputStream2 cis = new CryptoInputStream2(new ByteArrayInputStream(out.toByteArray()),
+          CryptoCodec.getInstance(new Configuration()), 8192, key, iv);
+      byte[] back = new byte[plain.length];
+      int n = 0;
+      while (n < back.length) {
+        n += cis.read(back, n, Math.min(100, back.length - n));
+      }
+      cis.close();
+      assertEquals(ByteBuffer.wrap(plain), ByteBuffer.wrap(back));
+      assertEquals(borrowed, arena.getBorrowedCount());
+    }
+    assertTrue(arena.getHits() - hits >= 8);
+  }
+}
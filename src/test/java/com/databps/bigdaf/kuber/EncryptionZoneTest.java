@@ -0,0 +1,109 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * HDFS 加密区测试，使用 MiniDFSCluster 和本地 jceks 密钥库
+ */
+public class EncryptionZoneTest {
+
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  private static KuberMiniCluster cluster;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    cluster = new KuberMiniCluster(folder.newFolder("cluster"));
+  }
+
+  @AfterClass
+  public static void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.close();
+    }
+  }
+
+  @Test
+  public void testToolsUseEncryptionZone() throws Exception {
+    byte[] plain = TestBytes.randomBytes(300001);
+    File input = folder.newFile("zone.bin");
+    Files.write(input.toPath(), plain);
+    File local = folder.newFolder("zone-out");
+    FileSystem fs = cluster.getFileSystem();
+    String uri = cluster.getFsUri();
+    Configuration conf = new Configuration(cluster.getConf());
+    conf.setInt(PipelinedTransfer.BUFFER_SIZE_KEY, 65536);
+
+    // Without a zone or a key to create one there is nothing to write into.
+    assertEquals(1, ToolRunner.run(conf, new EncryptKms(),
+        new String[] {input.getAbsolutePath(), "/secure", uri}));
+    assertEquals(0, ToolRunner.run(conf, new EncryptKms(), new String[] {input.getAbsolutePath(),
+        "/secure", uri, EncryptKms.KEY_OPTION, KuberMiniCluster.KEY_NAME}));
+    Path written = new Path("/secure/zone.bin");
+    assertTrue(fs.getFileStatus(written).isEncrypted());
+
+    // The zone exists now, so no key is needed.
+    fs.rename(written, new Path("/secure/first.bin"));
+    assertEquals(0, ToolRunner.run(conf, new EncryptKms(),
+        new String[] {input.getAbsolutePath(), "/secure", uri}));
+
+    assertEquals(0, ToolRunner.run(conf, new DecryptKms(),
+        new String[] {written.toString(), local.getAbsolutePath(), uri}));
+    assertArrayEquals(plain, Files.readAllBytes(new File(local, "zone.bin_new").toPath()));
+
+    // Files outside a zone are refused.
+    fs.copyFromLocalFile(new Path(input.getAbsolutePath()), new Path("/open/zone.bin"));
+    assertEquals(1, ToolRunner.run(conf, new DecryptKms(),
+        new String[] {"/open/zone.bin", local.getAbsolutePath(), uri}));
+  }
+
+  @Test
+  public void testBenchmarkModes() throws Exception {
+    File input = KuberMiniCluster.createInput(folder.newFile("bench.bin"),
+        2 * 1024 * 1024 + 5, 1);
+    TdeBenchmark benchmark = new TdeBenchmark(cluster, folder.newFolder("bench"));
+    for (String mode : TdeBenchmark.MODES) {
+      TdeBenchmark.Result[] results = benchmark.run(mode, input);
+      assertEquals(2, results.length);
+      for (TdeBenchmark.Result result : results) {
+        assertTrue(result.toString(), result.getMBps() > 0);
+        System.out.println(result);
+      }
+    }
+  }
+
+  @Test
+  public void testEndToEndBenchmark() throws Exception {
+    long[] sizes = EndToEndBenchmark.parseSizes("1000,64k");
+    assertArrayEquals(new long[] {1000, 65536}, sizes);
+    List<EndToEndBenchmark.ToolResult> results =
+        new EndToEndBenchmark(cluster, folder.newFolder("e2e")).run(sizes, 3, 1);
+    assertEquals(2 * EndToEndBenchmark.TOOLS.length, results.size());
+    for (EndToEndBenchmark.ToolResult result : results) {
+      assertEquals(3, result.getFiles());
+      assertTrue(result.toString(), result.getMBps() > 0);
+      assertTrue(result.getLatencyMillis(50) <= result.getLatencyMillis(99));
+    }
+    assertEquals(3 * 65536, results.get(results.size() - 1).getBytes());
+
+    String json = EndToEndBenchmark.toJson(results, sizes, 3);
+    assertTrue(json, json.contains("\"tool\": \"DecryptKms\", \"fileSize\": 65536"));
+    assertTrue(json, json.contains("\"p99\": "));
+  }
+}
@@ -0,0 +1,338 @@
+package com.databps.bigdaf.kuber;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * 端到端性能测试：在 MiniDFSCluster 上逐个文件运行四个工具
+ * <p/>
+ * Generates count synthetic files of each size and runs {@link Encrypt} and
+ * {@link Decrypt} (Kuber, data keys wrapped by the cluster's keystore), then
+ * {@link EncryptKms} and {@link DecryptKms} (an encryption zone with the same
+ * master key) on every file, one tool run per file as from the command line.
+ * Per tool and size it reports throughput, p50/p99 latency of a file, GC
+ * time and the peak RSS of the process, which includes the in-process
+ * cluster. Warm-up files run first and are not counted.
+ * <p/>
+ * Usage: EndToEndBenchmark [--sizes 4k,1m,64m] [--count n] [--warmup n]
+ * [--out results.json]
+ */
+public class EndToEndBenchmark {
+
+  public static final String SIZES_OPTION = "--sizes";
+
+  public static final String COUNT_OPTION = "--count";
+
+  public static final String WARMUP_OPTION = "--warmup";
+
+  public static final String OUT_OPTION = "--out";
+
+  public static final String[] TOOLS = {"Encrypt", "Decrypt", "EncryptKms", "DecryptKms"};
+
+  private final KuberMiniCluster cluster;
+  private final File work;
+
+  /** Measurements of one tool on the files of one size. */
+  public static class ToolResult {
+    final String tool;
+    final long fileSize;
+    final long[] latencies;
+    final long nanos;
+    final long gcMillis;
+    final long gcCount;
+    final long peakRss;
+
+    ToolResult(String tool, long fileSize, long[] latencies, long nanos, long gcMillis,
+        long gcCount, long peakRss) {
+      this.tool = tool;
+      this.fileSize = fileSize;
+      this.latencies = latencies.clone();
+      Arrays.sort(this.latencies);
+      this.nanos = nanos;
+      this.gcMillis = gcMillis;
+      this.gcCount = gcCount;
+      this.peakRss = peakRss;
+    }
+
+    public int getFiles() {
+      return latencies.length;
+    }
+
+    public long getBytes() {
+      return fileSize * latencies.length;
+    }
+
+    public double getMBps() {
+      return getBytes() / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    public double getFilesPerSecond() {
+      return latencies.length / (nanos / 1e9);
+    }
+
+    /** @return the latency of a file at percentile (0, 100], nearest rank. */
+    public double getLatencyMillis(double percentile) {
+      int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+      return latencies[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    /** @return the peak resident set size in bytes, or -1 if unknown. */
+    public long getPeakRss() {
+      return peakRss;
+    }
+
+    String toJson() {
+      return String.format(Locale.ROOT, "{\"tool\": \"%s\", \"fileSize\": %d, \"files\": %d, "
+              + "\"bytes\": %d, \"seconds\": %.3f, \"mbPerSecond\": %.2f, "
+              + "\"filesPerSecond\": %.2f, \"latencyMs\": {\"p50\": %.3f, \"p99\": %.3f, "
+              + "\"max\": %.3f}, \"gcMillis\": %d, \"gcCount\": %d, \"peakRssBytes\": %d}",
+          tool, fileSize, getFiles(), getBytes(), nanos / 1e9, getMBps(), getFilesPerSecond(),
+          getLatencyMillis(50), getLatencyMillis(99), getLatencyMillis(100), gcMillis, gcCount,
+          peakRss);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT,
+          "%-10s %10d %5d files %9.1f MB/s %8.1f files/s p50 %8.2f ms p99 %8.2f ms "
+              + "GC %5d ms RSS %6d MB", tool, fileSize, getFiles(), getMBps(),
+          getFilesPerSecond(), getLatencyMillis(50), getLatencyMillis(99), gcMillis,
+          peakRss < 0 ? -1 : peakRss >> 20);
+    }
+  }
+
+  /**
+   * @param work local directory for the inputs and the files read back.
+   */
+  public EndToEndBenchmark(KuberMiniCluster cluster, File work) {
+    this.cluster = cluster;
+    this.work = work;
+  }
+
+  /**
+   * Runs every tool on count files of each size, after warmup files that
+   * are not measured.
+   */
+  public List<ToolResult> run(long[] sizes, int count, int warmup) throws Exception {
+    List<ToolResult> results = new ArrayList<ToolResult>();
+    for (long size : sizes) {
+      File inputs = new File(work, "input-" + size);
+      inputs.mkdirs();
+      List<File> files = new ArrayList<File>();
+      for (int i = 0; i < warmup + count; i++) {
+        files.add(KuberMiniCluster.createInput(new File(inputs, "f" + i + ".bin"), size, i));
+      }
+      for (String tool : TOOLS) {
+        if (warmup > 0) {
+          measure(tool, size, files.subList(0, warmup));
+        }
+        results.add(measure(tool, size, files.subList(warmup, files.size())));
+      }
+      FileUtil.fullyDelete(inputs);
+    }
+    return results;
+  }
+
+  private ToolResult measure(String tool, long size, List<File> files) throws Exception {
+    resetPeakRss();
+    long gcMillis = -gcMillis();
+    long gcCount = -gcCount();
+    long[] latencies = new long[files.size()];
+    long total = 0;
+    for (int i = 0; i < files.size(); i++) {
+      long start = System.nanoTime();
+      runTool(tool, size, files.get(i));
+      latencies[i] = System.nanoTime() - start;
+      total += latencies[i];
+      checkOutput(tool, size, files.get(i));
+    }
+    gcMillis += gcMillis();
+    gcCount += gcCount();
+    return new ToolResult(tool, size, latencies, total, gcMillis, gcCount, peakRss());
+  }
+
+  private void runTool(String tool, long size, File input) throws Exception {
+    String uri = cluster.getFsUri();
+    String kuberDir = "/e2e/kuber-" + size;
+    String zoneDir = "/e2e/tde-" + size;
+    String local = new File(work, "output").getAbsolutePath();
+    Tool instance;
+    String[] args;
+    if ("Encrypt".equals(tool)) {
+      instance = new Encrypt();
+      args = new String[] {input.getAbsolutePath(), kuberDir, uri};
+    } else if ("Decrypt".equals(tool)) {
+      instance = new Decrypt();
+      args = new String[] {kuberDir + "/" + input.getName(), local, uri};
+    } else if ("EncryptKms".equals(tool)) {
+      instance = new EncryptKms();
+      // The first file turns the empty directory into a zone.
+      args = new String[] {input.getAbsolutePath(), zoneDir, uri,
+          EncryptKms.KEY_OPTION, KuberMiniCluster.KEY_NAME};
+    } else if ("DecryptKms".equals(tool)) {
+      instance = new DecryptKms();
+      args = new String[] {zoneDir + "/" + input.getName(), local, uri};
+    } else {
+      throw new IllegalArgumentException("Unknown tool: " + tool);
+    }
+    new File(local).mkdirs();
+    int code = ToolRunner.run(new Configuration(cluster.getConf()), instance, args);
+    if (code != 0) {
+      throw new IOException(tool + " returned " + code + " for " + input);
+    }
+  }
+
+  /**
+   * Checks what the tool wrote, outside the measured time: encrypted files
+   * exist, decrypted files match their input byte for byte.
+   */
+  private void checkOutput(String tool, long size, File input) throws IOException {
+    if (tool.startsWith("Encrypt")) {
+      String dir = "Encrypt".equals(tool) ? "/e2e/kuber-" : "/e2e/tde-";
+      if (!cluster.getFileSystem().exists(new Path(dir + size, input.getName()))) {
+        throw new IOException(tool + " wrote no " + input.getName());
+      }
+      return;
+    }
+    File output = new File(new File(work, "output"), input.getName() + "_new");
+    if (output.length() != size) {
+      throw new IOException(tool + " read " + output.length() + " of " + size + " bytes");
+    }
+    if (!FileUtils.contentEquals(input, output)) {
+      throw new IOException(tool + " output differs from " + input.getName());
+    }
+    output.delete();
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  /** Resets the peak RSS of the process where Linux allows it. */
+  private static void resetPeakRss() {
+    try {
+      Writer writer = new FileWriter("/proc/self/clear_refs");
+      try {
+        writer.write("5");
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      // The peak then covers the whole run so far.
+    }
+  }
+
+  /** @return VmHWM of the process in bytes, or -1 if not on Linux. */
+  private static long peakRss() {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("VmHWM:")) {
+            return 1024 * Long.parseLong(line.replaceAll("[^0-9]", ""));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      // Not Linux.
+    }
+    return -1;
+  }
+
+  /** @return results as a JSON document, with what they were measured on. */
+  public static String toJson(List<ToolResult> results, long[] sizes, int count) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"timestampMillis\": ").append(System.currentTimeMillis()).append(",\n");
+    json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+    json.append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+    json.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+    json.append("  \"sizes\": ").append(Arrays.toString(sizes)).append(",\n");
+    json.append("  \"count\": ").append(count).append(",\n");
+    json.append("  \"results\": [");
+    for (int i = 0; i < results.size(); i++) {
+      json.append(i == 0 ? "\n    " : ",\n    ").append(results.get(i).toJson());
+    }
+    return json.append("\n  ]\n}\n").toString();
+  }
+
+  /** Parses sizes such as "4k,1m,64m" into bytes. */
+  static long[] parseSizes(String sizes) {
+    String[] parts = sizes.split(",");
+    long[] bytes = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      String part = parts[i].trim().toLowerCase(Locale.ROOT);
+      int shift = part.endsWith("k") ? 10 : part.endsWith("m") ? 20 : part.endsWith("g") ? 30 : 0;
+      if (shift > 0) {
+        part = part.substring(0, part.length() - 1);
+      }
+      bytes[i] = Long.parseLong(part) << shift;
+    }
+    return bytes;
+  }
+
+  public static void main(String[] args) throws Exception {
+    ToolArgs toolArgs = new ToolArgs(args);
+    long[] sizes = parseSizes(toolArgs.getOption(SIZES_OPTION, "4k,1m,64m"));
+    int count = toolArgs.getInt(COUNT_OPTION, 20);
+    int warmup = toolArgs.getInt(WARMUP_OPTION, 2);
+    String out = toolArgs.getOption(OUT_OPTION, null);
+
+    File work = java.nio.file.Files.createTempDirectory("kuber-e2e").toFile();
+    KuberMiniCluster cluster = new KuberMiniCluster(work);
+    List<ToolResult> results;
+    try {
+      results = new EndToEndBenchmark(cluster, work).run(sizes, count, warmup);
+    } finally {
+      cluster.close();
+      FileUtil.fullyDelete(work);
+    }
+
+    System.out.println();
+    for (ToolResult result : results) {
+      System.out.println(result);
+    }
+    String json = toJson(results, sizes, count);
+    if (out == null) {
+      System.out.print(json);
+    } else {
+      Writer writer = new FileWriter(out);
+      try {
+        writer.write(json);
+      } finally {
+        writer.close();
+      }
+      System.out.println("results written to " + out);
+    }
+  }
+}
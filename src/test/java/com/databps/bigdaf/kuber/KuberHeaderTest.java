@@ -0,0 +1,175 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Kuber 文件格式测试
+ */
+public class KuberHeaderTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testHeaderRoundTrip() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(KuberHeader.CHUNK_SIZE_KEY, 65536);
+    conf.set(KuberHeader.KEY_ID_KEY, "warehouse@3");
+    KuberHeader header = KuberHeader.create(conf);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    header.write(out);
+    assertEquals(header.getLength(), out.size());
+
+    KuberHeader read = KuberHeader.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(KuberHeader.VERSION, read.getVersion());
+    assertEquals(KuberHeader.ALGORITHM_CHACHA20, read.getAlgorithm());
+    assertTrue(read.hasChunkIndex());
+    assertEquals(65536, read.getChunkSize());
+    assertEquals("warehouse@3", read.getKeyId());
+    assertArrayEquals(header.getNonce(), read.getNonce());
+    assertEquals(ChaCha20.NONCE_SIZE_IETF, read.getNonce().length);
+
+    assertFalse(Arrays.equals(header.getNonce(), KuberHeader.create(conf).getNonce()));
+  }
+
+  @Test
+  public void testLegacyData() throws Exception {
+    assertNull(KuberHeader.read(new ByteArrayInputStream("KUB".getBytes("UTF-8"))));
+    assertNull(KuberHeader.read(new ByteArrayInputStream(new byte[100])));
+  }
+
+  @Test(expected = IOException.class)
+  public void testNewerVersion() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new KuberHeader(KuberHeader.VERSION + 1, KuberHeader.ALGORITHM_CHACHA20, 0, 1024,
+        new byte[12], "default").write(out);
+    KuberHeader.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void testToolFormat() throws Exception {
+    byte[] plain = TestBytes.randomBytes(200003);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    Configuration conf = new Configuration();
+    conf.setInt(KuberHeader.CHUNK_SIZE_KEY, 65536);
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///"}));
+
+    File encrypted = new File(hdfs, "plain.bin");
+    FileSystem fs = FileSystem.getLocal(conf);
+    FSDataInputStream in = fs.open(new Path(encrypted.getAbsolutePath()));
+    try {
+      KuberHeader header = KuberHeader.read(in);
+      ChunkIndex index = ChunkIndex.read(in, encrypted.length());
+      assertEquals(4, index.getChunks());
+      assertEquals(plain.length, index.getDataLength());
+      assertEquals(header.getLength() + 3 * 65536, index.getOffset(3));
+      assertEquals(plain.length - 3 * 65536, index.getLength(3));
+      assertEquals(header.getLength() + plain.length + index.getSize(), encrypted.length());
+
+      // Any chunk can be decrypted on its own.
+      byte[] chunk = new byte[index.getLength(2)];
+      in.readFully(index.getOffset(2), chunk);
+      ChaCha20 cipher = header.newCipher(new Config().getKey());
+      cipher.seek(2 * 65536);
+      cipher.decrypt(chunk, 0, chunk.length);
+      assertArrayEquals(Arrays.copyOfRange(plain, 2 * 65536, 3 * 65536), chunk);
+    } finally {
+      in.close();
+    }
+
+    for (String[] options : new String[][] {{}, {"--mmap"}, {"--threads", "3"}}) {
+      String[] args = {encrypted.getAbsolutePath(), local.getAbsolutePath(), "file:///"};
+      String[] all = Arrays.copyOf(args, args.length + options.length);
+      System.arraycopy(options, 0, all, args.length, options.length);
+      assertEquals(0, ToolRunner.run(conf, new Decrypt(), all));
+      assertArrayEquals(Arrays.toString(options), plain,
+          Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+    }
+  }
+
+  @Test
+  public void testDecryptLegacyFile() throws Exception {
+    byte[] plain = TestBytes.randomBytes(3 * LegacyChunkCipher.CHUNK_SIZE + 905);
+    byte[] raw = encryptLegacy(plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+    Files.write(new File(hdfs, "old.bin").toPath(), raw);
+
+    for (String[] options : new String[][] {{}, {"--mmap"}, {"--threads", "3"}}) {
+      String[] args = {new File(hdfs, "old.bin").getAbsolutePath(), local.getAbsolutePath(),
+          "file:///"};
+      String[] all = Arrays.copyOf(args, args.length + options.length);
+      System.arraycopy(options, 0, all, args.length, options.length);
+      Configuration conf = new Configuration();
+      conf.setInt(ParallelCryptoEngine.SEGMENT_SIZE_KEY, 5000);
+      assertEquals(0, ToolRunner.run(conf, new Decrypt(), all));
+      assertArrayEquals(Arrays.toString(options), plain,
+          Files.readAllBytes(new File(local, "old.bin_new").toPath()));
+    }
+  }
+
+  @Test
+  public void testLegacyChunkCipher() throws Exception {
+    byte[] plain = TestBytes.randomBytes(2 * LegacyChunkCipher.CHUNK_SIZE + 77);
+    byte[] raw = encryptLegacy(plain);
+    Config config = new Config();
+    LegacyChunkCipher cipher = new LegacyChunkCipher(
+        new ChaCha20(config.getKey(), config.getNonce(), config.getCounter()));
+
+    // Pieces that straddle the chunk boundaries.
+    byte[] out = raw.clone();
+    for (int off = 0; off < out.length; off += 1000) {
+      cipher.decrypt(out, off, Math.min(1000, out.length - off));
+    }
+    assertArrayEquals(plain, out);
+    assertEquals(plain.length, cipher.getPosition());
+
+    cipher.seek(LegacyChunkCipher.CHUNK_SIZE - 10);
+    ByteBuffer src = ByteBuffer.allocateDirect(100);
+    src.put(raw, LegacyChunkCipher.CHUNK_SIZE - 10, 100).flip();
+    ByteBuffer dst = ByteBuffer.allocateDirect(100);
+    cipher.process(src, dst);
+    byte[] range = new byte[100];
+    ((ByteBuffer) dst.flip()).get(range);
+    assertArrayEquals(Arrays.copyOfRange(plain, LegacyChunkCipher.CHUNK_SIZE - 10,
+        LegacyChunkCipher.CHUNK_SIZE + 90), range);
+  }
+
+  /** Encrypts plain as the original Encrypt did: a new cipher per 4096 bytes. */
+  static byte[] encryptLegacy(byte[] plain) throws Exception {
+    Config config = new Config();
+    byte[] raw = plain.clone();
+    for (int off = 0; off < raw.length; off += LegacyChunkCipher.CHUNK_SIZE) {
+      new ChaCha20(config.getKey(), config.getNonce(), config.getCounter())
+          .encrypt(raw, off, Math.min(LegacyChunkCipher.CHUNK_SIZE, raw.length - off));
+    }
+    return raw;
+  }
+}
@@ -0,0 +1,238 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProvider;
+import org.apache.hadoop.crypto.key.KeyProviderFactory;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * KMS 数据密钥测试，使用本地 jceks 密钥库
+ */
+public class KuberKeyManagerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Configuration conf;
+  private KuberKeyManager keys;
+
+  @Before
+  public void setUp() throws Exception {
+    // Loads the manager first, for the keystore settings it makes.
+    assertEquals(null, KuberKeyManager.get(new Configuration()));
+    File store = new File(folder.getRoot(), "keys.jceks");
+    conf = new Configuration();
+    conf.set(KuberKeyManager.PROVIDER_URI_KEY, "jceks://file" + store.getAbsolutePath());
+    conf.setInt(KuberKeyManager.QUEUE_SIZE_KEY, 10);
+    conf.set(KuberHeader.KEY_ID_KEY, "warehouse");
+
+    KeyProvider provider = KeyProviderFactory.get(
+        new java.net.URI(conf.get(KuberKeyManager.PROVIDER_URI_KEY)), conf);
+    KeyProvider.Options options = KeyProvider.options(conf);
+    options.setBitLength(256);
+    provider.createKey("warehouse", options);
+    options.setBitLength(128);
+    provider.createKey("short", options);
+    provider.flush();
+    keys = KuberKeyManager.get(conf);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    keys.close();
+  }
+
+  private void awaitQueued(int size) throws InterruptedException {
+    for (int i = 0; i < 250 && keys.getQueued("warehouse") < size; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(size, keys.getQueued("warehouse"));
+  }
+
+  @Test
+  public void testDataKeysAreQueued() throws Exception {
+    keys.warmUp("warehouse", Integer.MAX_VALUE);
+    awaitQueued(10);
+
+    KuberKeyManager.DataKey first = keys.newDataKey("warehouse");
+    KuberKeyManager.DataKey second = keys.newDataKey("warehouse");
+    assertEquals(32, first.getKey().length);
+    assertFalse(Arrays.equals(first.getKey(), second.getKey()));
+    assertFalse(Arrays.equals(first.getEncryptedKey().getEncryptedKeyVersion().getMaterial(),
+        second.getEncryptedKey().getEncryptedKeyVersion().getMaterial()));
+
+    // Taking keys below the low watermark refills the queue in the background.
+    for (int i = 0; i < 6; i++) {
+      keys.newDataKey("warehouse");
+    }
+    awaitQueued(10);
+
+    // The EDEK survives the header and decrypts to the same key.
+    KuberHeader header = KuberHeader.create(conf, first.getEncryptedKey());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    header.write(out);
+    KuberHeader read = KuberHeader.read(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(read.hasWrappedKey());
+    assertEquals("warehouse", read.getKeyId());
+    assertArrayEquals(first.getKey(), keys.decryptKey(read));
+
+    first.destroy();
+    assertArrayEquals(new byte[32], first.getKey());
+  }
+
+  @Test
+  public void testNoPrefetchWithoutWarmUp() throws Exception {
+    KuberKeyManager.DataKey key = keys.newDataKey("warehouse");
+    assertEquals(32, key.getKey().length);
+    Thread.sleep(100);
+    assertEquals(0, keys.getQueued("warehouse"));
+    assertEquals(1, keys.getGenerated());
+  }
+
+  @Test
+  public void testWarmUpIsBoundedByFiles() throws Exception {
+    keys.warmUp("warehouse", 4);
+    awaitQueued(4);
+    for (int i = 0; i < 4; i++) {
+      keys.newDataKey("warehouse");
+    }
+    // The announced files have their keys; nothing more is generated.
+    Thread.sleep(100);
+    assertEquals(0, keys.getQueued("warehouse"));
+    assertEquals(4, keys.getGenerated());
+  }
+
+  @Test
+  public void testFileKeysAreDecryptedOnce() throws Exception {
+    List<KuberHeader> headers = new ArrayList<KuberHeader>();
+    List<byte[]> fileKeys = new ArrayList<byte[]>();
+    Set<String> edeks = new HashSet<String>();
+    for (int i = 0; i < 6; i++) {
+      KuberKeyManager.DataKey dataKey = keys.newDataKey("warehouse");
+      KuberHeader header = KuberHeader.create(conf, dataKey.getEncryptedKey());
+      headers.add(header);
+      fileKeys.add(dataKey.getKey());
+      dataKey.destroy();
+      edeks.add(Arrays.toString(
+          header.getEncryptedKey().getEncryptedKeyVersion().getMaterial()));
+    }
+    assertEquals(6, edeks.size());
+    // The same file twice, and a file without a header.
+    headers.add(headers.get(0));
+    fileKeys.add(fileKeys.get(0));
+    headers.add(null);
+    fileKeys.add(null);
+
+    List<byte[]> decrypted = KuberKeyManager.getFileKeys(conf, headers);
+    assertEquals(headers.size(), decrypted.size());
+    for (int i = 0; i < headers.size(); i++) {
+      assertArrayEquals(fileKeys.get(i), decrypted.get(i));
+    }
+    assertEquals(6, keys.getDecrypted());
+    assertEquals(6, keys.getCache().size());
+
+    // A second read of the files is served from the cache.
+    decrypted = KuberKeyManager.getFileKeys(conf, headers);
+    assertArrayEquals(fileKeys.get(5), decrypted.get(5));
+    assertArrayEquals(fileKeys.get(5), keys.decryptKey(headers.get(5)));
+    assertEquals(6, keys.getDecrypted());
+
+    keys.close();
+    assertEquals(0, keys.getCache().size());
+  }
+
+  @Test
+  public void testShortMasterKeyIsRejected() throws Exception {
+    try {
+      keys.newDataKey("short");
+      fail("128-bit data key accepted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("256"));
+    }
+  }
+
+  @Test
+  public void testToolsUseWrappedKeys() throws Exception {
+    byte[] plain = TestBytes.randomBytes(100001);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///"}));
+    File encrypted = new File(hdfs, "plain.bin");
+    InputStream in = Files.newInputStream(encrypted.toPath());
+    try {
+      KuberHeader header = KuberHeader.read(in);
+      assertTrue(header.hasWrappedKey());
+      assertEquals("warehouse", header.getKeyId());
+    } finally {
+      in.close();
+    }
+
+    assertEquals(0, ToolRunner.run(conf, new Decrypt(), new String[] {
+        encrypted.getAbsolutePath(), local.getAbsolutePath(), "file:///"}));
+    assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+
+    // A directory is encrypted file by file, the EDEKs generated ahead.
+    File dir = folder.newFolder("bulk");
+    for (int i = 0; i < 3; i++) {
+      Files.write(new File(dir, "part-" + i).toPath(), TestBytes.randomBytes(1000 + i));
+    }
+    File bulk = folder.newFolder("hdfs-bulk");
+    long generated = keys.getGenerated();
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        dir.getAbsolutePath(), bulk.getAbsolutePath(), "file:///"}));
+    // At most one EDEK in flight when the last file took its key is left over.
+    assertTrue(keys.getGenerated() - generated >= 3 && keys.getGenerated() - generated <= 4);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, ToolRunner.run(conf, new Decrypt(), new String[] {
+          new File(bulk, "part-" + i).getAbsolutePath(), local.getAbsolutePath(), "file:///"}));
+      assertArrayEquals(TestBytes.randomBytes(1000 + i),
+          Files.readAllBytes(new File(local, "part-" + i + "_new").toPath()));
+    }
+
+    // And decrypted as a directory, the keys of each batch unwrapped together.
+    File restored = folder.newFolder("restored");
+    conf.setInt(Decrypt.KEY_BATCH_SIZE_KEY, 2);
+    assertEquals(0, ToolRunner.run(conf, new Decrypt(), new String[] {
+        bulk.getAbsolutePath(), restored.getAbsolutePath(), "file:///"}));
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals(TestBytes.randomBytes(1000 + i),
+          Files.readAllBytes(new File(restored, "part-" + i + "_new").toPath()));
+    }
+
+    // Without the provider the file cannot be read.
+    Configuration noKms = new Configuration();
+    try {
+      ToolRunner.run(noKms, new Decrypt(), new String[] {
+          encrypted.getAbsolutePath(), local.getAbsolutePath(), "file:///"});
+      fail("decrypted without the key provider");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(KuberKeyManager.PROVIDER_URI_KEY));
+    }
+  }
+}
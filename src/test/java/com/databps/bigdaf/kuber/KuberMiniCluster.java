@@ -0,0 +1,91 @@
+package com.databps.bigdaf.kuber;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProvider;
+import org.apache.hadoop.crypto.key.KeyProviderFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+/**
+ * 进程内 HDFS 集群，供加密区测试和性能测试使用
+ * <p/>
+ * One datanode, and a Java keystore standing in for the KMS. The keystore
+ * holds a 256-bit master key, {@link #KEY_NAME}. Kuber wraps its data keys
+ * with it, and it can back encryption zones.
+ */
+public class KuberMiniCluster implements Closeable {
+
+  public static final String KEY_NAME = "warehouse";
+
+  private final Configuration conf;
+  private final MiniDFSCluster cluster;
+  private final FileSystem fs;
+
+  /**
+   * Starts the cluster with its storage and keystore under work.
+   */
+  public KuberMiniCluster(File work) throws Exception {
+    // Loads the manager first, for the keystore settings it makes.
+    KuberKeyManager.get(new Configuration());
+    String keyStore = "jceks://file" + new File(work, "keys.jceks").getAbsolutePath();
+    conf = new Configuration();
+    conf.set(DFSConfigKeys.DFS_ENCRYPTION_KEY_PROVIDER_URI, keyStore);
+    conf.set(KuberKeyManager.PROVIDER_URI_KEY, keyStore);
+    conf.set(KuberHeader.KEY_ID_KEY, KEY_NAME);
+    conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(work, "dfs").getAbsolutePath());
+
+    // The namenode reads the keystore when it starts.
+    KeyProvider provider = KeyProviderFactory.get(new URI(keyStore), conf);
+    KeyProvider.Options options = KeyProvider.options(conf);
+    options.setBitLength(256);
+    provider.createKey(KEY_NAME, options);
+    provider.flush();
+
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  /** @return the configuration of the cluster; copy it before changing it. */
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public FileSystem getFileSystem() {
+    return fs;
+  }
+
+  public String getFsUri() {
+    return fs.getUri().toString();
+  }
+
+  /** Writes size pseudo-random bytes, determined by seed, to file. */
+  public static File createInput(File file, long size, long seed) throws IOException {
+    Random random = new Random(seed);
+    byte[] buf = new byte[1024 * 1024];
+    OutputStream os = new FileOutputStream(file);
+    try {
+      for (long left = size; left > 0; left -= buf.length) {
+        random.nextBytes(buf);
+        os.write(buf, 0, (int) Math.min(buf.length, left));
+      }
+    } finally {
+      os.close();
+    }
+    return file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    fs.close();
+    cluster.shutdown();
+  }
+}
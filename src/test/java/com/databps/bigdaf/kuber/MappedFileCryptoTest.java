@@ -0,0 +1,88 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.nio.file.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 内存映射加解密测试
+ */
+public class MappedFileCryptoTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Config config = new Config();
+
+  private ChaCha20 newCipher() {
+    try {
+      return new ChaCha20(config.getKey(), config.getNonce(), config.getCounter());
+    } catch (Exception e) {
+      throw new MaskRuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testRollingWindows() throws Exception {
+    byte[] plain = TestBytes.randomBytes(200003);
+    byte[] expected = plain.clone();
+    newCipher().encrypt(expected, 0, expected.length);
+    File file = folder.newFile("plain.bin");
+    Files.write(file.toPath(), plain);
+
+    // Windows that are not a multiple of the cipher block size.
+    MappedFileCrypto mapped = new MappedFileCrypto(70001);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(plain.length, mapped.transformFrom(file, newCipher(), out));
+    assertArrayEquals(expected, out.toByteArray());
+
+    File decrypted = folder.newFile("decrypted.bin");
+    assertEquals(plain.length, mapped.transformTo(new ByteArrayInputStream(expected),
+        expected.length, newCipher(), decrypted));
+    assertArrayEquals(plain, Files.readAllBytes(decrypted.toPath()));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testShortInput() throws Exception {
+    new MappedFileCrypto(1024).transformTo(new ByteArrayInputStream(new byte[100]), 200,
+        newCipher(), folder.newFile("short.bin"));
+  }
+
+  @Test
+  public void testToolRoundTrip() throws Exception {
+    byte[] plain = TestBytes.randomBytes(150001);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    Configuration conf = new Configuration();
+    conf.setInt(MappedFileCrypto.WINDOW_SIZE_KEY, 65536);
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///", "--mmap"}));
+    assertEquals(0, ToolRunner.run(conf, new Decrypt(), new String[] {
+        new File(hdfs, "plain.bin").getAbsolutePath(), local.getAbsolutePath(), "file:///",
+        "--mmap"}));
+
+    assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+
+    // Mapped windows are single-threaded; the combination is refused.
+    assertEquals(1, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), folder.newFolder("other").getAbsolutePath(), "file:///",
+        "--mmap", "--threads", "2"}));
+    assertEquals(1, ToolRunner.run(conf, new Decrypt(), new String[] {
+        new File(hdfs, "plain.bin").getAbsolutePath(), local.getAbsolutePath(), "file:///",
+        "--mmap", "--threads", "2"}));
+  }
+}
@@ -0,0 +1,87 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.databps.bigdaf.kuber.algorithms.NonceService;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+/**
+ * 随机数与 nonce 服务测试
+ */
+public class NonceServiceTest {
+
+  private static List<ByteBuffer> issue(final NonceService service, final String keyId,
+      final int size, int threads, final int each) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<List<ByteBuffer>>> futures = new ArrayList<Future<List<ByteBuffer>>>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(pool.submit(new Callable<List<ByteBuffer>>() {
+        @Override
+        public List<ByteBuffer> call() {
+          List<ByteBuffer> nonces = new ArrayList<ByteBuffer>(each);
+          for (int i = 0; i < each; i++) {
+            nonces.add(ByteBuffer.wrap(keyId == null ? service.nextNonce(size)
+                : service.nextNonce(keyId, size)));
+          }
+          return nonces;
+        }
+      }));
+    }
+    List<ByteBuffer> all = new ArrayList<ByteBuffer>();
+    for (Future<List<ByteBuffer>> f : futures) {
+      all.addAll(f.get());
+    }
+    pool.shutdown();
+    return all;
+  }
+
+  @Test
+  public void testConcurrentRandomNoncesAreDistinct() throws Exception {
+    List<ByteBuffer> nonces = issue(NonceService.getDefault(), null, 12, 8, 5000);
+    assertEquals(40000, new HashSet<ByteBuffer>(nonces).size());
+    assertEquals(16, NonceService.getDefault().nextIV().length);
+  }
+
+  @Test
+  public void testRegistryCountsPerKey() throws Exception {
+    NonceService service = new NonceService();
+    List<ByteBuffer> nonces = issue(service, "k1", 12, 8, 2000);
+
+    // The leading 4 bytes are a counter, so no two nonces share them.
+    Set<Integer> prefixes = new HashSet<Integer>();
+    for (ByteBuffer n : nonces) {
+      prefixes.add(n.getInt(0));
+    }
+    assertEquals(16000, prefixes.size());
+
+    // Other keys and sizes have counters of their own.
+    byte[] other = service.nextNonce("k2", 16);
+    assertEquals(16, other.length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRegistryRejectsShortNonces() {
+    NonceService.getDefault().nextNonce("k", 8);
+  }
+
+  @Test
+  public void testNextBytesRange() {
+    byte[] b = new byte[32];
+    NonceService.getDefault().nextBytes(b, 8, 16);
+    assertArrayEquals(new byte[8], Arrays.copyOfRange(b, 0, 8));
+    assertArrayEquals(new byte[8], Arrays.copyOfRange(b, 24, 32));
+    assertTrue(!Arrays.equals(new byte[16], Arrays.copyOfRange(b, 8, 24)));
+  }
+}
@@ -0,0 +1,97 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 并行加密测试
+ */
+public class ParallelCryptoEngineTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Config config = new Config();
+
+  private ChaCha20 newCipher() {
+    try {
+      return new ChaCha20(config.getKey(), config.getNonce(), config.getCounter());
+    } catch (Exception e) {
+      throw new MaskRuntimeException(e);
+    }
+  }
+
+  /** Returns at most 777 bytes per read, like a socket would. */
+  private static InputStream shortReads(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 777));
+      }
+    };
+  }
+
+  @Test
+  public void testMatchesSequential() throws Exception {
+    byte[] plain = TestBytes.randomBytes(123457);
+    byte[] expected = plain.clone();
+    newCipher().encrypt(expected, 0, expected.length);
+
+    ParallelCryptoEngine engine = new ParallelCryptoEngine(4, 1000,
+        new ParallelCryptoEngine.CipherFactory() {
+          @Override
+          public ChaCha20 newCipher() {
+            return ParallelCryptoEngineTest.this.newCipher();
+          }
+        });
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long n = engine.transform(shortReads(new ByteArrayInputStream(plain)), out);
+    assertEquals(plain.length, n);
+    assertArrayEquals(expected, out.toByteArray());
+  }
+
+  @Test
+  public void testToolRoundTrip() throws Exception {
+    byte[] plain = TestBytes.randomBytes(300001);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    Configuration conf = new Configuration();
+    conf.setInt(ParallelCryptoEngine.SEGMENT_SIZE_KEY, 65536);
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///", "--threads", "3"}));
+    assertEquals(0, ToolRunner.run(new Configuration(), new Decrypt(), new String[] {
+        new File(hdfs, "plain.bin").getAbsolutePath(), local.getAbsolutePath(), "file:///"}));
+
+    assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+
+    // Parallel ranged decryption over a fresh output file.
+    assertEquals(0, ToolRunner.run(conf, new Decrypt(), new String[] {
+        new File(hdfs, "plain.bin").getAbsolutePath(), local.getAbsolutePath(), "file:///",
+        "--threads", "4"}));
+    assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+  }
+
+  @Test
+  public void testAlignToBlock() {
+    assertEquals(4 << 20, ParallelCryptoEngine.alignToBlock(4 << 20, 128L << 20));
+    assertEquals(1 << 20, ParallelCryptoEngine.alignToBlock(4 << 20, 1L << 20));
+    assertEquals(2 << 20, ParallelCryptoEngine.alignToBlock(4 << 20, 6L << 20));
+  }
+}
@@ -0,0 +1,133 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20CryptoCodec;
+import com.databps.bigdaf.kuber.algorithms.CryptoCodecFactory;
+import com.databps.bigdaf.kuber.algorithms.CryptoOutputStream2;
+import com.databps.bigdaf.kuber.algorithms.ParallelCryptoOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoCodec;
+import org.apache.hadoop.fs.Syncable;
+import org.junit.Test;
+
+/**
+ * 多线程加密输出流测试
+ */
+public class ParallelCryptoOutputStreamTest {
+
+  private final byte[] key = TestBytes.randomBytes(32);
+  private final byte[] iv = TestBytes.randomBytes(16);
+  private final byte[] plain = TestBytes.randomBytes(1000003);
+
+  /** Records how much had been written when hflush/hsync reached it. */
+  private static class SyncableSink extends ByteArrayOutputStream implements Syncable {
+    int synced = -1;
+
+    @Override
+    @Deprecated
+    public void sync() {
+      hflush();
+    }
+
+    @Override
+    public void hflush() {
+      synced = size();
+    }
+
+    @Override
+    public void hsync() {
+      synced = size();
+    }
+  }
+
+  private CryptoCodec codec(Class<? extends CryptoCodec> klass) {
+    Configuration conf = new Configuration(false);
+    conf.setClass(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_KEY, klass, CryptoCodec.class);
+    return CryptoCodecFactory.getInstance(conf);
+  }
+
+  private byte[] expected(CryptoCodec codec, long offset) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream os = new CryptoOutputStream2(out, codec, 8192, key, iv, offset);
+    os.write(plain);
+    os.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testSameOutputAsCryptoOutputStream2() throws Exception {
+    CryptoCodec[] codecs = {codec(CryptoCodecFactory.KUBER_CRYPTO_CODEC_CLASS_DEFAULT),
+        codec(ChaCha20CryptoCodec.class)};
+    Random random = new Random(7);
+    for (CryptoCodec codec : codecs) {
+      for (long offset : new long[] {0, 5, 4096 + 13}) {
+        SyncableSink sink = new SyncableSink();
+        ParallelCryptoOutputStream os =
+            new ParallelCryptoOutputStream(sink, codec, 65536 + 3, key, iv, offset);
+        int off = 0;
+        while (off < plain.length) {
+          int n = Math.min(random.nextInt(200000), plain.length - off);
+          os.write(plain, off, n);
+          off += n;
+          if (random.nextInt(4) == 0) {
+            // Everything written so far is out before hflush returns.
+            os.hflush();
+            assertEquals(off, sink.synced);
+          }
+        }
+        os.close();
+        assertArrayEquals(expected(codec, offset), sink.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testConfiguredStream() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.setInt(ParallelCryptoOutputStream.SLAB_SIZE_KEY, 100000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ParallelCryptoOutputStream os = new ParallelCryptoOutputStream(out, conf, key, iv, 0);
+    assertEquals(100000, os.getSlabSize());
+    for (byte b : new byte[] {1, 2, 3}) {
+      os.write(b);
+    }
+    os.hsync();
+    assertEquals(3, out.size());
+    os.close();
+    os.close();
+  }
+
+  @Test
+  public void testWriteFailureIsReported() throws Exception {
+    OutputStream broken = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("disk full");
+      }
+    };
+    ParallelCryptoOutputStream os = new ParallelCryptoOutputStream(broken,
+        (CryptoCodec) null, 4096, key, iv, 0);
+    try {
+      os.write(plain);
+      os.flush();
+      fail("write failure not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("disk full")
+          || e.getCause().getMessage().contains("disk full"));
+    }
+    try {
+      os.write(1);
+      fail("stream still usable");
+    } catch (IOException expected) {
+    }
+    os.close();
+  }
+}
@@ -0,0 +1,86 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.databps.bigdaf.kuber.algorithms.ChaCha20;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 流水线传输测试
+ */
+public class PipelinedTransferTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Config config = new Config();
+
+  private ChaCha20 newCipher() {
+    try {
+      return new ChaCha20(config.getKey(), config.getNonce(), config.getCounter());
+    } catch (Exception e) {
+      throw new MaskRuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testMatchesSequential() throws Exception {
+    byte[] plain = TestBytes.randomBytes(100003);
+    byte[] expected = plain.clone();
+    newCipher().encrypt(expected, 0, expected.length);
+
+    final ChaCha20 cipher = newCipher();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long n = new PipelinedTransfer(1000, 2).transfer(new ByteArrayInputStream(plain), out,
+        new PipelinedTransfer.Transform() {
+          @Override
+          public void apply(byte[] buf, int off, int len) {
+            cipher.encrypt(buf, off, len);
+          }
+        });
+    assertEquals(plain.length, n);
+    assertArrayEquals(expected, out.toByteArray());
+  }
+
+  @Test(timeout = 10000, expected = IOException.class)
+  public void testWriterFailure() throws Exception {
+    OutputStream broken = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("disk full");
+      }
+    };
+    new PipelinedTransfer(100, 3).transfer(
+        new ByteArrayInputStream(new byte[100000]), broken, PipelinedTransfer.IDENTITY);
+  }
+
+  @Test
+  public void testKmsToolsNeedHdfs() throws Exception {
+    // The round trip through an encryption zone is in EncryptionZoneTest.
+    byte[] plain = TestBytes.randomBytes(250001);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    Configuration conf = new Configuration();
+    assertEquals(1, ToolRunner.run(conf, new EncryptKms(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///"}));
+    assertFalse(new File(hdfs, "plain.bin").exists());
+    assertEquals(1, ToolRunner.run(conf, new DecryptKms(), new String[] {
+        input.getAbsolutePath(), local.getAbsolutePath(), "file:///"}));
+    assertFalse(new File(local, "plain.bin_new").exists());
+  }
+}
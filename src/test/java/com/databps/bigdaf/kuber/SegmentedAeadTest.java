@@ -0,0 +1,195 @@
+package com.databps.bigdaf.kuber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 分段认证加密测试
+ */
+public class SegmentedAeadTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final SegmentedAead aead =
+      new SegmentedAead(new Config().getKey(), new byte[12], 1000);
+
+  /** Positioned reads over an array. */
+  private static class ArrayReadable implements PositionedReadable {
+    final byte[] data;
+
+    ArrayReadable(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) {
+      if (position >= data.length) {
+        return -1;
+      }
+      int n = (int) Math.min(length, data.length - position);
+      System.arraycopy(data, (int) position, buffer, offset, n);
+      return n;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      if (position + length > data.length) {
+        throw new EOFException();
+      }
+      read(position, buffer, offset, length);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) throws IOException {
+      readFully(position, buffer, 0, buffer.length);
+    }
+  }
+
+  private byte[] seal(byte[] plain, int threads) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(plain.length, aead.seal(new ByteArrayInputStream(plain), out, threads));
+    return out.toByteArray();
+  }
+
+  private byte[] open(byte[] sealed, int threads) throws IOException {
+    File file = folder.newFile();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      aead.openRanges(new ArrayReadable(sealed), 0, sealed.length, raf.getChannel(), threads);
+    } finally {
+      raf.close();
+    }
+    return Files.readAllBytes(file.toPath());
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    for (int len : new int[] {0, 1, 999, 1000, 1001, 7000, 12345}) {
+      byte[] plain = TestBytes.randomBytes(len);
+      byte[] sealed = seal(plain, 3);
+      assertEquals(aead.getStoredLength(len), sealed.length);
+      assertEquals(len, aead.getPlainLength(sealed.length));
+      assertArrayEquals(sealed, seal(plain, 1));
+      assertArrayEquals(plain, open(sealed, 4));
+    }
+  }
+
+  @Test
+  public void testTamperedChunk() throws Exception {
+    byte[] sealed = seal(TestBytes.randomBytes(5000), 2);
+    sealed[3 * aead.getStoredChunkSize() + 17] ^= 1;
+    try {
+      open(sealed, 3);
+      fail("Tampered chunk accepted");
+    } catch (IOException e) {
+      assertEquals("Chunk 3 failed authentication", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testTruncatedAtChunkBoundary() throws Exception {
+    byte[] sealed = seal(TestBytes.randomBytes(5500), 2);
+    // Dropping whole trailing chunks leaves a well formed length whose last
+    // chunk was not sealed as final.
+    byte[] truncated = Arrays.copyOf(sealed, 3 * aead.getStoredChunkSize() + 100);
+    try {
+      open(truncated, 2);
+      fail("Truncated data accepted");
+    } catch (IOException e) {
+      assertEquals("Chunk 3 failed authentication", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSwappedChunks() throws Exception {
+    byte[] sealed = seal(TestBytes.randomBytes(5000), 2);
+    int size = aead.getStoredChunkSize();
+    byte[] first = Arrays.copyOfRange(sealed, 0, size);
+    System.arraycopy(sealed, size, sealed, 0, size);
+    System.arraycopy(first, 0, sealed, size, size);
+    try {
+      open(sealed, 1);
+      fail("Reordered chunks accepted");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testRangeReadChecksTouchedChunksOnly() throws Exception {
+    byte[] plain = TestBytes.randomBytes(10000);
+    byte[] sealed = seal(plain, 2);
+    // Corrupt chunk 0; reads of chunks 2 and 3 still succeed.
+    sealed[5] ^= 1;
+    ArrayReadable in = new ArrayReadable(sealed);
+
+    byte[] b = new byte[1500];
+    assertEquals(1500, aead.read(in, 0, sealed.length, 2100, b, 0, b.length));
+    assertArrayEquals(Arrays.copyOfRange(plain, 2100, 3600), b);
+
+    assertEquals(-1, aead.read(in, 0, sealed.length, 10000, b, 0, b.length));
+    assertEquals(100, aead.read(in, 0, sealed.length, 9900, b, 0, b.length));
+    try {
+      aead.read(in, 0, sealed.length, 900, b, 0, 200);
+      fail("Corrupt chunk read");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testToolRoundTrip() throws Exception {
+    byte[] plain = TestBytes.randomBytes(300000);
+    File input = folder.newFile("plain.bin");
+    Files.write(input.toPath(), plain);
+    File hdfs = folder.newFolder("hdfs");
+    File local = folder.newFolder("local");
+
+    Configuration conf = new Configuration();
+    conf.set(KuberHeader.ALGORITHM_KEY, "chacha20-poly1305");
+    conf.setInt(KuberHeader.CHUNK_SIZE_KEY, 65536);
+    assertEquals(0, ToolRunner.run(conf, new Encrypt(), new String[] {
+        input.getAbsolutePath(), hdfs.getAbsolutePath(), "file:///", "--threads", "3"}));
+
+    File encrypted = new File(hdfs, "plain.bin");
+    for (String threads : new String[] {"1", "4"}) {
+      assertEquals(0, ToolRunner.run(conf, new Decrypt(), new String[] {
+          encrypted.getAbsolutePath(), local.getAbsolutePath(), "file:///",
+          "--threads", threads}));
+      assertArrayEquals(plain, Files.readAllBytes(new File(local, "plain.bin_new").toPath()));
+    }
+
+    // A flipped bit anywhere in the data fails, and leaves no output behind.
+    RandomAccessFile raf = new RandomAccessFile(encrypted, "rw");
+    raf.seek(100000);
+    int b = raf.read();
+    raf.seek(100000);
+    raf.write(b ^ 0x80);
+    raf.close();
+    new File(local, "plain.bin_new").delete();
+    try {
+      ToolRunner.run(conf, new Decrypt(), new String[] {
+          encrypted.getAbsolutePath(), local.getAbsolutePath(), "file:///"});
+      fail("Tampered file decrypted");
+    } catch (IOException expected) {
+    }
+    assertFalse(new File(local, "plain.bin_new").exists());
+  }
+}
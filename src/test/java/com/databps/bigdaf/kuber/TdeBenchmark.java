@@ -0,0 +1,211 @@
+package com.databps.bigdaf.kuber;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Kuber 客户端加密与 HDFS 透明加密的吞吐量和 CPU 对比
+ * <p/>
+ * Runs one file through each write and read path on a
+ * {@link KuberMiniCluster}, whose master key serves both Kuber and the
+ * encryption zone. The datanode runs in the same process, so CPU time covers
+ * both sides of the transfer for every mode; "plain" shows what the copy
+ * costs without encryption.
+ * <p/>
+ * Usage: TdeBenchmark [size MB] [iterations] [modes...]
+ */
+public class TdeBenchmark {
+
+  public static final String PLAIN = "plain";
+
+  public static final String KUBER_CHACHA20 = "kuber-chacha20";
+
+  public static final String KUBER_AES_CTR = "kuber-aes-ctr";
+
+  public static final String TDE = "tde";
+
+  public static final String[] MODES = {PLAIN, KUBER_CHACHA20, KUBER_AES_CTR, TDE};
+
+  private static final String ZONE = "/zone";
+
+  private final KuberMiniCluster cluster;
+  private final File work;
+  private final Configuration conf;
+  private final FileSystem fs;
+
+  /** MB/s and CPU of one direction of one mode. */
+  public static class Result {
+    final String mode;
+    final String direction;
+    final long bytes;
+    final long nanos;
+    final long cpuNanos;
+
+    Result(String mode, String direction, long bytes, long nanos, long cpuNanos) {
+      this.mode = mode;
+      this.direction = direction;
+      this.bytes = bytes;
+      this.nanos = nanos;
+      this.cpuNanos = cpuNanos;
+    }
+
+    public double getMBps() {
+      return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    /** @return process CPU nanoseconds per byte, or -1 if not measured. */
+    public double getCpuNanosPerByte() {
+      return cpuNanos < 0 ? -1 : (double) cpuNanos / bytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-15s %-5s %9.1f MB/s %8.2f CPU ns/B", mode, direction,
+          getMBps(), getCpuNanosPerByte());
+    }
+  }
+
+  /**
+   * @param work local directory for the files read back.
+   */
+  public TdeBenchmark(KuberMiniCluster cluster, File work) {
+    this.cluster = cluster;
+    this.work = work;
+    this.conf = cluster.getConf();
+    this.fs = cluster.getFileSystem();
+  }
+
+  /**
+   * Writes input to the cluster and reads it back to a local file once in
+   * mode.
+   * @return the write and the read result.
+   */
+  public Result[] run(String mode, File input) throws Exception {
+    Path dir = new Path(TDE.equals(mode) ? ZONE : "/" + mode);
+    Path remote = new Path(dir, input.getName());
+    File local = new File(work, mode);
+    local.mkdirs();
+    fs.delete(remote, false);
+
+    long[] start = sample();
+    write(mode, input, dir, remote);
+    long[] written = sample();
+    read(mode, remote, local);
+    long[] read = sample();
+
+    File output = new File(local, input.getName() + "_new");
+    if (output.length() != input.length()) {
+      throw new IOException(mode + " read " + output.length() + " of " + input.length()
+          + " bytes");
+    }
+    output.delete();
+    fs.delete(remote, false);
+    return new Result[] {
+        new Result(mode, "write", input.length(), written[0] - start[0], cpu(start, written)),
+        new Result(mode, "read", input.length(), read[0] - written[0], cpu(written, read))};
+  }
+
+  private void write(String mode, File input, Path dir, Path remote) throws Exception {
+    if (PLAIN.equals(mode)) {
+      InputStream is = new FileInputStream(input);
+      OutputStream os = fs.create(remote);
+      try {
+        new PipelinedTransfer(conf).transfer(is, os, PipelinedTransfer.IDENTITY);
+      } finally {
+        is.close();
+        os.close();
+      }
+    } else if (TDE.equals(mode)) {
+      run(mode, new EncryptKms(), input.getAbsolutePath(), dir.toString(), cluster.getFsUri(),
+          EncryptKms.KEY_OPTION, KuberMiniCluster.KEY_NAME);
+    } else {
+      run(mode, new Encrypt(), input.getAbsolutePath(), dir.toString(), cluster.getFsUri());
+    }
+  }
+
+  private void read(String mode, Path remote, File local) throws Exception {
+    if (PLAIN.equals(mode)) {
+      InputStream is = fs.open(remote);
+      OutputStream os = new FileOutputStream(new File(local, remote.getName() + "_new"));
+      try {
+        new PipelinedTransfer(conf).transfer(is, os, PipelinedTransfer.IDENTITY);
+      } finally {
+        is.close();
+        os.close();
+      }
+    } else if (TDE.equals(mode)) {
+      run(mode, new DecryptKms(), remote.toString(), local.getAbsolutePath(), cluster.getFsUri());
+    } else {
+      run(mode, new Decrypt(), remote.toString(), local.getAbsolutePath(), cluster.getFsUri());
+    }
+  }
+
+  private void run(String mode, Tool tool, String... args) throws Exception {
+    Configuration toolConf = new Configuration(conf);
+    if (KUBER_AES_CTR.equals(mode)) {
+      toolConf.set(KuberHeader.ALGORITHM_KEY, "aes-ctr");
+    }
+    int code = ToolRunner.run(toolConf, tool, args);
+    if (code != 0) {
+      throw new IOException(tool.getClass().getSimpleName() + " returned " + code);
+    }
+  }
+
+  /** @return wall clock and process CPU time in nanoseconds. */
+  private static long[] sample() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    long cpu = os instanceof com.sun.management.OperatingSystemMXBean
+        ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+    return new long[] {System.nanoTime(), cpu};
+  }
+
+  private static long cpu(long[] from, long[] to) {
+    return from[1] < 0 || to[1] < 0 ? -1 : to[1] - from[1];
+  }
+
+  public static void main(String[] args) throws Exception {
+    long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    String[] modes = MODES;
+    if (args.length > 2) {
+      modes = new String[args.length - 2];
+      System.arraycopy(args, 2, modes, 0, modes.length);
+    }
+    File work = java.nio.file.Files.createTempDirectory("kuber-tde").toFile();
+    KuberMiniCluster cluster = new KuberMiniCluster(work);
+    TdeBenchmark benchmark = new TdeBenchmark(cluster, work);
+    List<Result> results = new ArrayList<Result>();
+    try {
+      File input = KuberMiniCluster.createInput(new File(work, "input.bin"), size, 1);
+      for (String mode : modes) {
+        // The first run warms up the JIT, the key caches and the zone.
+        benchmark.run(mode, input);
+        for (int i = 0; i < iterations; i++) {
+          for (Result result : benchmark.run(mode, input)) {
+            results.add(result);
+          }
+        }
+      }
+    } finally {
+      cluster.close();
+      org.apache.hadoop.fs.FileUtil.fullyDelete(work);
+    }
+    System.out.println();
+    for (Result result : results) {
+      System.out.println(result);
+    }
+  }
+}
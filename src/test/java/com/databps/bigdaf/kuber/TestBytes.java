@@ -0,0 +1,19 @@
+package com.databps.bigdaf.kuber;
+
+import java.util.Random;
+
+/**
+ * Test data shared by the Kuber tests.
+ */
+final class TestBytes {
+
+  private TestBytes() {
+  }
+
+  /** Returns len pseudo-random bytes, the same for the same len. */
+  static byte[] randomBytes(int len) {
+    byte[] b = new byte[len];
+    new Random(len).nextBytes(b);
+    return b;
+  }
+}